@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.Line;
+import main.LinePopulation;
+
+/**
+ * Benchmarks for scoring a population: single notes, whole populations (sequentially and in
+ * parallel) and the incremental rescoring done when one pitch changes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FitnessBenchmark {
+
+  @Param({"1000", "10000"})
+  public int noteCount;
+
+  @Param({"2", "4", "8"})
+  public int lineCount;
+
+  @Param({"1", "2", "4"})
+  public double overlap;
+
+  @Param({"NOTE_OBJECTS", "PACKED_ARRAYS"})
+  public Line.Storage storage;
+
+  @Param({"SWEEP_LINE", "OVERLAP_GRAPH"})
+  public LinePopulation.ScoringEngine engine;
+
+  private LinePopulation population;
+
+  // Walks through the notes, so each call scores a different one
+  private int noteIndex;
+  private int lineIndex;
+
+  @Setup
+  public void setUp() {
+    this.population = SyntheticScore.createPopulation(this.noteCount, this.lineCount, this.overlap,
+        this.storage, 42);
+    this.population.setScoringEngine(this.engine);
+    this.population.getCachedAverageFitnessScore();
+  }
+
+  @Benchmark
+  public double pitchFitnessScore() {
+    nextNote();
+    return this.population.getPitchFitnessScore(this.lineIndex, this.noteIndex);
+  }
+
+  @Benchmark
+  public double averageFitnessScore() {
+    return this.population.getAverageFitnessScore();
+  }
+
+  @Benchmark
+  public double averageFitnessScoreParallel() {
+    return this.population.getAverageFitnessScore(ForkJoinPool.commonPool());
+  }
+
+  @Benchmark
+  public double incrementalRescore() {
+    nextNote();
+    this.population.mutatePitch(this.lineIndex, this.noteIndex);
+    return this.population.getCachedAverageFitnessScore();
+  }
+
+  private void nextNote() {
+    this.noteIndex++;
+    if (this.noteIndex == this.noteCount) {
+      this.noteIndex = 0;
+    }
+    // Harmony lines only, as the melody is never scored
+    this.lineIndex = 1 + this.noteIndex % (this.lineCount - 1);
+  }
+
+}
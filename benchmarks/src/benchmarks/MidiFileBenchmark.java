@@ -0,0 +1,95 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import main.Line;
+import main.LinePopulation;
+import main.MidiStatic;
+import main.StandardMidiFileReader;
+import main.StandardMidiFileWriter;
+
+/**
+ * Benchmarks for reading and writing midi files, through javax.sound.midi (MidiStatic) and through
+ * the direct reader and writer. The files are written to the temporary directory, so reads will
+ * mostly be served from the page cache
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MidiFileBenchmark {
+
+  @Param({"1000", "10000"})
+  public int noteCount;
+
+  @Param({"1", "4"})
+  public int lineCount;
+
+  private List<Line> lines;
+  private File inputFile;
+  private File outputFile;
+  private StandardMidiFileWriter writer;
+
+  @Setup
+  public void setUp() throws InvalidMidiDataException, IOException {
+    LinePopulation population = SyntheticScore.createPopulation(this.noteCount, this.lineCount, 2,
+        Line.Storage.PACKED_ARRAYS, 42);
+    this.lines = new ArrayList<Line>();
+    for (int i = 0; i < population.getNumberOfLines(); i++) {
+      this.lines.add(population.getLineAtIndex(i));
+    }
+
+    this.inputFile = File.createTempFile("MidiFileBenchmark", ".mid");
+    this.outputFile = File.createTempFile("MidiFileBenchmark", ".mid");
+    MidiStatic.saveLinesToMidiFile(this.lines, this.inputFile.getPath());
+    this.writer = new StandardMidiFileWriter();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.inputFile.delete();
+    this.outputFile.delete();
+  }
+
+  @Benchmark
+  public Line getMelodyFromFile() throws InvalidMidiDataException, IOException {
+    return MidiStatic.getMelodyFromFile(this.inputFile.getPath());
+  }
+
+  @Benchmark
+  public Line readMelody() throws InvalidMidiDataException, IOException {
+    return StandardMidiFileReader.readMelody(this.inputFile.getPath());
+  }
+
+  @Benchmark
+  public void saveLinesToMidiFile() throws InvalidMidiDataException, IOException {
+    MidiStatic.saveLinesToMidiFile(this.lines, this.outputFile.getPath());
+  }
+
+  @Benchmark
+  public byte[] writeToByteArray() throws InvalidMidiDataException {
+    return this.writer.toByteArray(this.lines);
+  }
+
+}
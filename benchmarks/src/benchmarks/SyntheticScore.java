@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.Sequence;
+
+import main.Line;
+import main.LinePopulation;
+
+/**
+ * Builds made up scores for the benchmarks, so they can be run at any size without needing a midi
+ * file of that size. Pitches come from seeded generators, so the scores are the same on every run
+ */
+final class SyntheticScore {
+
+  static final int TICKS_PER_BEAT = 96;
+
+  // The range the melody pitches are drawn from, and the range given to the harmony lines
+  private static final int MIN_PITCH = 55;
+  private static final int MAX_PITCH = 79;
+  private static final int MIN_HARMONY_PITCH = 36;
+  private static final int MAX_HARMONY_PITCH = 72;
+
+  private SyntheticScore() {}
+
+  /**
+   * @param noteCount The number of notes in the melody
+   * @param overlap How many notes are sounding at once. Each note starts a beat after the last and
+   *        lasts this many beats, so 1 gives a melody of back to back notes, and 4 has every note
+   *        overlapping the three before it and the three after it
+   * @param storage How the melody holds its notes
+   * @param seed The seed for the pitches and velocities
+   * @return The melody
+   */
+  static Line createMelody(int noteCount, double overlap, Line.Storage storage, long seed) {
+    Random random = new Random(seed);
+    Line melody = new Line(TICKS_PER_BEAT, Sequence.PPQ, storage);
+    long duration = Math.max(1, Math.round(TICKS_PER_BEAT * overlap));
+    for (int i = 0; i < noteCount; i++) {
+      int pitch = MIN_PITCH + random.nextInt(MAX_PITCH - MIN_PITCH + 1);
+      int velocity = 64 + random.nextInt(64);
+      melody.addNoteToLine((long) i * TICKS_PER_BEAT, duration, pitch, velocity);
+    }
+    return melody;
+  }
+
+  /**
+   * @param noteCount The number of notes in each line
+   * @param lineCount The number of lines, including the melody
+   * @param overlap How many notes are sounding at once in each line (see createMelody)
+   * @param storage How the melody holds its notes
+   * @param seed The seed for the melody and the harmony pitches
+   * @return A population of the melody and lineCount - 1 harmony lines with random pitches
+   */
+  static LinePopulation createPopulation(int noteCount, int lineCount, double overlap,
+      Line.Storage storage, long seed) {
+    LinePopulation population =
+        new LinePopulation(createMelody(noteCount, overlap, storage, seed));
+    SplittableRandom random = new SplittableRandom(seed);
+    for (int i = 1; i < lineCount; i++) {
+      population.addNewLineWithMelodyAsTemplate(MIN_HARMONY_PITCH, MAX_HARMONY_PITCH, random);
+    }
+    return population;
+  }
+
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import main.Line;
+import main.Note;
+import main.NoteOverlapVisitor;
+
+/**
+ * Benchmarks for finding the notes of a line which sound within a window, through both the HashMap
+ * and the visitor forms of Line.getNotesWithinTimeFrame
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeWindowBenchmark {
+
+  @Param({"1000", "100000"})
+  public int noteCount;
+
+  @Param({"1", "4"})
+  public double overlap;
+
+  // The length of the window in beats
+  @Param({"1", "16"})
+  public int windowBeats;
+
+  @Param({"NOTE_OBJECTS", "PACKED_ARRAYS"})
+  public Line.Storage storage;
+
+  private Line line;
+  private long windowLength;
+  private long windowStart;
+
+  @Setup
+  public void setUp() {
+    this.line = SyntheticScore.createMelody(this.noteCount, this.overlap, this.storage, 42);
+    this.windowLength = (long) this.windowBeats * SyntheticScore.TICKS_PER_BEAT;
+  }
+
+  @Benchmark
+  public HashMap<Note, Long> notesWithinTimeFrame() {
+    return this.line.getNotesWithinTimeFrame(nextWindow(), this.windowLength);
+  }
+
+  @Benchmark
+  public void notesWithinTimeFrameVisitor(final Blackhole blackhole) {
+    this.line.getNotesWithinTimeFrame(nextWindow(), this.windowLength, new NoteOverlapVisitor() {
+      @Override
+      public void visit(int noteIndex, long overlapTicks) {
+        blackhole.consume(overlapTicks);
+      }
+    });
+  }
+
+  private long nextWindow() {
+    // Step through the line a beat at a time, wrapping round at the end
+    this.windowStart += SyntheticScore.TICKS_PER_BEAT;
+    if (this.windowStart >= (long) this.noteCount * SyntheticScore.TICKS_PER_BEAT) {
+      this.windowStart = 0;
+    }
+    return this.windowStart;
+  }
+
+}
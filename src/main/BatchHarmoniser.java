@@ -0,0 +1,532 @@
+package main;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Harmonises a whole batch of midi files, given as a directory or a manifest file listing them.
+ *
+ * Each file goes through three stages, each with a pool of its own: it is read on an I/O pool (see
+ * StandardMidiFileReader), harmonised on a CPU pool, and written out on a writer pool (see
+ * StandardMidiFileWriter), with the melody as the first track and the harmony lines after it. The
+ * CPU pool is a fork-join pool with a thread per core by default, and a GeneticHarmoniser breeds
+ * and scores on that pool too, so the cores are kept busy without being oversubscribed.
+ *
+ * The stages are linked with backpressure. Only a limited number of files may be waiting between
+ * the stages (see setQueueCapacity), and a stage which gets ahead stops taking new files until the
+ * next one catches up, so however many files are in the batch only a few melodies are ever held in
+ * memory at once.
+ *
+ * A file which can't be read, harmonised or written is recorded as failed in the report, and the
+ * rest of the batch carries on.
+ */
+public class BatchHarmoniser {
+
+  static Logger logger = LoggerFactory.getLogger(BatchHarmoniser.class);
+
+  private static final String OUTPUT_SUFFIX = "_harmonised.mid";
+
+  private final Harmoniser harmoniser;
+
+  private int ioThreads = 4;
+  private int cpuThreads = Runtime.getRuntime().availableProcessors();
+  private int writerThreads = 2;
+  private int queueCapacity = 2 * Runtime.getRuntime().availableProcessors();
+
+  /**
+   * @param harmoniser The harmoniser used for every file. It is used from many threads at once
+   */
+  public BatchHarmoniser(Harmoniser harmoniser) {
+    this.harmoniser = harmoniser;
+  }
+
+  /**
+   * Harmonise every .mid and .midi file in a directory (but not its subdirectories), in order of
+   * file name
+   *
+   * @param inputDirectory The directory holding the melodies
+   * @param outputDirectory The directory the harmonised files are written to, which is created if
+   *        needed. Each is named after its melody, with "_harmonised.mid" in place of the suffix.
+   *        Where two melodies would give the same name (a.mid and a.midi, say), the later ones
+   *        have -2, -3 and so on added before "_harmonised.mid"
+   * @return The report on the batch
+   * @throws IOException if the directories can't be read or created
+   * @throws InterruptedException if interrupted while waiting for the batch to finish
+   */
+  public Report harmoniseDirectory(Path inputDirectory, Path outputDirectory)
+      throws IOException, InterruptedException {
+    List<Path> inputs = new ArrayList<Path>();
+    DirectoryStream<Path> stream = Files.newDirectoryStream(inputDirectory, "*.{mid,midi}");
+    try {
+      for (Path input : stream) {
+        if (Files.isRegularFile(input)) {
+          inputs.add(input);
+        }
+      }
+    } finally {
+      stream.close();
+    }
+    Collections.sort(inputs);
+    return harmonise(inputs, outputDirectory);
+  }
+
+  /**
+   * Harmonise every file listed in a manifest (see readManifest)
+   *
+   * @param manifest The manifest file
+   * @param outputDirectory The directory the harmonised files are written to (see
+   *        harmoniseDirectory)
+   * @return The report on the batch
+   * @throws IOException if the manifest can't be read or the output directory created
+   * @throws InterruptedException if interrupted while waiting for the batch to finish
+   */
+  public Report harmoniseManifest(Path manifest, Path outputDirectory)
+      throws IOException, InterruptedException {
+    return harmonise(readManifest(manifest), outputDirectory);
+  }
+
+  /**
+   * Read a manifest: a text file with the path of one midi file per line. Blank lines and lines
+   * starting with # are ignored, and relative paths are taken to be relative to the manifest
+   *
+   * @param manifest The manifest file
+   * @return The paths listed, in order
+   * @throws IOException if the manifest can't be read
+   */
+  public static List<Path> readManifest(Path manifest) throws IOException {
+    Path base = manifest.toAbsolutePath().getParent();
+    List<Path> inputs = new ArrayList<Path>();
+    for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) {
+        inputs.add(base.resolve(line));
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * Harmonise a list of midi files. The call returns once every file has been written or has failed
+   *
+   * @param inputs The melody files
+   * @param outputDirectory The directory the harmonised files are written to (see
+   *        harmoniseDirectory)
+   * @return The report on the batch, with a result for each input in the same order
+   * @throws IOException if the output directory can't be created
+   * @throws InterruptedException if interrupted while waiting for the batch to finish. Files
+   *         already started are left to finish in the background
+   */
+  public Report harmonise(List<Path> inputs, Path outputDirectory)
+      throws IOException, InterruptedException {
+    Files.createDirectories(outputDirectory);
+    logger.info("Harmonising {} files into {}", inputs.size(), outputDirectory);
+
+    long startTime = System.nanoTime();
+    Batch batch = new Batch(inputs, outputDirectory);
+    try {
+      for (int i = 0; i < inputs.size(); i++) {
+        batch.submit(i);
+      }
+      batch.await();
+    } finally {
+      batch.shutdown();
+    }
+
+    Report report = new Report(Arrays.asList(batch.results), System.nanoTime() - startTime);
+    logger.info("{}", report);
+    return report;
+  }
+
+  /**
+   * The pools and results for one call to harmonise
+   */
+  private class Batch {
+
+    private final List<Path> inputs;
+    private final Path outputDirectory;
+    private final FileResult[] results;
+    private final String[] outputNames;
+
+    private final ExecutorService ioPool =
+        Executors.newFixedThreadPool(ioThreads, new NamedThreadFactory("harmony-io"));
+    private final ForkJoinPool cpuPool = new ForkJoinPool(cpuThreads);
+    private final ExecutorService writerPool =
+        Executors.newFixedThreadPool(writerThreads, new NamedThreadFactory("harmony-writer"));
+
+    // Files being read or read and waiting to be harmonised
+    private final Semaphore readSlots = new Semaphore(ioThreads + queueCapacity);
+    // Files being harmonised, or harmonised and waiting to be written. A slot is only given back
+    // once the file is written, so slow writing holds back harmonising, and in turn reading
+    private final Semaphore harmoniseSlots = new Semaphore(cpuThreads + queueCapacity);
+
+    private final CountDownLatch finished;
+
+    // Each writer thread reuses its own writer and so its own buffer
+    private final ThreadLocal<StandardMidiFileWriter> writers =
+        new ThreadLocal<StandardMidiFileWriter>() {
+          @Override
+          protected StandardMidiFileWriter initialValue() {
+            return new StandardMidiFileWriter();
+          }
+        };
+
+    Batch(List<Path> inputs, Path outputDirectory) {
+      this.inputs = inputs;
+      this.outputDirectory = outputDirectory;
+      this.results = new FileResult[inputs.size()];
+      this.outputNames = getOutputNames(inputs);
+      this.finished = new CountDownLatch(inputs.size());
+    }
+
+    void submit(final int index) throws InterruptedException {
+      this.readSlots.acquire();
+      this.ioPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          read(index);
+        }
+      });
+    }
+
+    void await() throws InterruptedException {
+      this.finished.await();
+    }
+
+    void shutdown() {
+      this.ioPool.shutdown();
+      this.cpuPool.shutdown();
+      this.writerPool.shutdown();
+    }
+
+    private void read(final int index) {
+      final FileResult result = new FileResult(this.inputs.get(index));
+      this.results[index] = result;
+      final Line melody;
+      try {
+        long start = System.nanoTime();
+        melody = StandardMidiFileReader.readMelody(result.getInput().toString());
+        result.readNanos = System.nanoTime() - start;
+        result.noteCount = melody.getLength();
+
+        this.harmoniseSlots.acquire();
+      } catch (Throwable e) {
+        fail(result, e, false);
+        return;
+      } finally {
+        this.readSlots.release();
+      }
+
+      this.cpuPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          harmonise(index, result, melody);
+        }
+      });
+    }
+
+    private void harmonise(final int index, final FileResult result, Line melody) {
+      final LinePopulation population;
+      try {
+        long start = System.nanoTime();
+        population = BatchHarmoniser.this.harmoniser.harmonise(melody);
+        result.harmoniseNanos = System.nanoTime() - start;
+        result.fitness = population.getAverageFitnessScore();
+      } catch (Throwable e) {
+        fail(result, e, true);
+        return;
+      }
+
+      this.writerPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          write(index, result, population);
+        }
+      });
+    }
+
+    private void write(int index, FileResult result, LinePopulation population) {
+      try {
+        long start = System.nanoTime();
+        List<Line> lines = new ArrayList<Line>(population.getNumberOfLines());
+        lines.add(population.getMelody());
+        for (int i = 1; i < population.getNumberOfLines(); i++) {
+          lines.add(population.getLineAtIndex(i));
+        }
+        Path output = this.outputDirectory.resolve(this.outputNames[index]);
+        FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+          this.writers.get().write(lines, channel);
+        } finally {
+          channel.close();
+        }
+        result.writeNanos = System.nanoTime() - start;
+        result.output = output;
+        logger.info("{}", result);
+      } catch (Throwable e) {
+        fail(result, e, true);
+        return;
+      }
+      this.harmoniseSlots.release();
+      this.finished.countDown();
+    }
+
+    /**
+     * Record a file as failed and let the batch carry on. Errors are caught as well as exceptions,
+     * as a stage which ended without counting its file down would leave harmonise waiting forever
+     */
+    private void fail(FileResult result, Throwable e, boolean holdingHarmoniseSlot) {
+      result.failure = e;
+      logger.warn("Failed to harmonise {}: {}", result.getInput(), e.toString());
+      if (holdingHarmoniseSlot) {
+        this.harmoniseSlots.release();
+      }
+      this.finished.countDown();
+    }
+  }
+
+  /**
+   * @return The name of the output file of each input, named after the input without its suffix,
+   *         with -2, -3 and so on added where an earlier input has already taken the name. Names
+   *         are compared ignoring case, as they may be on a file system which does
+   */
+  private static String[] getOutputNames(List<Path> inputs) {
+    String[] names = new String[inputs.size()];
+    Set<String> taken = new HashSet<String>();
+    for (int i = 0; i < names.length; i++) {
+      String name = inputs.get(i).getFileName().toString();
+      int dot = name.lastIndexOf('.');
+      String stem = (dot > 0) ? name.substring(0, dot) : name;
+      String candidate = stem + OUTPUT_SUFFIX;
+      for (int n = 2; !taken.add(candidate.toLowerCase(Locale.ROOT)); n++) {
+        candidate = stem + "-" + n + OUTPUT_SUFFIX;
+      }
+      names[i] = candidate;
+    }
+    return names;
+  }
+
+  /**
+   * What happened to one file of the batch, and how long each stage took
+   */
+  public static final class FileResult {
+
+    private final Path input;
+    private Path output;
+    private Throwable failure;
+    private int noteCount;
+    private double fitness;
+    private long readNanos;
+    private long harmoniseNanos;
+    private long writeNanos;
+
+    FileResult(Path input) {
+      this.input = input;
+    }
+
+    /**
+     * @return The melody file
+     */
+    public Path getInput() {
+      return this.input;
+    }
+
+    /**
+     * @return The harmonised file, or null if the file failed
+     */
+    public Path getOutput() {
+      return this.output;
+    }
+
+    /**
+     * @return Whether the file was harmonised and written
+     */
+    public boolean isSuccess() {
+      return this.failure == null;
+    }
+
+    /**
+     * @return Why the file failed, or null if it didn't
+     */
+    public Throwable getFailure() {
+      return this.failure;
+    }
+
+    /**
+     * @return The number of notes in the melody
+     */
+    public int getNoteCount() {
+      return this.noteCount;
+    }
+
+    /**
+     * @return The average fitness score of the harmony
+     */
+    public double getFitness() {
+      return this.fitness;
+    }
+
+    /**
+     * @return The time taken to read the melody, in nanoseconds
+     */
+    public long getReadNanos() {
+      return this.readNanos;
+    }
+
+    /**
+     * @return The time taken to harmonise the melody, in nanoseconds
+     */
+    public long getHarmoniseNanos() {
+      return this.harmoniseNanos;
+    }
+
+    /**
+     * @return The time taken to write the harmonised file, in nanoseconds
+     */
+    public long getWriteNanos() {
+      return this.writeNanos;
+    }
+
+    @Override
+    public String toString() {
+      if (!isSuccess()) {
+        return this.input + ": failed (" + this.failure + ")";
+      }
+      return String.format("%s: %d notes, fitness %.4f, read %.1f ms, harmonise %.1f ms, "
+          + "write %.1f ms", this.input, this.noteCount, this.fitness, this.readNanos / 1e6,
+          this.harmoniseNanos / 1e6, this.writeNanos / 1e6);
+    }
+  }
+
+  /**
+   * The results of a whole batch, with totals for each stage
+   */
+  public static final class Report {
+
+    private final List<FileResult> results;
+    private final long elapsedNanos;
+
+    Report(List<FileResult> results, long elapsedNanos) {
+      this.results = Collections.unmodifiableList(results);
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The result for each file, in the order the files were given
+     */
+    public List<FileResult> getResults() {
+      return this.results;
+    }
+
+    /**
+     * @return The number of files harmonised and written
+     */
+    public int getSucceeded() {
+      int succeeded = 0;
+      for (FileResult result : this.results) {
+        if (result.isSuccess()) {
+          succeeded++;
+        }
+      }
+      return succeeded;
+    }
+
+    /**
+     * @return The number of files which failed
+     */
+    public int getFailed() {
+      return this.results.size() - getSucceeded();
+    }
+
+    /**
+     * @return The wall clock time taken by the whole batch, in nanoseconds
+     */
+    public long getElapsedNanos() {
+      return this.elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      long read = 0;
+      long harmonise = 0;
+      long write = 0;
+      long slowest = 0;
+      for (FileResult result : this.results) {
+        read += result.readNanos;
+        harmonise += result.harmoniseNanos;
+        write += result.writeNanos;
+        slowest = Math.max(slowest, result.harmoniseNanos);
+      }
+      int files = Math.max(1, this.results.size());
+      double seconds = this.elapsedNanos / 1e9;
+      return String.format("Batch of %d files: %d succeeded, %d failed in %.2f s (%.1f files/s). "
+          + "Mean read %.1f ms, harmonise %.1f ms (slowest %.1f ms), write %.1f ms",
+          this.results.size(), getSucceeded(), getFailed(), seconds,
+          (seconds > 0) ? this.results.size() / seconds : 0, read / 1e6 / files,
+          harmonise / 1e6 / files, slowest / 1e6, write / 1e6 / files);
+    }
+  }
+
+  /**
+   * @param ioThreads The number of threads reading melodies (default 4)
+   */
+  public void setIoThreads(int ioThreads) {
+    if (ioThreads < 1) {
+      throw new InvalidParameterException("ioThreads must be at least 1");
+    }
+    this.ioThreads = ioThreads;
+  }
+
+  /**
+   * @param cpuThreads The number of threads harmonising (default one per core)
+   */
+  public void setCpuThreads(int cpuThreads) {
+    if (cpuThreads < 1) {
+      throw new InvalidParameterException("cpuThreads must be at least 1");
+    }
+    this.cpuThreads = cpuThreads;
+  }
+
+  /**
+   * @param writerThreads The number of threads writing harmonised files (default 2)
+   */
+  public void setWriterThreads(int writerThreads) {
+    if (writerThreads < 1) {
+      throw new InvalidParameterException("writerThreads must be at least 1");
+    }
+    this.writerThreads = writerThreads;
+  }
+
+  /**
+   * @param queueCapacity The number of files which may wait between one stage and the next, on top
+   *        of those being worked on (default twice the number of cores)
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 0) {
+      throw new InvalidParameterException("queueCapacity must not be negative");
+    }
+    this.queueCapacity = queueCapacity;
+  }
+
+}
@@ -0,0 +1,19 @@
+package main;
+
+/**
+ * Scores how consonant two pitches sound together. LinePopulation uses one of these to score every
+ * pair of notes which are on at the same time, so implementations should be cheap: the ones
+ * provided (IntervalConsonanceModel and PitchPairConsonanceModel) are single table lookups.
+ */
+public interface ConsonanceModel {
+
+  /**
+   * @param pitch The pitch of the first note (0-127)
+   * @param comparisonPitch The pitch of the note it is compared with (0-127)
+   * @return A score between 0 and 1, with 1 being most consonant and 0 being least
+   * @throws java.security.InvalidParameterException if either pitch is out of range (the models
+   *         provided check, as a table lookup would otherwise quietly score some other pair)
+   */
+  double getConsonanceScore(int pitch, int comparisonPitch);
+
+}
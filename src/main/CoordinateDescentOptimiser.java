@@ -0,0 +1,244 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Improves the harmony lines of a LinePopulation one note at a time: each harmony note in turn is
+ * moved to whichever pitch between its line's getMinPitch() and getMaxPitch() gives the best
+ * average fitness with every other note as it is, and this is repeated until a whole sweep over
+ * the notes changes nothing. Every change raises the fitness, so unlike GeneticOptimiser there is
+ * nothing random about it, and it settles in a few sweeps, though on a local best rather than
+ * necessarily the best harmony of all.
+ *
+ * Moving a note only changes the scores of the notes in other harmony lines which overlap it, so
+ * notes which don't overlap any of each other's can be moved at the same time without changing the
+ * result. Before the first sweep the harmony notes are coloured so that no two overlapping notes of
+ * different lines share a colour (greedily, in line then note order), and each sweep goes through
+ * the colours in turn, finding the best pitches of all the notes of one colour in parallel on a
+ * fork-join pool and then moving them together. The order of the notes within a colour makes no
+ * difference, so the result is the same whatever the number of threads.
+ */
+public class CoordinateDescentOptimiser {
+
+  static Logger logger = LoggerFactory.getLogger(CoordinateDescentOptimiser.class);
+
+  // The notes of one colour are searched in batches of at most this many per fork-join task
+  private static final int NOTES_PER_TASK = 64;
+
+  private final LinePopulation seed;
+
+  private int maxSweeps = 100;
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private int sweeps;
+  private int colourCount;
+
+  /**
+   * @param seed The population whose harmony lines are to be improved. It is not changed by the
+   *        optimiser
+   * @throws InvalidParameterException if the population has no harmony lines
+   */
+  public CoordinateDescentOptimiser(LinePopulation seed) {
+    if (seed.getNumberOfLines() < 2) {
+      throw new InvalidParameterException(
+          "The population needs at least one harmony line as well as the melody to be optimised");
+    }
+    this.seed = seed;
+  }
+
+  /**
+   * Sweep over the notes until none of them changes, or the maximum number of sweeps is reached
+   *
+   * @return A copy of the seed population with the improved harmony
+   */
+  public LinePopulation run() {
+    LinePopulation population = new LinePopulation(this.seed);
+    OverlapGraph graph = population.getOverlapGraph();
+    int[] pitches = population.getPitchesByNode();
+
+    // The harmony notes grouped by colour: those of colour c are colourNodes[colourStarts[c]] to
+    // colourNodes[colourStarts[c + 1] - 1]
+    int[] colours = colour(graph);
+    int firstNode = graph.getFirstHarmonyNode();
+    int nodeCount = graph.getNodeCount();
+    this.colourCount = 0;
+    for (int node = firstNode; node < nodeCount; node++) {
+      this.colourCount = Math.max(this.colourCount, colours[node] + 1);
+    }
+    int[] colourStarts = new int[this.colourCount + 1];
+    for (int node = firstNode; node < nodeCount; node++) {
+      colourStarts[colours[node] + 1]++;
+    }
+    for (int c = 0; c < this.colourCount; c++) {
+      colourStarts[c + 1] += colourStarts[c];
+    }
+    int[] colourNodes = new int[nodeCount - firstNode];
+    int[] filled = Arrays.copyOf(colourStarts, this.colourCount);
+    for (int node = firstNode; node < nodeCount; node++) {
+      colourNodes[filled[colours[node]]++] = node;
+    }
+
+    int[] bestPitches = new int[nodeCount];
+    this.sweeps = 0;
+    boolean changed = true;
+    while (changed && this.sweeps < this.maxSweeps) {
+      changed = false;
+      for (int c = 0; c < this.colourCount; c++) {
+        int from = colourStarts[c];
+        int to = colourStarts[c + 1];
+        this.pool.invoke(new SearchTask(population, graph, colourNodes, pitches, bestPitches, from,
+            to));
+        for (int i = from; i < to; i++) {
+          int node = colourNodes[i];
+          if (pitches[node] != bestPitches[node]) {
+            pitches[node] = bestPitches[node];
+            population.getLineAtIndex(graph.getLineOfNode(node))
+                .setPitchAtIndex(graph.getNoteOfNode(node), bestPitches[node]);
+            changed = true;
+          }
+        }
+      }
+      this.sweeps++;
+    }
+    population.invalidateFitnessCache();
+
+    logger.info("Coordinate descent {} after {} sweeps over {} colours",
+        changed ? "stopped" : "converged", this.sweeps, this.colourCount);
+    return population;
+  }
+
+  /**
+   * Greedily colour the harmony notes, giving each the lowest colour not already taken by an
+   * overlapping note of another harmony line. The melody's notes are left at -1
+   */
+  private static int[] colour(OverlapGraph graph) {
+    int nodeCount = graph.getNodeCount();
+    int[] colours = new int[nodeCount];
+    Arrays.fill(colours, -1);
+    // taken[c] == node + 1 when colour c is used by one of node's neighbours
+    int[] taken = new int[16];
+    for (int node = graph.getFirstHarmonyNode(); node < nodeCount; node++) {
+      for (int k = graph.getStart(node); k < graph.getStart(node + 1); k++) {
+        int neighbourColour = colours[graph.getNeighbourNode(k)];
+        if (neighbourColour >= 0) {
+          if (neighbourColour >= taken.length) {
+            taken = Arrays.copyOf(taken, Math.max(taken.length * 2, neighbourColour + 1));
+          }
+          taken[neighbourColour] = node + 1;
+        }
+      }
+      int colour = 0;
+      while (colour < taken.length && taken[colour] == node + 1) {
+        colour++;
+      }
+      colours[node] = colour;
+    }
+    return colours;
+  }
+
+  /**
+   * @return The number of sweeps made by the last call to run()
+   */
+  public int getSweeps() {
+    return this.sweeps;
+  }
+
+  /**
+   * @return The number of colours the notes were split into by the last call to run(), which is
+   *         the number of steps in each sweep
+   */
+  public int getColourCount() {
+    return this.colourCount;
+  }
+
+  /**
+   * @param maxSweeps The most sweeps made over the notes (at least 1, default 100)
+   */
+  public void setMaxSweeps(int maxSweeps) {
+    if (maxSweeps < 1) {
+      throw new InvalidParameterException("maxSweeps must be at least 1");
+    }
+    this.maxSweeps = maxSweeps;
+  }
+
+  /**
+   * @param pool The fork-join pool on which the notes of each colour are searched (default the
+   *        common pool)
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Finds the best pitch of each note in a range of one colour's notes, without moving any, so the
+   * notes can be searched in any order
+   */
+  private static class SearchTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LinePopulation population;
+    private final OverlapGraph graph;
+    private final int[] colourNodes;
+    private final int[] pitches;
+    private final int[] bestPitches;
+    private final int from;
+    private final int to;
+
+    SearchTask(LinePopulation population, OverlapGraph graph, int[] colourNodes, int[] pitches,
+        int[] bestPitches, int from, int to) {
+      this.population = population;
+      this.graph = graph;
+      this.colourNodes = colourNodes;
+      this.pitches = pitches;
+      this.bestPitches = bestPitches;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from > NOTES_PER_TASK) {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(new SearchTask(this.population, this.graph, this.colourNodes, this.pitches,
+            this.bestPitches, this.from, mid),
+            new SearchTask(this.population, this.graph, this.colourNodes, this.pitches,
+                this.bestPitches, mid, this.to));
+        return;
+      }
+
+      ConsonanceModel model = this.population.getConsonanceModel();
+      double[] gains = new double[128];
+      for (int i = this.from; i < this.to; i++) {
+        int node = this.colourNodes[i];
+        Line line = this.population.getLineAtIndex(this.graph.getLineOfNode(node));
+        int minPitch = line.getMinPitch();
+        int range = line.getMaxPitch() - minPitch + 1;
+        if (gains.length != range) {
+          gains = new double[range];
+        }
+        this.graph.computeGains(node, this.pitches, model, minPitch, gains);
+
+        // Only move to a strictly better pitch, so that sweeps stop once nothing improves
+        int current = this.pitches[node];
+        int best = current;
+        double bestGain = (current >= minPitch && current < minPitch + range)
+            ? gains[current - minPitch] : Double.NEGATIVE_INFINITY;
+        for (int p = 0; p < range; p++) {
+          if (gains[p] > bestGain) {
+            bestGain = gains[p];
+            best = minPitch + p;
+          }
+        }
+        this.bestPitches[node] = best;
+      }
+    }
+  }
+
+}
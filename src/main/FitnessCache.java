@@ -0,0 +1,197 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the average fitness of populations which have already been scored, so that scoring the
+ * same harmony again costs a hash lookup rather than a full evaluation. In a genetic optimiser the
+ * elites are scored again every generation and children often come out the same as a parent, so
+ * many candidates recur.
+ *
+ * A population is looked up by the pitches of all its harmony lines, together with the identity of
+ * its melody and consonance model. The full pitches are kept and compared, so different harmonies
+ * are never confused even if their hashes collide. The timings of the harmony lines are not part of
+ * the key, so every population looked up with the same melody must have harmony lines with the same
+ * timings, as populations copied from one another (and so every candidate of a GeneticOptimiser)
+ * do. The melody must not be changed while it has entries in the cache.
+ *
+ * Once the cache holds its maximum number of entries the least recently used one is dropped for
+ * each new one. A cache can be shared between threads.
+ */
+public class FitnessCache {
+
+  private final int maxEntries;
+  private final LinkedHashMap<Key, Double> entries;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxEntries The most populations remembered at once
+   * @throws InvalidParameterException if maxEntries is not at least 1
+   */
+  public FitnessCache(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new InvalidParameterException("maxEntries must be at least 1");
+    }
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<Key, Double>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest) {
+        if (size() > maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get the average fitness of a population from the cache, or work it out with
+   * LinePopulation.getAverageFitnessScore() and remember it
+   *
+   * @param population The population
+   * @return Its average fitness
+   */
+  public double getAverageFitnessScore(LinePopulation population) {
+    Key key = new Key(population);
+    synchronized (this) {
+      Double fitness = this.entries.get(key);
+      if (fitness != null) {
+        this.hits++;
+        Metrics.FITNESS_CACHE_HITS.increment();
+        return fitness;
+      }
+      this.misses++;
+      Metrics.FITNESS_CACHE_MISSES.increment();
+    }
+
+    // Scored outside the lock, so that other threads can use the cache meanwhile. If two threads
+    // score the same harmony at once, they both put the same value
+    double fitness = population.getAverageFitnessScore();
+    synchronized (this) {
+      this.entries.put(key, fitness);
+    }
+    return fitness;
+  }
+
+  /**
+   * @return The number of lookups found in the cache
+   */
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * @return The number of lookups which had to be scored
+   */
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * @return The number of entries dropped to make room for new ones
+   */
+  public synchronized long getEvictions() {
+    return this.evictions;
+  }
+
+  /**
+   * @return The fraction of lookups found in the cache, or 0 if there have been none
+   */
+  public synchronized double getHitRate() {
+    long lookups = this.hits + this.misses;
+    return (lookups == 0) ? 0 : (double) this.hits / lookups;
+  }
+
+  /**
+   * @return The number of populations remembered
+   */
+  public synchronized int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * @return The most populations remembered at once
+   */
+  public int getMaxEntries() {
+    return this.maxEntries;
+  }
+
+  /**
+   * Forget every entry. The statistics are kept
+   */
+  public synchronized void clear() {
+    this.entries.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d/%d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+        this.entries.size(), this.maxEntries, this.hits, this.misses, 100 * getHitRate(),
+        this.evictions);
+  }
+
+  /**
+   * The pitches of a population's harmony lines, one line after another with a line's length
+   * before its pitches, and the melody and consonance model they were scored against
+   */
+  private static final class Key {
+
+    private final Line melody;
+    private final ConsonanceModel consonanceModel;
+    private final int[] pitches;
+    private final int hash;
+
+    Key(LinePopulation population) {
+      this.melody = population.getMelody();
+      this.consonanceModel = population.getConsonanceModel();
+
+      int size = 0;
+      for (int l = 1; l < population.getNumberOfLines(); l++) {
+        size += 1 + population.getLineAtIndex(l).getLength();
+      }
+      this.pitches = new int[size];
+
+      // A rolling hash over the pitches, built as they are copied
+      int h = System.identityHashCode(this.melody) * 31
+          + System.identityHashCode(this.consonanceModel);
+      int p = 0;
+      for (int l = 1; l < population.getNumberOfLines(); l++) {
+        Line line = population.getLineAtIndex(l);
+        this.pitches[p++] = line.getLength();
+        h = h * 31 + line.getLength();
+        for (int n = 0; n < line.getLength(); n++) {
+          int pitch = line.getPitchAtIndex(n);
+          this.pitches[p++] = pitch;
+          h = h * 31 + pitch;
+        }
+      }
+      this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return this.hash == key.hash && this.melody == key.melody
+          && this.consonanceModel == key.consonanceModel
+          && Arrays.equals(this.pitches, key.pitches);
+    }
+  }
+
+}
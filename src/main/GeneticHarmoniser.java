@@ -0,0 +1,143 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Harmonises a melody by adding a line for each voice and evolving their pitches with a
+ * GeneticOptimiser.
+ *
+ * When called from a fork-join pool (as BatchHarmoniser does) the optimiser breeds and scores its
+ * candidates on that same pool, so running many harmonisations at once never uses more threads than
+ * the pool has. Otherwise the common pool is used.
+ *
+ * The settings should all be made before the harmoniser is first used, after which it can be used
+ * from any number of threads.
+ */
+public class GeneticHarmoniser implements Harmoniser {
+
+  // The pitch bounds of each harmony line, as {minPitch, maxPitch}
+  private final List<int[]> voices = new ArrayList<int[]>();
+
+  private int populationSize = 50;
+  private int maxGenerations = 1000;
+  private long timeBudgetMillis = Long.MAX_VALUE;
+
+  // If set, every melody is harmonised from this seed, so the results can be repeated exactly
+  private Long seed;
+
+  /**
+   * Add a voice, which will be given a harmony line with pitches between minPitch and maxPitch. If
+   * no voices are added, a single voice from C3 (48) to C4 (60) is used
+   *
+   * @param minPitch The lowest pitch of the voice
+   * @param maxPitch The highest pitch of the voice
+   * @throws InvalidParameterException if the pitches are invalid
+   */
+  public void addVoice(int minPitch, int maxPitch) {
+    if (minPitch < 0 || maxPitch > 127 || minPitch >= maxPitch) {
+      throw new InvalidParameterException("Voices need 0 <= minPitch < maxPitch <= 127, not "
+          + minPitch + " and " + maxPitch);
+    }
+    this.voices.add(new int[] {minPitch, maxPitch});
+  }
+
+  @Override
+  public LinePopulation harmonise(Line melody) {
+    LinePopulation population = new LinePopulation(melody);
+    SplittableRandom random = createRandom();
+
+    if (this.voices.isEmpty()) {
+      population.addNewLineWithMelodyAsTemplate(48, 60, random);
+    }
+    for (int[] voice : this.voices) {
+      population.addNewLineWithMelodyAsTemplate(voice[0], voice[1], random);
+    }
+
+    return optimise(population, random.split());
+  }
+
+  /**
+   * Evolve the harmony lines of a population which already has them, ignoring the voices set here
+   *
+   * @param population The population to be optimised, which is not changed
+   * @return The best population found
+   */
+  public LinePopulation optimise(LinePopulation population) {
+    return optimise(population, createRandom().split());
+  }
+
+  private LinePopulation optimise(LinePopulation population, SplittableRandom random) {
+    return createOptimiser(population, random).run();
+  }
+
+  /**
+   * Set up an optimiser for a population which already has its harmony lines, without running it,
+   * for callers which need to be able to cancel it (see HarmonisationService)
+   *
+   * @param population The population to be optimised, which is not changed
+   * @return The optimiser, using the pool of the calling thread as optimise does
+   */
+  GeneticOptimiser createOptimiser(LinePopulation population) {
+    return createOptimiser(population, createRandom().split());
+  }
+
+  private GeneticOptimiser createOptimiser(LinePopulation population, SplittableRandom random) {
+    GeneticOptimiser optimiser = new GeneticOptimiser(population);
+    optimiser.setPopulationSize(this.populationSize);
+    optimiser.setMaxGenerations(this.maxGenerations);
+    optimiser.setTimeBudgetMillis(this.timeBudgetMillis);
+    optimiser.setRandomGenerator(random);
+    optimiser.setPool(
+        ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool());
+    return optimiser;
+  }
+
+  private SplittableRandom createRandom() {
+    return (this.seed == null) ? new SplittableRandom() : new SplittableRandom(this.seed);
+  }
+
+  /**
+   * @param populationSize The number of candidates in each generation of the optimiser (default 50)
+   */
+  public void setPopulationSize(int populationSize) {
+    if (populationSize < 2) {
+      throw new InvalidParameterException("populationSize must be at least 2");
+    }
+    this.populationSize = populationSize;
+  }
+
+  /**
+   * @param maxGenerations The number of generations the optimiser runs for (default 1000)
+   */
+  public void setMaxGenerations(int maxGenerations) {
+    if (maxGenerations < 0) {
+      throw new InvalidParameterException("maxGenerations must not be negative");
+    }
+    this.maxGenerations = maxGenerations;
+  }
+
+  /**
+   * @param timeBudgetMillis The longest the optimiser may spend on each melody, in milliseconds
+   *        (default no limit)
+   */
+  public void setTimeBudgetMillis(long timeBudgetMillis) {
+    if (timeBudgetMillis < 0) {
+      throw new InvalidParameterException("timeBudgetMillis must not be negative");
+    }
+    this.timeBudgetMillis = timeBudgetMillis;
+  }
+
+  /**
+   * @param seed The seed from which every melody is harmonised, so that the harmonies can be
+   *        regenerated exactly (default a different random seed each time)
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+}
@@ -0,0 +1,697 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGenerator.SplittableGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evolves the harmony lines of a LinePopulation with a genetic algorithm.
+ *
+ * The optimiser keeps a population of candidate LinePopulations, all sharing the same melody. Each
+ * generation the best candidates are carried over unchanged (elitism), and the rest are bred from
+ * parents picked by tournament selection, using note-level crossover followed by mutation of the
+ * pitches. Candidates are scored with LinePopulation.getAverageFitnessScore, and the scoring is
+ * spread across the cores of a fork-join pool as it is by far the most expensive part. Candidates
+ * which have been scored before (the elites, and children which come out the same as a parent)
+ * are found in a FitnessCache instead of being scored again (see setFitnessCacheSize). When scoring
+ * is expensive, a SurrogateFitnessModel can be set to screen a larger batch of children each
+ * generation so that only the most promising are scored (see setSurrogate).
+ *
+ * Evolution stops after a maximum number of generations, when a time budget runs out, or when the
+ * best fitness has stopped improving, whichever happens first. The settings all have defaults, so
+ * the simplest use is new GeneticOptimiser(population).run()
+ *
+ * Every new candidate gets a generator of its own, split off from the optimiser's generator in a
+ * fixed order before the candidates are bred, so breeding can be spread across the pool as well
+ * without the threads sharing a generator. Runs given the same seed (see setSeed) therefore breed
+ * exactly the same candidates, however many threads the pool has, until a time budget cuts them
+ * short.
+ */
+public class GeneticOptimiser {
+
+  static Logger logger = LoggerFactory.getLogger(GeneticOptimiser.class);
+
+  /**
+   * The reasons for which run() can finish
+   */
+  public enum StopReason {
+    /**
+     * The maximum number of generations was reached
+     */
+    GENERATIONS,
+    /**
+     * The time budget ran out
+     */
+    TIME_BUDGET,
+    /**
+     * The best fitness stopped improving
+     */
+    CONVERGED,
+    /**
+     * cancel() was called
+     */
+    CANCELLED
+  }
+
+  // The candidates are bred and scored in batches of at most this many per fork-join task
+  private static final int CANDIDATES_PER_TASK = 1;
+
+  private final LinePopulation seed;
+
+  private int populationSize = 50;
+  private int tournamentSize = 3;
+  private int eliteCount = 2;
+  private double crossoverRate = 0.9;
+  private double mutationRate = 0.02;
+
+  private int maxGenerations = 1000;
+  private long timeBudgetMillis = Long.MAX_VALUE;
+  private int convergenceGenerations = 50;
+  private double convergenceThreshold = 1e-6;
+
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  private int fitnessCacheSize = 200;
+  private FitnessCache fitnessCache;
+  private SurrogateFitnessModel surrogate;
+  private int screeningFactor = 1;
+  // Created from a random seed by initialise() if setSeed or setRandomGenerator hasn't been called
+  private SplittableGenerator random;
+
+  // The current generation, sorted best first once evaluated
+  private List<LinePopulation> candidates;
+  private double[] fitnesses;
+  private int generation;
+
+  // Used for the convergence check
+  private double bestFitnessAtLastImprovement;
+  private int generationOfLastImprovement;
+
+  private StopReason stopReason;
+  // Set by cancel(), from any thread
+  private volatile boolean cancelled;
+
+  /**
+   * Create an optimiser for the harmony lines of a population. The population should already have
+   * its harmony lines (see LinePopulation.addNewLineWithMelodyAsTemplate), and is used as one of
+   * the starting candidates. It is not changed by the optimiser.
+   *
+   * @param seed The population to be optimised
+   * @throws InvalidParameterException if the population has no harmony lines
+   */
+  public GeneticOptimiser(LinePopulation seed) {
+    if (seed.getNumberOfLines() < 2) {
+      throw new InvalidParameterException(
+          "The population needs at least one harmony line as well as the melody to be optimised");
+    }
+    this.seed = seed;
+  }
+
+  /**
+   * Evolve the candidates until one of the stopping conditions is met, or cancel() is called
+   *
+   * @return The best candidate found, or null if cancelled before the first generation was created
+   */
+  public LinePopulation run() {
+    long startTime = System.nanoTime();
+    long timeBudgetNanos = (this.timeBudgetMillis >= Long.MAX_VALUE / 1000000L) ? Long.MAX_VALUE
+        : this.timeBudgetMillis * 1000000L;
+
+    if (this.candidates == null && !this.cancelled) {
+      initialise();
+    }
+
+    while (true) {
+      if (this.cancelled) {
+        this.stopReason = StopReason.CANCELLED;
+        break;
+      }
+      if (this.generation >= this.maxGenerations) {
+        this.stopReason = StopReason.GENERATIONS;
+        break;
+      }
+      if (System.nanoTime() - startTime >= timeBudgetNanos) {
+        this.stopReason = StopReason.TIME_BUDGET;
+        break;
+      }
+      if (this.generation - this.generationOfLastImprovement >= this.convergenceGenerations) {
+        this.stopReason = StopReason.CONVERGED;
+        break;
+      }
+      evolveGeneration();
+    }
+
+    if (this.candidates == null) {
+      logger.info("Genetic optimiser cancelled before it started");
+      return null;
+    }
+    logger.info("Genetic optimiser stopped ({}) after {} generations with best fitness {}",
+        this.stopReason, this.generation, getBestFitness());
+    if (this.fitnessCache != null) {
+      logger.debug("Fitness cache: {}", this.fitnessCache);
+    }
+
+    return getBest();
+  }
+
+  /**
+   * Create and score the first generation of candidates. The seed population is kept as it is and
+   * the rest are copies of it with all of their harmony pitches randomised. Called by run() if it
+   * hasn't been called already
+   */
+  public void initialise() {
+    if (this.random == null) {
+      this.random = new SplittableRandom();
+    }
+    this.fitnessCache =
+        (this.fitnessCacheSize > 0) ? new FitnessCache(this.fitnessCacheSize) : null;
+
+    this.candidates = new ArrayList<LinePopulation>(this.populationSize);
+    this.candidates.add(new LinePopulation(this.seed));
+    while (this.candidates.size() < this.populationSize) {
+      RandomGenerator candidateRandom = this.random.split();
+      LinePopulation candidate = new LinePopulation(this.seed);
+      for (int l = 1; l < candidate.getNumberOfLines(); l++) {
+        Line line = candidate.getLineAtIndex(l);
+        for (int n = 0; n < line.getLength(); n++) {
+          line.mutatePitchAtIndex(n, candidateRandom);
+        }
+      }
+      this.candidates.add(candidate);
+    }
+
+    this.generation = 0;
+    evaluateAndSort(0, this.candidates.size());
+    this.bestFitnessAtLastImprovement = getBestFitness();
+    this.generationOfLastImprovement = 0;
+  }
+
+  /**
+   * Breed and score one new generation of candidates
+   */
+  public void evolveGeneration() {
+    if (this.candidates == null) {
+      initialise();
+    }
+    long start = Metrics.GENERATIONS.start();
+
+    List<LinePopulation> nextGeneration = new ArrayList<LinePopulation>(this.populationSize);
+
+    // The best candidates go through unchanged
+    for (int i = 0; i < Math.min(this.eliteCount, this.candidates.size()); i++) {
+      nextGeneration.add(this.candidates.get(i));
+    }
+
+    // Split off a generator for each child in order, then breed them all on the pool. Once the
+    // surrogate has been trained, screeningFactor times as many children are bred, and only the
+    // best of them by the surrogate's guess are kept to be scored
+    int childCount = this.populationSize - nextGeneration.size();
+    int bredCount = (this.surrogate != null && this.surrogate.isTrained())
+        ? childCount * this.screeningFactor : childCount;
+    RandomGenerator[] childRandoms = new RandomGenerator[bredCount];
+    for (int i = 0; i < bredCount; i++) {
+      childRandoms[i] = this.random.split();
+    }
+    LinePopulation[] children = new LinePopulation[bredCount];
+    this.pool.invoke(new BreedTask(childRandoms, children, 0, bredCount));
+    if (bredCount > childCount) {
+      children = screen(children, childCount);
+    }
+    for (LinePopulation child : children) {
+      nextGeneration.add(child);
+    }
+
+    this.candidates = nextGeneration;
+    this.generation++;
+    // The elites were given to the surrogate when they were first scored
+    evaluateAndSort(Math.min(this.eliteCount, nextGeneration.size()), nextGeneration.size());
+    checkForImprovement();
+    Metrics.GENERATIONS.stop(start);
+  }
+
+  /**
+   * Replace the worst candidates of the current generation with the given ones, for example the
+   * best candidates of another optimiser (see IslandOptimiser), then score and sort the generation
+   * again. The elites are never replaced, so at most populationSize - eliteCount candidates are
+   * taken, from the start of the list
+   *
+   * @param migrants The candidates to be taken in, which must have the same melody and harmony
+   *        lines as the seed
+   */
+  public void immigrate(List<LinePopulation> migrants) {
+    if (this.candidates == null) {
+      initialise();
+    }
+    int size = this.candidates.size();
+    int count = Math.min(migrants.size(), size - Math.min(this.eliteCount, size));
+    for (int i = 0; i < count; i++) {
+      this.candidates.set(size - 1 - i, migrants.get(i));
+    }
+    // Only the migrants are new to the surrogate
+    evaluateAndSort(size - count, size);
+    checkForImprovement();
+  }
+
+  private void checkForImprovement() {
+    if (getBestFitness() > this.bestFitnessAtLastImprovement + this.convergenceThreshold) {
+      this.bestFitnessAtLastImprovement = getBestFitness();
+      this.generationOfLastImprovement = this.generation;
+    }
+  }
+
+  /**
+   * @return The best candidate in the current generation
+   */
+  public LinePopulation getBest() {
+    if (this.candidates == null) {
+      initialise();
+    }
+    return this.candidates.get(0);
+  }
+
+  /**
+   * @param count The number of candidates wanted
+   * @return The best candidates in the current generation, best first (fewer than count if the
+   *         generation is smaller)
+   */
+  public List<LinePopulation> getBest(int count) {
+    if (this.candidates == null) {
+      initialise();
+    }
+    return new ArrayList<LinePopulation>(
+        this.candidates.subList(0, Math.min(count, this.candidates.size())));
+  }
+
+  /**
+   * @param count The number of candidates wanted
+   * @return The fitness of each of the best candidates in the current generation, best first
+   */
+  public double[] getBestFitnesses(int count) {
+    if (this.candidates == null) {
+      initialise();
+    }
+    return Arrays.copyOf(this.fitnesses, Math.min(count, this.fitnesses.length));
+  }
+
+  /**
+   * @return The fitness of the best candidate in the current generation
+   */
+  public double getBestFitness() {
+    if (this.candidates == null) {
+      initialise();
+    }
+    return this.fitnesses[0];
+  }
+
+  /**
+   * Ask run() to stop once the generation in progress has been bred and scored, so the threads it
+   * uses are freed. Can be called from any thread, before or during run()
+   */
+  public void cancel() {
+    this.cancelled = true;
+  }
+
+  /**
+   * @return The number of generations bred since initialise() was called
+   */
+  public int getGeneration() {
+    return this.generation;
+  }
+
+  /**
+   * @return Why the last call to run() finished, or null if it hasn't been called
+   */
+  public StopReason getStopReason() {
+    return this.stopReason;
+  }
+
+  /**
+   * Breed one child from the current generation. This only reads the current generation, so any
+   * number of children can be bred at once
+   *
+   * @param random The generator for this child alone
+   */
+  private LinePopulation breed(RandomGenerator random) {
+    LinePopulation parent = selectByTournament(random);
+    LinePopulation child;
+    if (random.nextDouble() < this.crossoverRate) {
+      child = crossover(parent, selectByTournament(random), random);
+    } else {
+      child = new LinePopulation(parent);
+    }
+    mutate(child, random);
+    return child;
+  }
+
+  /**
+   * Pick the fittest of tournamentSize randomly chosen candidates. The candidates are sorted best
+   * first, so this is the one with the lowest index
+   */
+  private LinePopulation selectByTournament(RandomGenerator random) {
+    int best = this.candidates.size();
+    for (int i = 0; i < this.tournamentSize; i++) {
+      best = Math.min(best, random.nextInt(this.candidates.size()));
+    }
+    return this.candidates.get(best);
+  }
+
+  /**
+   * Note-level uniform crossover: each harmony note of the child takes its pitch from one parent or
+   * the other with equal probability. The parents share their rhythm, so the notes line up
+   */
+  private LinePopulation crossover(LinePopulation mother, LinePopulation father,
+      RandomGenerator random) {
+    LinePopulation child = new LinePopulation(mother);
+    for (int l = 1; l < child.getNumberOfLines(); l++) {
+      Line childLine = child.getLineAtIndex(l);
+      Line fatherLine = father.getLineAtIndex(l);
+      for (int n = 0; n < childLine.getLength(); n++) {
+        if (random.nextBoolean()) {
+          childLine.setPitchAtIndex(n, fatherLine.getPitchAtIndex(n));
+        }
+      }
+    }
+    return child;
+  }
+
+  /**
+   * Mutate each harmony note of the candidate with probability mutationRate
+   */
+  private void mutate(LinePopulation candidate, RandomGenerator random) {
+    for (int l = 1; l < candidate.getNumberOfLines(); l++) {
+      Line line = candidate.getLineAtIndex(l);
+      for (int n = 0; n < line.getLength(); n++) {
+        if (random.nextDouble() < this.mutationRate) {
+          line.mutatePitchAtIndex(n, random);
+        }
+      }
+    }
+  }
+
+  /**
+   * Keep the children the surrogate guesses are best, in the order they were bred
+   */
+  private LinePopulation[] screen(LinePopulation[] children, int keepCount) {
+    double[] guesses = this.surrogate.predict(Arrays.asList(children));
+    Integer[] order = new Integer[children.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    // A stable sort, so that equal guesses are kept in the order they were bred
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer first, Integer second) {
+        return Double.compare(guesses[second], guesses[first]);
+      }
+    });
+    boolean[] kept = new boolean[children.length];
+    for (int i = 0; i < keepCount; i++) {
+      kept[order[i]] = true;
+    }
+    LinePopulation[] screened = new LinePopulation[keepCount];
+    int next = 0;
+    for (int i = 0; i < children.length; i++) {
+      if (kept[i]) {
+        screened[next++] = children[i];
+      }
+    }
+    return screened;
+  }
+
+  /**
+   * Score every candidate on the pool, then sort the candidates best first. The new candidates are
+   * given to the surrogate to learn from, if there is one
+   *
+   * @param firstNew The index of the first candidate the surrogate hasn't seen
+   * @param endOfNew The index after the last of them
+   */
+  private void evaluateAndSort(int firstNew, int endOfNew) {
+    int count = this.candidates.size();
+    double[] scores = new double[count];
+    this.pool.invoke(new FitnessTask(this.candidates, this.fitnessCache, scores, 0, count));
+
+    if (this.surrogate != null) {
+      for (int i = firstNew; i < endOfNew; i++) {
+        this.surrogate.addSample(this.candidates.get(i), scores[i]);
+      }
+      this.surrogate.train();
+    }
+
+    // Insertion sort of the indices by score, best first. Ties keep their order so that elites stay
+    // ahead of equally good children
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      int j = i;
+      while (j > 0 && scores[order[j - 1]] < scores[i]) {
+        order[j] = order[j - 1];
+        j--;
+      }
+      order[j] = i;
+    }
+
+    List<LinePopulation> sorted = new ArrayList<LinePopulation>(count);
+    this.fitnesses = new double[count];
+    for (int i = 0; i < count; i++) {
+      sorted.add(this.candidates.get(order[i]));
+      this.fitnesses[i] = scores[order[i]];
+    }
+    this.candidates = sorted;
+  }
+
+  /**
+   * Breeds a range of children, splitting it in half until it is small enough to do directly
+   */
+  private class BreedTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final RandomGenerator[] childRandoms;
+    private final LinePopulation[] children;
+    private final int from;
+    private final int to;
+
+    BreedTask(RandomGenerator[] childRandoms, LinePopulation[] children, int from, int to) {
+      this.childRandoms = childRandoms;
+      this.children = children;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= CANDIDATES_PER_TASK) {
+        for (int i = this.from; i < this.to; i++) {
+          this.children[i] = breed(this.childRandoms[i]);
+        }
+      } else {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(new BreedTask(this.childRandoms, this.children, this.from, mid),
+            new BreedTask(this.childRandoms, this.children, mid, this.to));
+      }
+    }
+  }
+
+  /**
+   * Scores a range of candidates, splitting it in half until it is small enough to do directly
+   */
+  private static class FitnessTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<LinePopulation> candidates;
+    private final FitnessCache cache;
+    private final double[] scores;
+    private final int from;
+    private final int to;
+
+    FitnessTask(List<LinePopulation> candidates, FitnessCache cache, double[] scores, int from,
+        int to) {
+      this.candidates = candidates;
+      this.cache = cache;
+      this.scores = scores;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= CANDIDATES_PER_TASK) {
+        for (int i = this.from; i < this.to; i++) {
+          LinePopulation candidate = this.candidates.get(i);
+          this.scores[i] = (this.cache != null) ? this.cache.getAverageFitnessScore(candidate)
+              : candidate.getAverageFitnessScore();
+        }
+      } else {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(new FitnessTask(this.candidates, this.cache, this.scores, this.from, mid),
+            new FitnessTask(this.candidates, this.cache, this.scores, mid, this.to));
+      }
+    }
+  }
+
+  /**
+   * @param populationSize The number of candidates in each generation (at least 2, default 50)
+   */
+  public void setPopulationSize(int populationSize) {
+    if (populationSize < 2) {
+      throw new InvalidParameterException("populationSize must be at least 2");
+    }
+    this.populationSize = populationSize;
+  }
+
+  /**
+   * @param tournamentSize The number of candidates which compete to be picked as each parent (at
+   *        least 1, default 3). Larger tournaments favour the fitter candidates more strongly
+   */
+  public void setTournamentSize(int tournamentSize) {
+    if (tournamentSize < 1) {
+      throw new InvalidParameterException("tournamentSize must be at least 1");
+    }
+    this.tournamentSize = tournamentSize;
+  }
+
+  /**
+   * @param eliteCount The number of best candidates carried over unchanged to each new generation
+   *        (default 2)
+   */
+  public void setEliteCount(int eliteCount) {
+    if (eliteCount < 0) {
+      throw new InvalidParameterException("eliteCount must not be negative");
+    }
+    this.eliteCount = eliteCount;
+  }
+
+  /**
+   * @param crossoverRate The probability that a child is bred from two parents rather than copied
+   *        from one (between 0 and 1, default 0.9)
+   */
+  public void setCrossoverRate(double crossoverRate) {
+    if (crossoverRate < 0 || crossoverRate > 1) {
+      throw new InvalidParameterException("crossoverRate must be between 0 and 1");
+    }
+    this.crossoverRate = crossoverRate;
+  }
+
+  /**
+   * @param mutationRate The probability that each harmony note of a child has its pitch mutated
+   *        (between 0 and 1, default 0.02)
+   */
+  public void setMutationRate(double mutationRate) {
+    if (mutationRate < 0 || mutationRate > 1) {
+      throw new InvalidParameterException("mutationRate must be between 0 and 1");
+    }
+    this.mutationRate = mutationRate;
+  }
+
+  /**
+   * @param maxGenerations The number of generations after which run() stops (default 1000)
+   */
+  public void setMaxGenerations(int maxGenerations) {
+    if (maxGenerations < 0) {
+      throw new InvalidParameterException("maxGenerations must not be negative");
+    }
+    this.maxGenerations = maxGenerations;
+  }
+
+  /**
+   * @param timeBudgetMillis The time after which run() stops, in milliseconds. The generation in
+   *        progress is always finished (default no limit)
+   */
+  public void setTimeBudgetMillis(long timeBudgetMillis) {
+    if (timeBudgetMillis < 0) {
+      throw new InvalidParameterException("timeBudgetMillis must not be negative");
+    }
+    this.timeBudgetMillis = timeBudgetMillis;
+  }
+
+  /**
+   * Set when the fitness counts as having converged: run() stops once the best fitness has not
+   * improved by more than threshold for the given number of generations
+   *
+   * @param generations The number of generations without improvement (default 50)
+   * @param threshold The smallest change counted as an improvement (default 1e-6)
+   */
+  public void setConvergence(int generations, double threshold) {
+    if (generations < 1 || threshold < 0) {
+      throw new InvalidParameterException(
+          "generations must be at least 1 and threshold must not be negative");
+    }
+    this.convergenceGenerations = generations;
+    this.convergenceThreshold = threshold;
+  }
+
+  /**
+   * Seed the optimiser, so that the run can be repeated exactly. Must be called before
+   * initialise() (or run()) for the whole run to be repeatable
+   *
+   * @param seed The seed for all the random choices made by the optimiser
+   */
+  public void setSeed(long seed) {
+    this.random = new SplittableRandom(seed);
+  }
+
+  /**
+   * @param random The generator from which the generators for each new candidate are split (default
+   *        a SplittableRandom with a random seed). It is only ever used from the thread calling
+   *        initialise(), run() and evolveGeneration()
+   */
+  public void setRandomGenerator(SplittableGenerator random) {
+    this.random = random;
+  }
+
+  /**
+   * @param pool The fork-join pool on which candidates are bred and scored (default the common
+   *        pool)
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * @param fitnessCacheSize The most candidates whose fitness is remembered (default 200), or 0 for
+   *        no cache. Takes effect from the next call to initialise()
+   */
+  public void setFitnessCacheSize(int fitnessCacheSize) {
+    if (fitnessCacheSize < 0) {
+      throw new InvalidParameterException("fitnessCacheSize must not be negative");
+    }
+    this.fitnessCacheSize = fitnessCacheSize;
+  }
+
+  /**
+   * Screen the children of each generation with a learned guess at their fitness, so that fewer
+   * are scored exactly. The surrogate learns from every candidate scored, and once it has enough
+   * samples to be trained (see SurrogateFitnessModel.setMinSamples) each generation breeds
+   * screeningFactor times as many children as it needs and only scores the best of them by the
+   * surrogate's guess. This is worth it when scoring costs much more than breeding and working out
+   * the surrogate's features, for example with a slow consonance model or a long score.
+   *
+   * @param surrogate The model, or null to score every child (the default)
+   * @param screeningFactor How many children are bred for each one scored (at least 1)
+   */
+  public void setSurrogate(SurrogateFitnessModel surrogate, int screeningFactor) {
+    if (screeningFactor < 1) {
+      throw new InvalidParameterException("screeningFactor must be at least 1");
+    }
+    this.surrogate = surrogate;
+    this.screeningFactor = screeningFactor;
+  }
+
+  /**
+   * @return The cache of candidates' fitness, with its hit rate, or null if there isn't one or
+   *         initialise() hasn't been called
+   */
+  public FitnessCache getFitnessCache() {
+    return this.fitnessCache;
+  }
+
+}
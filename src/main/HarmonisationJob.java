@@ -0,0 +1,90 @@
+package main;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * One request to a HarmonisationService: a melody, given as a Line or as the path of a midi file,
+ * and the pitch ranges of the voices to be written for it
+ */
+public class HarmonisationJob {
+
+  private final Line melody;
+  private final String filepath;
+
+  // The pitch bounds of each harmony line, as {minPitch, maxPitch}
+  private final List<int[]> voices = new ArrayList<int[]>();
+
+  private Long seed;
+
+  /**
+   * @param melody The melody to be harmonised
+   */
+  public HarmonisationJob(Line melody) {
+    this.melody = melody;
+    this.filepath = null;
+  }
+
+  /**
+   * @param filepath The path of a midi file holding the melody to be harmonised. It is read when
+   *        the job is run, on the job's own thread
+   */
+  public HarmonisationJob(String filepath) {
+    this.melody = null;
+    this.filepath = filepath;
+  }
+
+  /**
+   * Add a voice, which will be given a harmony line with pitches between minPitch and maxPitch. A
+   * job needs at least one voice
+   *
+   * @param minPitch The lowest pitch of the voice
+   * @param maxPitch The highest pitch of the voice
+   * @throws InvalidParameterException if the pitches are invalid
+   */
+  public void addVoice(int minPitch, int maxPitch) {
+    if (minPitch < 0 || maxPitch > 127 || minPitch >= maxPitch) {
+      throw new InvalidParameterException("Voices need 0 <= minPitch < maxPitch <= 127, not "
+          + minPitch + " and " + maxPitch);
+    }
+    this.voices.add(new int[] {minPitch, maxPitch});
+  }
+
+  /**
+   * @param seed The seed for the starting pitches of the voices (default a random seed)
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Read the melody if need be, and create a population with a harmony line for each voice
+   *
+   * @return The population, ready to be optimised
+   * @throws InvalidMidiDataException if the melody file is not valid midi
+   * @throws IOException if the melody file can't be read
+   * @throws InvalidParameterException if no voices have been added
+   */
+  LinePopulation createPopulation() throws InvalidMidiDataException, IOException {
+    if (this.voices.isEmpty()) {
+      throw new InvalidParameterException("A job needs at least one voice");
+    }
+
+    Line line = (this.melody != null) ? this.melody
+        : StandardMidiFileReader.readMelody(this.filepath);
+    SplittableRandom random = (this.seed == null) ? new SplittableRandom()
+        : new SplittableRandom(this.seed);
+
+    LinePopulation population = new LinePopulation(line);
+    for (int[] voice : this.voices) {
+      population.addNewLineWithMelodyAsTemplate(voice[0], voice[1], random);
+    }
+    return population;
+  }
+
+}
@@ -0,0 +1,229 @@
+package main;
+
+import java.lang.reflect.InvocationTargetException;
+import java.security.InvalidParameterException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many small harmonisation jobs at once, for example to serve requests.
+ *
+ * Each job gets a thread of its own, on which its melody is read and its population set up. The
+ * expensive part, optimising the harmony, is handed to a separate, bounded fork-join pool (one
+ * thread per core by default) while the job's thread waits for it. That way the number of jobs in
+ * flight is not limited by the number of cores, and the cores are never oversubscribed however
+ * many jobs there are. Cancelling a job's future (with interruption) stops its optimisation too,
+ * once the generation in progress is finished, so the pool is freed for the other jobs.
+ *
+ * With RequestThreads.VIRTUAL, each job runs on a virtual thread, which costs a few hundred bytes
+ * while it waits rather than the megabyte or so of stack of a platform thread, so thousands of jobs
+ * can be in flight at once. Virtual threads need Java 21 or later; on earlier versions the service
+ * falls back to platform threads, logging a warning (see isUsingVirtualThreads).
+ *
+ * Platform threads are pooled, with a bounded number of them (four per optimising thread by
+ * default), so a burst of jobs queues up rather than starting a thread and its stack for each.
+ *
+ * Services should be closed once they are finished with, to stop their threads.
+ */
+public class HarmonisationService implements AutoCloseable {
+
+  static Logger logger = LoggerFactory.getLogger(HarmonisationService.class);
+
+  // The longest close waits for the jobs in flight before giving up on them
+  private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+  /**
+   * The kinds of thread on which jobs wait
+   */
+  public enum RequestThreads {
+    /**
+     * A new virtual thread for each job, where the JVM supports them
+     */
+    VIRTUAL,
+    /**
+     * A platform thread for each job, from a bounded pool, reused once the job is finished
+     */
+    PLATFORM
+  }
+
+  private final GeneticHarmoniser harmoniser;
+  private final ExecutorService requestExecutor;
+  private final ForkJoinPool cpuPool;
+  private final boolean usingVirtualThreads;
+
+  private final AtomicInteger jobsInFlight = new AtomicInteger();
+
+  /**
+   * Create a service which optimises on one thread per core
+   *
+   * @param harmoniser Holds the optimiser settings used for every job (its voices are ignored, as
+   *        each job has its own)
+   * @param requestThreads The kind of thread each job waits on
+   */
+  public HarmonisationService(GeneticHarmoniser harmoniser, RequestThreads requestThreads) {
+    this(harmoniser, requestThreads, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param harmoniser Holds the optimiser settings used for every job (its voices are ignored, as
+   *        each job has its own)
+   * @param requestThreads The kind of thread each job waits on
+   * @param cpuThreads The number of threads optimising harmonies
+   */
+  public HarmonisationService(GeneticHarmoniser harmoniser, RequestThreads requestThreads,
+      int cpuThreads) {
+    this(harmoniser, requestThreads, cpuThreads, 4 * cpuThreads);
+  }
+
+  /**
+   * @param harmoniser Holds the optimiser settings used for every job (its voices are ignored, as
+   *        each job has its own)
+   * @param requestThreads The kind of thread each job waits on
+   * @param cpuThreads The number of threads optimising harmonies
+   * @param platformThreads The most platform threads jobs wait on at once, when platform threads
+   *        are used. Further jobs queue until one finishes
+   * @throws InvalidParameterException if either number of threads is less than 1
+   */
+  public HarmonisationService(GeneticHarmoniser harmoniser, RequestThreads requestThreads,
+      int cpuThreads, int platformThreads) {
+    if (cpuThreads < 1 || platformThreads < 1) {
+      throw new InvalidParameterException("There must be at least one thread of each kind, not "
+          + cpuThreads + " and " + platformThreads);
+    }
+    this.harmoniser = harmoniser;
+    this.cpuPool = new ForkJoinPool(cpuThreads);
+
+    ExecutorService virtualExecutor = null;
+    if (requestThreads == RequestThreads.VIRTUAL) {
+      virtualExecutor = createVirtualThreadExecutor();
+    }
+    this.usingVirtualThreads = virtualExecutor != null;
+    this.requestExecutor =
+        this.usingVirtualThreads ? virtualExecutor : Executors.newFixedThreadPool(platformThreads);
+  }
+
+  /**
+   * Start a job
+   *
+   * @param job The job
+   * @return The best population found for the job. Getting the result throws an ExecutionException
+   *         wrapping the cause if the melody can't be read or the job is invalid
+   * @throws RejectedExecutionException if the service has been closed
+   */
+  public Future<LinePopulation> submit(final HarmonisationJob job) {
+    this.jobsInFlight.incrementAndGet();
+    try {
+      return submitToRequestThread(job);
+    } catch (RejectedExecutionException e) {
+      this.jobsInFlight.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private Future<LinePopulation> submitToRequestThread(final HarmonisationJob job) {
+    return this.requestExecutor.submit(new Callable<LinePopulation>() {
+      @Override
+      public LinePopulation call() throws Exception {
+        try {
+          // Reading the melody blocks on I/O, which is what the job's thread is for
+          final LinePopulation population = job.createPopulation();
+
+          // The optimisation goes to the bounded pool, and the job's thread waits for it
+          final GeneticOptimiser optimiser = harmoniser.createOptimiser(population);
+          optimiser.setPool(cpuPool);
+          ForkJoinTask<LinePopulation> optimisation = cpuPool.submit(
+              new Callable<LinePopulation>() {
+                @Override
+                public LinePopulation call() {
+                  return optimiser.run();
+                }
+              });
+          try {
+            return optimisation.get();
+          } catch (InterruptedException e) {
+            // The job was cancelled or the service closed. Interrupting this thread doesn't reach
+            // the pool, so the optimisation is stopped too: a queued one never starts, and a
+            // running one stops once its current generation is finished
+            optimiser.cancel();
+            optimisation.cancel(false);
+            throw e;
+          }
+        } finally {
+          jobsInFlight.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return The number of jobs submitted which haven't yet finished
+   */
+  public int getJobsInFlight() {
+    return this.jobsInFlight.get();
+  }
+
+  /**
+   * @return Whether jobs are run on virtual threads, which is only the case if they were asked for
+   *         and the JVM supports them
+   */
+  public boolean isUsingVirtualThreads() {
+    return this.usingVirtualThreads;
+  }
+
+  /**
+   * Stop taking jobs, and wait up to a minute for those in flight to finish. If they haven't by
+   * then, or the calling thread is interrupted while waiting, they are cancelled: their futures
+   * fail straight away, and their optimisations stop once the generation each is on has been
+   * scored, which happens in the background rather than being waited for (the interrupt is kept,
+   * for the caller to see)
+   */
+  @Override
+  public void close() {
+    this.requestExecutor.shutdown();
+    try {
+      if (!this.requestExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warn("{} jobs were still running after {} seconds, so are being cancelled at the"
+            + " end of their current generations", this.jobsInFlight.get(), CLOSE_TIMEOUT_SECONDS);
+        this.requestExecutor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      this.requestExecutor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    this.cpuPool.shutdown();
+  }
+
+  /**
+   * Executors.newVirtualThreadPerTaskExecutor is looked up reflectively, so the service still
+   * builds and runs on versions of Java without virtual threads
+   *
+   * @return The executor, or null if the JVM doesn't support virtual threads
+   */
+  private static ExecutorService createVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (NoSuchMethodException e) {
+      logger.warn("Virtual threads need Java 21 or later, so jobs will use platform threads");
+    } catch (InvocationTargetException e) {
+      // Java 19 and 20 have them only as a preview feature
+      logger.warn("Virtual threads are not enabled ({}), so jobs will use platform threads",
+          String.valueOf(e.getCause()));
+    } catch (IllegalAccessException e) {
+      logger.warn("Virtual threads could not be used ({}), so jobs will use platform threads",
+          e.toString());
+    }
+    return null;
+  }
+
+}
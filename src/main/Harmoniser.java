@@ -0,0 +1,15 @@
+package main;
+
+/**
+ * Something which writes harmony lines for a melody, such as a GeneticHarmoniser. Implementations
+ * are used from many threads at once by BatchHarmoniser, so must be thread safe
+ */
+public interface Harmoniser {
+
+  /**
+   * @param melody The melody to be harmonised. It must not be changed
+   * @return A population with the melody as its first line and the harmony lines after it
+   */
+  LinePopulation harmonise(Line melody);
+
+}
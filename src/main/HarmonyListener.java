@@ -0,0 +1,18 @@
+package main;
+
+/**
+ * Receives the harmony notes written by a StreamingHarmoniser once they are settled and won't be
+ * changed any more
+ */
+public interface HarmonyListener {
+
+  /**
+   * @param voice The index of the voice the note belongs to, in the order the voices were added
+   * @param timestamp The time at which the note starts
+   * @param duration The length of the note
+   * @param pitch The pitch of the note
+   * @param velocity The velocity of the note
+   */
+  void harmonyNote(int voice, long timestamp, long duration, int pitch, int velocity);
+
+}
@@ -0,0 +1,111 @@
+package main;
+
+import java.security.InvalidParameterException;
+
+/**
+ * A consonance model which only depends on the number of semitones between the two pitches, held
+ * as a table with one score for each of the 128 possible intervals between midi pitches.
+ */
+public final class IntervalConsonanceModel implements ConsonanceModel {
+
+  /**
+   * The model used unless another is set (see LinePopulation.setConsonanceModel), matching
+   * Note.calculateIPitchConsonanceScore
+   */
+  public static final IntervalConsonanceModel DEFAULT =
+      new IntervalConsonanceModel(buildDefaultScores());
+
+  private final double[] scoresByInterval;
+
+  /**
+   * @param scoresByInterval The score for each interval, indexed by the number of semitones between
+   *        the pitches (0-127). The array is copied
+   * @throws InvalidParameterException if there are not 128 scores
+   */
+  public IntervalConsonanceModel(double[] scoresByInterval) {
+    if (scoresByInterval.length != 128) {
+      throw new InvalidParameterException(
+          "There must be a score for each of the 128 intervals, but " + scoresByInterval.length
+              + " were given");
+    }
+    this.scoresByInterval = scoresByInterval.clone();
+  }
+
+  /**
+   * Create a model from scores for the 12 interval classes, so that an interval scores the same
+   * whatever number of octaves are added to it. The unison is scored separately from the octaves
+   * 
+   * @param unisonScore The score for two notes of the same pitch
+   * @param scoresByIntervalClass The score for each interval class, indexed by the number of
+   *        semitones between the pitches modulo 12 (index 0 being the octaves)
+   * @return The model
+   * @throws InvalidParameterException if there are not 12 scores
+   */
+  public static IntervalConsonanceModel fromIntervalClasses(double unisonScore,
+      double[] scoresByIntervalClass) {
+    if (scoresByIntervalClass.length != 12) {
+      throw new InvalidParameterException(
+          "There must be a score for each of the 12 interval classes, but "
+              + scoresByIntervalClass.length + " were given");
+    }
+    double[] scores = new double[128];
+    scores[0] = unisonScore;
+    for (int interval = 1; interval < 128; interval++) {
+      scores[interval] = scoresByIntervalClass[interval % 12];
+    }
+    return new IntervalConsonanceModel(scores);
+  }
+
+  /**
+   * @throws InvalidParameterException if either pitch is not a midi pitch
+   */
+  @Override
+  public double getConsonanceScore(int pitch, int comparisonPitch) {
+    // Both pitches must fit in 7 bits, or the lookup would land on the score of some other pair
+    if (((pitch | comparisonPitch) & ~127) != 0) {
+      throw new InvalidParameterException("Pitches must be between 0 and 127. You have "
+          + pitch + " and " + comparisonPitch);
+    }
+    return this.scoresByInterval[Math.abs(pitch - comparisonPitch)];
+  }
+
+  /**
+   * @param interval The number of semitones between two pitches (0-127)
+   * @return The score for that interval
+   */
+  public double getIntervalScore(int interval) {
+    return this.scoresByInterval[interval];
+  }
+
+  /**
+   * The scores of Note.calculateIPitchConsonanceScore:
+   * 1.0--Perfect intervals (P5 and Octave)
+   * 0.75--Maj/Min 3rds and 6ths
+   * 0.25--Perfect unison (gets a low score as it is consonant but boring)
+   * 0.0--All others (including P4 for the sake of simplicity)
+   * 
+   * These used to be worked out with a chain of modulo checks for every pair of notes, but as there
+   * are only 128 possible intervals it is much cheaper to work them all out once
+   */
+  private static double[] buildDefaultScores() {
+    double[] scores = new double[128];
+    for (int semitoneSteps = 0; semitoneSteps < 128; semitoneSteps++) {
+      if (semitoneSteps == 0) {
+        // if the notes are the same this is consonant but dull, so assign a low score
+        scores[semitoneSteps] = 0.25;
+      } else if (semitoneSteps % 7 == 0 || semitoneSteps % 12 == 0) {
+        // The perfect intervals get a high score
+        scores[semitoneSteps] = 1.0;
+      } else if (semitoneSteps % 3 == 0 || semitoneSteps % 4 == 0 || semitoneSteps % 8 == 0
+          || semitoneSteps % 9 == 0) {
+        // The major/minor 3rds and 6ths are imperfect consonances so get upper-middle scores
+        scores[semitoneSteps] = 0.75;
+      } else {
+        // All of the others get low scores as they are dissonant
+        scores[semitoneSteps] = 0.0;
+      }
+    }
+    return scores;
+  }
+
+}
@@ -0,0 +1,555 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One island of an island-model genetic algorithm: a GeneticOptimiser of its own, which every few
+ * generations sends copies of its best candidates to its peers over TCP, and takes in those its
+ * peers have sent it in place of its worst candidates. The islands can be in the same JVM, in
+ * several JVMs on one machine or on different machines, as long as they can reach each other's
+ * ports (see main for running one from the command line).
+ *
+ * Each island listens on a port of its own from the moment it is created, and queues whatever its
+ * peers send until the next migration. Migrants are sent as a short binary message per batch (see
+ * writeMigrants): a magic number and version, a fingerprint of the melody and harmony lines (see
+ * fingerprint) so that islands working on different scores, or different settings, ignore each
+ * other, then a byte per harmony note for each candidate with the fitness the sender gave it.
+ * Peers which can't be reached are skipped with a warning, so islands can be started in any order.
+ * Only the pitches travel, so each island scores migrants again with its own consonance model.
+ *
+ * The network is kept off the optimiser's thread. At each migration the message is written once,
+ * and a sender thread per peer delivers it while the optimiser carries on evolving, so a peer which
+ * is slow to connect costs it nothing; run() only waits for the last sends before returning. A peer
+ * which couldn't be reached is left out for RETRY_DELAY_MILLIS rather than tried at every
+ * migration, so sends to it never pile up. The listening thread only accepts connections, handing
+ * each to a small pool of readers, so a peer which stalls mid-message holds up only its own.
+ *
+ * Islands should be closed once they are finished with, to stop their listening, reading and
+ * sending threads.
+ */
+public class IslandOptimiser implements AutoCloseable {
+
+  static Logger logger = LoggerFactory.getLogger(IslandOptimiser.class);
+
+  // "HMIG", at the start of every message
+  static final int MAGIC = 0x484d4947;
+  static final byte VERSION = 1;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final int READ_TIMEOUT_MILLIS = 10000;
+  // How long a peer which couldn't be reached is left out of the migrations
+  private static final int RETRY_DELAY_MILLIS = 10000;
+  private static final int READER_THREADS = 4;
+
+  private final LinePopulation seed;
+  private final long fingerprint;
+  private final GeneticOptimiser optimiser;
+  private final ServerSocket serverSocket;
+  private final ExecutorService readers;
+  private final ExecutorService senders;
+
+  private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+  // The sends not yet known to have finished. Only used by the thread running the optimiser
+  private final List<Future<?>> sends = new ArrayList<Future<?>>();
+  private final ConcurrentLinkedQueue<LinePopulation> arrivals =
+      new ConcurrentLinkedQueue<LinePopulation>();
+
+  private int maxGenerations = 200;
+  private int migrationInterval = 10;
+  private int migrantCount = 2;
+
+  private final AtomicInteger migrantsSent = new AtomicInteger();
+  private final AtomicInteger migrantsReceived = new AtomicInteger();
+  private final AtomicInteger messagesRejected = new AtomicInteger();
+
+  /**
+   * Create an island and start listening for migrants
+   *
+   * @param seed The population to be optimised, which is not changed. Every island of a model must
+   *        be given the same melody and harmony lines (though not necessarily the same pitches)
+   * @param port The port to listen on, or 0 for any free port (see getPort)
+   * @throws IOException if the port can't be listened on
+   * @throws InvalidParameterException if the population has no harmony lines
+   */
+  public IslandOptimiser(LinePopulation seed, int port) throws IOException {
+    this.seed = seed;
+    this.fingerprint = fingerprint(seed);
+    this.optimiser = new GeneticOptimiser(seed);
+    this.serverSocket = new ServerSocket(port);
+    this.readers = Executors.newFixedThreadPool(READER_THREADS,
+        new NamedThreadFactory("island-reader-" + this.serverSocket.getLocalPort()));
+    this.senders = Executors.newCachedThreadPool(
+        new NamedThreadFactory("island-sender-" + this.serverSocket.getLocalPort()));
+    Thread listener = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        listen();
+      }
+    }, "island-listener-" + this.serverSocket.getLocalPort());
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  /**
+   * @return The port the island is listening on
+   */
+  public int getPort() {
+    return this.serverSocket.getLocalPort();
+  }
+
+  /**
+   * @param host The host of another island
+   * @param port The port it listens on
+   */
+  public void addPeer(String host, int port) {
+    this.peers.add(new Peer(new InetSocketAddress(host, port)));
+  }
+
+  /**
+   * @return The island's optimiser, for its settings (population size, seed and so on) to be
+   *         changed before run() is called. Its maximum number of generations is ignored (see
+   *         setMaxGenerations)
+   */
+  public GeneticOptimiser getOptimiser() {
+    return this.optimiser;
+  }
+
+  /**
+   * Evolve the island's candidates for maxGenerations generations, migrating every
+   * migrationInterval generations. The last migrants sent are delivered (or given up on) before it
+   * returns
+   *
+   * @return The best candidate found on this island
+   */
+  public LinePopulation run() {
+    this.optimiser.initialise();
+    for (int generation = 1; generation <= this.maxGenerations; generation++) {
+      this.optimiser.evolveGeneration();
+      if (generation % this.migrationInterval == 0) {
+        migrate();
+      }
+    }
+    awaitSends();
+    logger.info("Island on port {} finished with best fitness {} ({} migrants sent, {} received)",
+        getPort(), this.optimiser.getBestFitness(), this.migrantsSent.get(),
+        this.migrantsReceived.get());
+    return this.optimiser.getBest();
+  }
+
+  /**
+   * Send the best candidates to every peer, then take in whatever has arrived
+   */
+  private void migrate() {
+    List<LinePopulation> emigrants = this.optimiser.getBest(this.migrantCount);
+    double[] fitnesses = this.optimiser.getBestFitnesses(this.migrantCount);
+    // Written here, as the candidates may change once the optimiser carries on
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeMigrants(out, this.fingerprint, emigrants, fitnesses);
+      out.flush();
+    } catch (IOException e) {
+      // Can't happen when writing to memory
+      throw new IllegalStateException(e);
+    }
+    final byte[] message = bytes.toByteArray();
+    final int count = emigrants.size();
+
+    for (int i = this.sends.size() - 1; i >= 0; i--) {
+      if (this.sends.get(i).isDone()) {
+        this.sends.remove(i);
+      }
+    }
+    long now = System.currentTimeMillis();
+    for (final Peer peer : this.peers) {
+      if (now < peer.retryAt) {
+        continue;
+      }
+      try {
+        this.sends.add(this.senders.submit(new Runnable() {
+          @Override
+          public void run() {
+            send(peer, message, count);
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        logger.warn("Couldn't send migrants to {} as the island is closed", peer.address);
+      }
+    }
+
+    List<LinePopulation> immigrants = new ArrayList<LinePopulation>();
+    LinePopulation immigrant;
+    while ((immigrant = this.arrivals.poll()) != null) {
+      immigrants.add(immigrant);
+    }
+    if (!immigrants.isEmpty()) {
+      this.optimiser.immigrate(immigrants);
+    }
+  }
+
+  /**
+   * Deliver a message of migrants to a peer, on a sender thread. A peer which can't be reached is
+   * left out of the migrations for RETRY_DELAY_MILLIS
+   */
+  private void send(Peer peer, byte[] message, int count) {
+    Socket socket = new Socket();
+    try {
+      socket.connect(peer.address, CONNECT_TIMEOUT_MILLIS);
+      socket.getOutputStream().write(message);
+      socket.getOutputStream().flush();
+      this.migrantsSent.addAndGet(count);
+      peer.retryAt = 0;
+    } catch (IOException e) {
+      peer.retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+      logger.warn("Couldn't send migrants to {}: {}", peer.address, e.getMessage());
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Wait for every send still under way to finish. Each gives up by itself once it has been unable
+   * to connect for CONNECT_TIMEOUT_MILLIS, so this doesn't wait for long
+   */
+  private void awaitSends() {
+    try {
+      for (Future<?> send : this.sends) {
+        send.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // send catches its own failures
+      logger.warn("Couldn't send migrants: {}", e.getCause().toString());
+    }
+    this.sends.clear();
+  }
+
+  /**
+   * Accept connections from peers until the island is closed, handing each to a reader
+   */
+  private void listen() {
+    while (!this.serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = this.serverSocket.accept();
+      } catch (SocketException e) {
+        // Closed
+        return;
+      } catch (IOException e) {
+        logger.warn("Couldn't accept a connection: {}", e.getMessage());
+        continue;
+      }
+      try {
+        this.readers.execute(new Runnable() {
+          @Override
+          public void run() {
+            receive(socket);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // Closed
+        closeQuietly(socket);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Read the migrants a peer has sent down a connection, on a reader thread, and queue them
+   */
+  private void receive(Socket socket) {
+    try {
+      socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      List<LinePopulation> migrants = readMigrants(in, this.seed, this.fingerprint);
+      this.arrivals.addAll(migrants);
+      this.migrantsReceived.addAndGet(migrants.size());
+    } catch (IOException e) {
+      this.messagesRejected.incrementAndGet();
+      logger.warn("Rejected migrants from {}: {}", socket.getRemoteSocketAddress(),
+          e.getMessage());
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Write a batch of migrants: the magic number, version, fingerprint, number of migrants and
+   * number of harmony notes, then for each migrant its fitness and a byte for the pitch of each of
+   * its harmony notes, line by line
+   *
+   * @param out The stream to write to
+   * @param fingerprint The fingerprint of the migrants' population (see fingerprint)
+   * @param migrants The migrants
+   * @param fitnesses The fitness of each migrant
+   * @throws IOException if the stream can't be written to
+   */
+  static void writeMigrants(DataOutputStream out, long fingerprint,
+      List<LinePopulation> migrants, double[] fitnesses) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(fingerprint);
+    out.writeShort(migrants.size());
+    out.writeInt(migrants.isEmpty() ? 0 : getHarmonyNoteCount(migrants.get(0)));
+    for (int m = 0; m < migrants.size(); m++) {
+      LinePopulation migrant = migrants.get(m);
+      out.writeDouble(fitnesses[m]);
+      for (int l = 1; l < migrant.getNumberOfLines(); l++) {
+        Line line = migrant.getLineAtIndex(l);
+        for (int n = 0; n < line.getLength(); n++) {
+          out.writeByte(line.getPitchAtIndex(n));
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a batch of migrants written by writeMigrants, as copies of a population with their pitches
+   *
+   * @param in The stream to read from
+   * @param seed A population with the same melody and harmony lines as the migrants
+   * @param fingerprint The fingerprint of the seed (see fingerprint)
+   * @return The migrants
+   * @throws IOException if the stream can't be read, or doesn't hold migrants for this population
+   */
+  static List<LinePopulation> readMigrants(DataInputStream in, LinePopulation seed,
+      long fingerprint) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a migrant message");
+    }
+    byte version = in.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported migrant message version " + version);
+    }
+    if (in.readLong() != fingerprint) {
+      throw new IOException("The migrants are for a different melody or harmony lines");
+    }
+    int count = in.readUnsignedShort();
+    int noteCount = in.readInt();
+    if (count > 0 && noteCount != getHarmonyNoteCount(seed)) {
+      throw new IOException("The migrants have " + noteCount + " harmony notes, not "
+          + getHarmonyNoteCount(seed));
+    }
+
+    List<LinePopulation> migrants = new ArrayList<LinePopulation>(count);
+    for (int m = 0; m < count; m++) {
+      in.readDouble();
+      LinePopulation migrant = new LinePopulation(seed);
+      for (int l = 1; l < migrant.getNumberOfLines(); l++) {
+        Line line = migrant.getLineAtIndex(l);
+        for (int n = 0; n < line.getLength(); n++) {
+          int pitch = in.readUnsignedByte();
+          if (pitch < line.getMinPitch() || pitch > line.getMaxPitch()) {
+            throw new IOException("Pitch " + pitch + " is outside the range of line " + l);
+          }
+          line.setPitchAtIndex(n, pitch);
+        }
+      }
+      migrant.invalidateFitnessCache();
+      migrants.add(migrant);
+    }
+    return migrants;
+  }
+
+  /**
+   * Work out a fingerprint of everything about a population but its harmony pitches: the timing,
+   * pitch and velocity of every melody note, and the number of notes and pitch range of each
+   * harmony line. Islands only take in migrants with the same fingerprint as their own seed
+   *
+   * @param population The population
+   * @return The fingerprint
+   */
+  public static long fingerprint(LinePopulation population) {
+    // 64 bit FNV-1a over the values
+    long hash = 0xcbf29ce484222325L;
+    Line melody = population.getMelody();
+    hash = mix(hash, melody.getLength());
+    for (int n = 0; n < melody.getLength(); n++) {
+      hash = mix(hash, melody.getTimeStampAtIndex(n));
+      hash = mix(hash, melody.getDurationAtIndex(n));
+      hash = mix(hash, melody.getPitchAtIndex(n));
+      hash = mix(hash, melody.getVelocityAtIndex(n));
+    }
+    hash = mix(hash, population.getNumberOfLines());
+    for (int l = 1; l < population.getNumberOfLines(); l++) {
+      Line line = population.getLineAtIndex(l);
+      hash = mix(hash, line.getLength());
+      hash = mix(hash, line.getMinPitch());
+      hash = mix(hash, line.getMaxPitch());
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    for (int b = 0; b < 64; b += 8) {
+      hash ^= (value >>> b) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static int getHarmonyNoteCount(LinePopulation population) {
+    int count = 0;
+    for (int l = 1; l < population.getNumberOfLines(); l++) {
+      count += population.getLineAtIndex(l).getLength();
+    }
+    return count;
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.debug("Couldn't close socket: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * @return The number of migrants sent to peers so far
+   */
+  public int getMigrantsSent() {
+    return this.migrantsSent.get();
+  }
+
+  /**
+   * @return The number of migrants received from peers so far
+   */
+  public int getMigrantsReceived() {
+    return this.migrantsReceived.get();
+  }
+
+  /**
+   * @return The number of messages which were rejected, for example for being for another melody
+   */
+  public int getMessagesRejected() {
+    return this.messagesRejected.get();
+  }
+
+  /**
+   * @param maxGenerations The number of generations run() evolves for (default 200)
+   */
+  public void setMaxGenerations(int maxGenerations) {
+    if (maxGenerations < 0) {
+      throw new InvalidParameterException("maxGenerations must not be negative");
+    }
+    this.maxGenerations = maxGenerations;
+  }
+
+  /**
+   * @param migrationInterval The number of generations between migrations (default 10)
+   */
+  public void setMigrationInterval(int migrationInterval) {
+    if (migrationInterval < 1) {
+      throw new InvalidParameterException("migrationInterval must be at least 1");
+    }
+    this.migrationInterval = migrationInterval;
+  }
+
+  /**
+   * @param migrantCount The number of best candidates sent to each peer at each migration (default
+   *        2)
+   */
+  public void setMigrantCount(int migrantCount) {
+    if (migrantCount < 1 || migrantCount > 65535) {
+      throw new InvalidParameterException("migrantCount must be between 1 and 65535");
+    }
+    this.migrantCount = migrantCount;
+  }
+
+  /**
+   * Stop listening for migrants. Connections already accepted are still read (each gives up after
+   * READ_TIMEOUT_MILLIS at most), and sends under way are left to finish, on their daemon threads
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      this.serverSocket.close();
+    } finally {
+      this.readers.shutdown();
+      this.senders.shutdown();
+    }
+  }
+
+  /**
+   * Another island, and when it may next be sent migrants
+   */
+  private static final class Peer {
+
+    final InetSocketAddress address;
+    // Set by the sender threads and read by the optimiser's
+    volatile long retryAt;
+
+    Peer(InetSocketAddress address) {
+      this.address = address;
+    }
+  }
+
+  /**
+   * Run one island from the command line. Start one of these for each island, in as many JVMs or
+   * on as many machines as wanted, each naming the others as peers, e.g.
+   *
+   * java main.IslandOptimiser melody.mid out1.mid 7001 localhost:7002
+   * java main.IslandOptimiser melody.mid out2.mid 7002 localhost:7001
+   *
+   * Each island harmonises the melody with two voices, C3 to C4 and C2 to C3, and saves its best
+   * harmony to its output file when it has finished
+   *
+   * @param args The melody file, the output file, the port to listen on, then host:port for each
+   *        peer
+   */
+  public static void main(String[] args)
+      throws IOException, InvalidMidiDataException {
+    if (args.length < 3) {
+      System.err.println("Usage: IslandOptimiser <melody.mid> <output.mid> <port> [host:port ...]");
+      System.exit(1);
+    }
+    LinePopulation population = new LinePopulation(MidiStatic.getMelodyFromFile(args[0]));
+    population.addNewLineWithMelodyAsTemplate(48, 60);
+    population.addNewLineWithMelodyAsTemplate(36, 48);
+
+    IslandOptimiser island = new IslandOptimiser(population, Integer.parseInt(args[2]));
+    try {
+      for (int i = 3; i < args.length; i++) {
+        int colon = args[i].lastIndexOf(':');
+        island.addPeer(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1)));
+      }
+      LinePopulation best = island.run();
+
+      List<Line> lines = new ArrayList<Line>();
+      lines.add(best.getMelody());
+      for (int l = 1; l < best.getNumberOfLines(); l++) {
+        lines.add(best.getLineAtIndex(l));
+      }
+      MidiStatic.saveLinesToMidiFile(lines, args[1]);
+    } finally {
+      island.close();
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies measured by something (for example RealTimeHarmoniser's time
+ * from a note arriving to its harmony being sent), and reports percentiles of them.
+ *
+ * The latencies are kept in a ring of fixed size, so recording one never allocates and the
+ * percentiles always describe the recent past rather than the whole run. Recording and reporting
+ * are synchronised, so one thread can record while another reports.
+ */
+public class LatencyRecorder {
+
+  private final long[] samples;
+  private int next;
+  private int size;
+  private long count;
+
+  /**
+   * Create a recorder which keeps the last 4096 latencies
+   */
+  public LatencyRecorder() {
+    this(4096);
+  }
+
+  /**
+   * @param capacity The number of latencies kept
+   * @throws InvalidParameterException if capacity is not at least 1
+   */
+  public LatencyRecorder(int capacity) {
+    if (capacity < 1) {
+      throw new InvalidParameterException("capacity must be at least 1");
+    }
+    this.samples = new long[capacity];
+  }
+
+  /**
+   * @param nanos The latency in nanoseconds
+   */
+  public synchronized void record(long nanos) {
+    this.samples[this.next] = nanos;
+    this.next = (this.next + 1) % this.samples.length;
+    if (this.size < this.samples.length) {
+      this.size++;
+    }
+    this.count++;
+  }
+
+  /**
+   * @return The number of latencies recorded altogether, including any no longer kept
+   */
+  public synchronized long getCount() {
+    return this.count;
+  }
+
+  /**
+   * Get a percentile of the latencies kept, using the nearest rank, so that the result is always
+   * one of the latencies recorded
+   *
+   * @param percentile Between 0 and 100, e.g. 50 for the median or 99 for the 99th percentile
+   * @return The latency in nanoseconds, or 0 if none have been recorded
+   * @throws InvalidParameterException if percentile is out of range
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new InvalidParameterException("percentile must be between 0 and 100, not "
+          + percentile);
+    }
+    if (this.size == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(this.samples, this.size);
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percentile / 100 * this.size);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  /**
+   * Forget every latency recorded so far
+   */
+  public synchronized void reset() {
+    this.next = 0;
+    this.size = 0;
+    this.count = 0;
+  }
+
+  /**
+   * @return The count and the median and 99th percentile in microseconds, for logging
+   */
+  @Override
+  public String toString() {
+    return String.format("%d recorded, p50 %.1fus, p99 %.1fus", getCount(),
+        getPercentile(50) / 1000.0, getPercentile(99) / 1000.0);
+  }
+
+}
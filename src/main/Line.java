@@ -2,9 +2,10 @@ package main;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,13 +16,45 @@ public class Line {
 
   static Logger logger = LoggerFactory.getLogger(Line.class);
 
+  /**
+   * The ways in which a line can hold its notes. Both behave the same through the public methods of
+   * Line (including getNotes), but differ in their costs
+   */
+  public enum Storage {
+    /**
+     * A list of Note objects. Cheap to build up and to hand Note objects out from
+     */
+    NOTE_OBJECTS,
+    /**
+     * Parallel arrays of timestamps, durations, pitches and velocities. Takes 18 bytes a note
+     * against about 44, so around 2.4 times less memory for long lines, and is faster to score,
+     * but Note objects handed out by getNotes are views which are created on request. Pitches and
+     * velocities must lie between 0 and 127
+     */
+    PACKED_ARRAYS,
+    /**
+     * The timings and velocities are shared with other lines, and only an array of pitches belongs
+     * to this line. Lines created from a template (see Line(Line, int, int)) and their copies are
+     * held like this, so that any number of harmony lines and candidate populations cost one byte
+     * per note. The timings of these notes can't be changed, and adding a note gives the line
+     * packed storage of its own. Can't be asked for when creating an empty line
+     */
+    SHARED_RHYTHM
+  }
+
   // Ordered list of ordered quadruplets (timestamp, duration, pitch, velocity) representing the
   // sequence of notes in this line
-  private List<Note> notes;
+  private NoteStore notes;
 
   private float divisionType;
   private int ticksPerBeat;
 
+  // Lazily built index for getNotesWithinTimeFrame. Rebuilt when notes are added or retimed
+  private volatile NoteTimeIndex timeIndex;
+
+  // The timings of this line frozen for sharing with lines which use it as a template
+  private volatile RhythmSkeleton rhythmSkeleton;
+
   /**
    * These dictate the max/min pitch values between which notes in this line may sit. The defaults
    * -1 lie outside the midi pitch range, so will throw an error if they are called to mutate a
@@ -43,7 +76,24 @@ public class Line {
    *        synched up properly
    */
   public Line(int ticksPerBeat, float divisionType) {
-    this.notes = new ArrayList<Note>();
+    this(ticksPerBeat, divisionType, Storage.NOTE_OBJECTS);
+  }
+
+  /**
+   * Creates a line object with metadata concerning tempo but no specific note data, which will hold
+   * its notes in the given way
+   * 
+   * @param ticksPerBeat The ticks per beat for this line (see Line(int, float))
+   * @param divisionType The division type (see Line(int, float))
+   * @param storage How the notes of this line should be held. Must not be SHARED_RHYTHM
+   * @throws InvalidParameterException if storage is SHARED_RHYTHM
+   */
+  public Line(int ticksPerBeat, float divisionType, Storage storage) {
+    if (storage == Storage.SHARED_RHYTHM) {
+      throw new InvalidParameterException(
+          "Only lines created from a template can share their rhythm with other lines");
+    }
+    this.notes = (storage == Storage.PACKED_ARRAYS) ? new PackedNoteStore() : new NoteObjectStore();
 
     this.ticksPerBeat = ticksPerBeat;
     this.divisionType = divisionType;
@@ -60,7 +110,7 @@ public class Line {
    */
   public Line(String filepath) throws InvalidMidiDataException, IOException {
     Line importedLine = MidiStatic.getMelodyFromFile(filepath);
-    this.notes = importedLine.getNotes();
+    this.notes = importedLine.notes;
     this.ticksPerBeat = importedLine.getTicksPerBeat();
     this.divisionType = importedLine.getDivisionType();
   }
@@ -70,29 +120,77 @@ public class Line {
    * and the pitches are randomised within the specified bounds (which are set as the bounds for
    * this line)
    * 
+   * The new line shares the timings of the template rather than copying them (see
+   * Storage.SHARED_RHYTHM), and the template itself is left untouched
+   * 
    * @param template The template line
    * @param minPitch The minimum pitch
    * @param maxPitch The maximum pitch
    * @throws InvalidParameterException if the pitches are invalid
    */
   public Line(Line template, int minPitch, int maxPitch) {
+    this(template, minPitch, maxPitch, ThreadLocalRandom.current());
+  }
+
+  /**
+   * The same as Line(template, minPitch, maxPitch), but with the random pitches drawn from the
+   * given generator, so that the line can be created again exactly from the same seed
+   * 
+   * @param template The template line
+   * @param minPitch The minimum pitch
+   * @param maxPitch The maximum pitch
+   * @param random The generator to draw the pitches from
+   * @throws InvalidParameterException if the pitches are invalid
+   */
+  public Line(Line template, int minPitch, int maxPitch, RandomGenerator random) {
     this.ticksPerBeat = template.getTicksPerBeat();
     this.divisionType = template.getDivisionType();
-    this.notes = template.getNotes();
-    for (Note note : this.notes) {
-      note.mutatePitch(minPitch, maxPitch);
-    }
     if (maxPitch < 128 && minPitch < 128 && maxPitch >= 0 && minPitch >= 0 && maxPitch > minPitch) {
       this.maxPitch = maxPitch;
       this.minPitch = minPitch;
     } else {
-      logger.error("Attempted to create line with minPitch = " + minPitch + ", maxPitch = "
-          + maxPitch + ". We require minPitch >= 0, maxPitch <= 127 & maxPitch > minPitch.");
+      logger.error("Attempted to create line with minPitch = {}, maxPitch = {}. We require "
+          + "minPitch >= 0, maxPitch <= 127 & maxPitch > minPitch.", minPitch, maxPitch);
       throw new InvalidParameterException(
           "Attempted to create line with minPitch = " + minPitch + ", maxPitch = " + maxPitch
               + ". We require minPitch >= 0, maxPitch <= 127 & maxPitch > minPitch.");
     }
 
+    // Share the timings of the template and only hold pitches of our own
+    RhythmSkeleton skeleton = template.getRhythmSkeleton();
+    byte[] pitches = new byte[skeleton.size()];
+    for (int i = 0; i < pitches.length; i++) {
+      pitches[i] = (byte) Note.getRandomPitch(minPitch, maxPitch, random);
+    }
+    this.notes = new SkeletonNoteStore(skeleton, pitches);
+
+  }
+
+  /**
+   * Creates a copy of a line, with the same notes, metadata and pitch bounds. Changing the pitches
+   * of the copy doesn't affect the original. Lines which share their rhythm with other lines keep
+   * sharing it, so copying them only copies their pitches
+   * 
+   * @param original The line to be copied
+   */
+  public Line(Line original) {
+    this.ticksPerBeat = original.getTicksPerBeat();
+    this.divisionType = original.getDivisionType();
+    this.maxPitch = original.maxPitch;
+    this.minPitch = original.minPitch;
+
+    NoteStore originalNotes = original.notes;
+    if (originalNotes instanceof SkeletonNoteStore) {
+      this.notes = ((SkeletonNoteStore) originalNotes).copy();
+    } else if (originalNotes instanceof PackedNoteStore) {
+      this.notes = new PackedNoteStore(originalNotes);
+    } else {
+      this.notes = new NoteObjectStore();
+      for (int i = 0; i < originalNotes.size(); i++) {
+        this.notes.addNote(originalNotes.getTimestamp(i), originalNotes.getDuration(i),
+            originalNotes.getPitch(i), originalNotes.getVelocity(i));
+      }
+    }
   }
 
   /**
@@ -110,8 +208,12 @@ public class Line {
     if (timestamp == -1 || duration == -1 || pitch == -1 || velocity == -1) {
       throw new InvalidParameterException("Input should not be -1");
     } else {
-      this.notes.add(new Note(timestamp, duration, pitch, velocity));
-
+      if (this.notes instanceof SkeletonNoteStore) {
+        // The shared timings can't grow, so this line needs timings of its own from now on
+        this.notes = new PackedNoteStore(this.notes);
+      }
+      this.notes.addNote(timestamp, duration, pitch, velocity);
+      this.timeIndex = null;
     }
   }
 
@@ -124,6 +226,69 @@ public class Line {
     return this.notes.size();
   }
 
+  /**
+   * Sets the pitch at a given index
+   * 
+   * @param i the index of the note whose pitch is to be set
+   * @param pitch the new pitch
+   * @throws IndexOutOfBoundsException if the supplied index is out of bounds
+   */
+  public void setPitchAtIndex(int i, int pitch) {
+
+    checkIndex(i);
+
+    this.notes.setPitch(i, pitch);
+  }
+
+  /**
+   * Changes the pitch at a given index to a random pitch between the min/max pitches of this line
+   * (see Note.mutatePitch)
+   * 
+   * @param i the index of the note to be mutated
+   * @throws IndexOutOfBoundsException if the supplied index is out of bounds
+   * @throws InvalidParameterException if this line has no pitch bounds (e.g. it is a melody)
+   */
+  public void mutatePitchAtIndex(int i) {
+    mutatePitchAtIndex(i, ThreadLocalRandom.current());
+  }
+
+  /**
+   * Changes the pitch at a given index to a random pitch between the min/max pitches of this line,
+   * drawn from the given generator
+   * 
+   * @param i the index of the note to be mutated
+   * @param random The generator to draw the new pitch from
+   * @throws IndexOutOfBoundsException if the supplied index is out of bounds
+   * @throws InvalidParameterException if this line has no pitch bounds (e.g. it is a melody)
+   */
+  public void mutatePitchAtIndex(int i, RandomGenerator random) {
+
+    checkIndex(i);
+
+    Note.checkPitchBounds(this.minPitch, this.maxPitch);
+    this.notes.setPitch(i, Note.getRandomPitch(this.minPitch, this.maxPitch, random));
+  }
+
+  /**
+   * @return How the notes of this line are currently held
+   */
+  public Storage getStorage() {
+    return this.notes.getStorage();
+  }
+
+  /**
+   * Moves the notes of this line into packed array storage (see Storage.PACKED_ARRAYS). Useful for
+   * long lines read in from midi files before they are optimised. Note objects previously taken
+   * from getNotes are no longer connected to the line afterwards. Lines which share their rhythm
+   * with other lines are already held in arrays, so are left as they are
+   */
+  public void packNotes() {
+    if (this.notes.getStorage() == Storage.NOTE_OBJECTS) {
+      this.notes = new PackedNoteStore(this.notes);
+      this.timeIndex = null;
+    }
+  }
+
   /**
    * Returns the timestamp at a given index
    * 
@@ -133,14 +298,9 @@ public class Line {
    */
   public long getTimeStampAtIndex(int i) {
 
-    if (i > this.notes.size() - 1) {
-      throw new IndexOutOfBoundsException("Index out of Bounds");
-    }
-    if (i < 0) {
-      throw new IndexOutOfBoundsException("Index should not be negative");
-    }
+    checkIndex(i);
 
-    return this.notes.get(i).getTimestamp();
+    return this.notes.getTimestamp(i);
   }
 
   /**
@@ -152,14 +312,9 @@ public class Line {
    */
   public long getDurationAtIndex(int i) {
 
-    if (i > this.notes.size() - 1) {
-      throw new IndexOutOfBoundsException("Index out of Bounds");
-    }
-    if (i < 0) {
-      throw new IndexOutOfBoundsException("Index should not be negative");
-    }
+    checkIndex(i);
 
-    return this.notes.get(i).getDuration();
+    return this.notes.getDuration(i);
   }
 
   /**
@@ -172,14 +327,9 @@ public class Line {
    */
   public int getPitchAtIndex(int i) {
 
-    if (i > this.notes.size() - 1) {
-      throw new IndexOutOfBoundsException("Index out of Bounds");
-    }
-    if (i < 0) {
-      throw new IndexOutOfBoundsException("Index should not be negative");
-    }
+    checkIndex(i);
 
-    return this.notes.get(i).getPitch();
+    return this.notes.getPitch(i);
   }
 
   /**
@@ -192,14 +342,9 @@ public class Line {
    */
   public int getVelocityAtIndex(int i) {
 
-    if (i > this.notes.size() - 1) {
-      throw new IndexOutOfBoundsException("Index out of Bounds");
-    }
-    if (i < 0) {
-      throw new IndexOutOfBoundsException("Index should not be negative");
-    }
+    checkIndex(i);
 
-    return this.notes.get(i).getVelocity();
+    return this.notes.getVelocity(i);
   }
 
   /**
@@ -226,7 +371,7 @@ public class Line {
    * @return The list of notes constituting this line
    */
   public List<Note> getNotes() {
-    return this.notes;
+    return this.notes.asList();
   }
 
   /**
@@ -263,32 +408,91 @@ public class Line {
    *         they are on during this period (NOT to the durations of the notes themselves).
    */
   public HashMap<Note, Long> getNotesWithinTimeFrame(long startOfWindow, long durationOfWindow) {
-    
-    HashMap<Note, Long> mapOfNotesToDurations = new HashMap<Note, Long>();
-    
-    for (Note note : this.notes) {
-      
-      //Get note timestamp and duration
-      long noteTimestamp = note.getTimestamp();
-      long noteDuration = note.getDuration();
-      
-      // Check if ((the note starts after the initialTimestamp OR if the note extends into the time
-      // window) AND the timestamp is before the end of the window)
-      if ((noteTimestamp >= startOfWindow || noteTimestamp + noteDuration >= startOfWindow)
-          && noteTimestamp <= startOfWindow + durationOfWindow) {
-        
-        // Calculate how long the note is on for over the period.
-        // Time for which the note is on over this time window is the turn off time or end of window
-        // (whichever is smallest) minus the turn on time or start of window (whichever is largest)
-        long endPoint = (noteTimestamp + noteDuration > startOfWindow + durationOfWindow)
-            ? startOfWindow + durationOfWindow : noteTimestamp + noteDuration;
-        long startPoint = (noteTimestamp > startOfWindow) ? noteTimestamp : startOfWindow;
-        long onTime = endPoint - startPoint;
-        
-        mapOfNotesToDurations.put(note, onTime);
+
+    final HashMap<Note, Long> mapOfNotesToDurations = new HashMap<Note, Long>();
+
+    getNotesWithinTimeFrame(startOfWindow, durationOfWindow, new NoteOverlapVisitor() {
+      @Override
+      public void visit(int noteIndex, long overlapTicks) {
+        mapOfNotesToDurations.put(notes.asList().get(noteIndex), overlapTicks);
       }
-    }
+    });
     return mapOfNotesToDurations;
   }
 
+  /**
+   * As getNotesWithinTimeFrame(long, long), but rather than building a HashMap each note which is
+   * on during the window is passed to the visitor along with the time for which it is on. This is
+   * the version to use in the optimisation loops.
+   * 
+   * A note is counted as being on during the window if it starts before the end of the window and
+   * finishes after the start of it (notes which just touch the window are included with an overlap
+   * of 0). The query uses an index over the note timings which is built the first time it is needed
+   * and rebuilt whenever notes are added to the line or have their timings changed, so it takes
+   * O(log n + k) time for k notes found rather than looking at every note in the line.
+   * 
+   * @param startOfWindow The beginning of the time window
+   * @param durationOfWindow The length of the time window
+   * @param visitor Receives the index (in this line) of each note which is on during the window and
+   *        the time for which it is on, in timestamp order
+   */
+  public void getNotesWithinTimeFrame(long startOfWindow, long durationOfWindow,
+      NoteOverlapVisitor visitor) {
+    Metrics.OVERLAP_QUERIES.increment();
+    getTimeIndex().query(startOfWindow, startOfWindow + durationOfWindow, visitor);
+  }
+
+  /**
+   * Get the time index for this line, building it first if the notes have changed since it was last
+   * built. Several threads may end up building it at once, but as indexes are immutable the only
+   * cost of that is some duplicated work.
+   * 
+   * @return An up to date time index
+   */
+  private NoteTimeIndex getTimeIndex() {
+    NoteTimeIndex index = this.timeIndex;
+
+    if (index == null || !index.isValidFor(this.notes.size(), this.notes.getTimingVersion())) {
+      index = this.notes.buildTimeIndex();
+      this.timeIndex = index;
+    }
+    return index;
+  }
+
+  /**
+   * @return A value which changes whenever the timestamp or duration of one of this line's notes
+   *         changes, for caches built from its timings (the note count is checked separately)
+   */
+  long getTimingVersion() {
+    return this.notes.getTimingVersion();
+  }
+
+  /**
+   * Get the timings of this line in a form which can be shared with other lines. Lines which
+   * already share their rhythm hand out their skeleton, and others keep the one they build until
+   * their notes change
+   * 
+   * @return The rhythm skeleton of this line
+   */
+  RhythmSkeleton getRhythmSkeleton() {
+    if (this.notes instanceof SkeletonNoteStore) {
+      return ((SkeletonNoteStore) this.notes).getSkeleton();
+    }
+    RhythmSkeleton skeleton = this.rhythmSkeleton;
+    if (skeleton == null || !skeleton.matches(this.notes)) {
+      skeleton = new RhythmSkeleton(this.notes);
+      this.rhythmSkeleton = skeleton;
+    }
+    return skeleton;
+  }
+
+  private void checkIndex(int i) {
+    if (i > this.notes.size() - 1) {
+      throw new IndexOutOfBoundsException("Index out of Bounds");
+    }
+    if (i < 0) {
+      throw new IndexOutOfBoundsException("Index should not be negative");
+    }
+  }
+
 }
@@ -2,8 +2,11 @@ package main;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,11 +21,65 @@ public class LinePopulation {
 
   static Logger logger = LoggerFactory.getLogger(LinePopulation.class);
 
+  // The number of notes below which a parallel scoring task does its share directly
+  private static final int NOTES_PER_SCORING_TASK = 256;
+
+  /**
+   * The ways in which getAverageFitnessScore() can score every note of the population. All give
+   * exactly the same result
+   */
+  public enum ScoringEngine {
+    /**
+     * Score each note in turn with getPitchFitnessScore, querying every other line for the notes
+     * on at the same time
+     */
+    NOTE_QUERIES,
+    /**
+     * Score all the notes in one sweep through time, which finds each pair of notes sounding
+     * together only once, so scales linearly with the length of the score
+     */
+    SWEEP_LINE,
+    /**
+     * Work out which notes overlap which, and for how long, once (see OverlapGraph), and then
+     * score all the notes with a loop over flat arrays of pitches, overlaps and durations. The
+     * graph is shared with copies of the population, so after the first evaluation scoring costs
+     * only a few array reads and a multiply-add per pair of notes. setPitch uses the graph as well
+     */
+    OVERLAP_GRAPH
+  }
+
   /**
    * A list of lines which constitute the harmonies in this song
    */
   private List<Line> lines;
 
+  /**
+   * Scores the consonance of each pair of notes which are on at the same time
+   */
+  private ConsonanceModel consonanceModel = IntervalConsonanceModel.DEFAULT;
+
+  private ScoringEngine scoringEngine = ScoringEngine.OVERLAP_GRAPH;
+
+  /**
+   * Which notes overlap which, built the first time it is needed by the OVERLAP_GRAPH engine and
+   * shared with copies of this population. Null until then
+   */
+  private OverlapGraph overlapGraph;
+
+  /**
+   * The cached fitness of every harmony note (by line, then note; the melody's row is empty) and
+   * their sum, kept up to date by setPitch and mutatePitch. Null until first needed
+   */
+  private double[][] cachedScores;
+  private double cachedScoreSum;
+  private int cachedScoreCount;
+
+  /**
+   * The pitch of every note, numbered as in the overlap graph, kept with the cached scores when
+   * they were built by the OVERLAP_GRAPH engine. Null otherwise
+   */
+  private int[] cachedPitches;
+
   /**
    * This constructor takes a Line object and adds it as the first element in the line population.
    * Use .addNewLine to add unoptimised harmony lines which can then be optimised
@@ -34,6 +91,36 @@ public class LinePopulation {
     this.lines.add(melody);
   }
 
+  /**
+   * Creates a copy of a line population, for example as a new candidate to be optimised. The
+   * harmony lines are copied, so their pitches can be changed without affecting the original
+   * population, but they still share their rhythm with the melody so only the pitches are copied.
+   * The melody line itself is shared between the two populations, as it is never changed by
+   * optimisation
+   * 
+   * @param original The population to be copied
+   */
+  public LinePopulation(LinePopulation original) {
+    this.lines = new ArrayList<Line>(original.lines.size());
+    this.lines.add(original.getMelody());
+    this.consonanceModel = original.consonanceModel;
+    this.scoringEngine = original.scoringEngine;
+    for (int i = 1; i < original.lines.size(); i++) {
+      this.lines.add(new Line(original.lines.get(i)));
+    }
+
+    // The cached scores aren't copied. Copies are nearly always changed straight away through
+    // their lines, which the cache wouldn't know about, so they build their own when needed
+
+    // The copy has the same timings, so can share the graph. Building it here on the original (if
+    // it hasn't been built yet) means copies made from the same population don't each build their
+    // own. If two threads copy the same population at once both may build it, which does no harm
+    // as the graph is never changed
+    if (this.scoringEngine == ScoringEngine.OVERLAP_GRAPH && this.lines.size() > 1) {
+      this.overlapGraph = original.getOverlapGraph();
+    }
+  }
+
   /**
    * Add a new line to the line population. The new line will have the same horizontal note
    * placement as the melody line, but the pitches will all be randomly located between minPitch and
@@ -43,8 +130,21 @@ public class LinePopulation {
    * @param maxPitch The maximum pitch which this note will be allowed to vary between
    */
   public void addNewLineWithMelodyAsTemplate(int minPitch, int maxPitch) {
-    Line newLine = new Line(this.lines.get(0), minPitch, maxPitch);
+    addNewLineWithMelodyAsTemplate(minPitch, maxPitch, ThreadLocalRandom.current());
+  }
+
+  /**
+   * The same as addNewLineWithMelodyAsTemplate(minPitch, maxPitch), but with the pitches drawn from
+   * the given generator, so a population can be built again exactly from the same seed
+   * 
+   * @param minPitch The minimum pitch which this note will be allowed to vary between
+   * @param maxPitch The maximum pitch which this note will be allowed to vary between
+   * @param random The generator to draw the pitches from
+   */
+  public void addNewLineWithMelodyAsTemplate(int minPitch, int maxPitch, RandomGenerator random) {
+    Line newLine = new Line(this.lines.get(0), minPitch, maxPitch, random);
     this.lines.add(newLine);
+    invalidateFitnessCache();
   }
 
   /**
@@ -55,6 +155,50 @@ public class LinePopulation {
     return this.lines.get(0);
   }
 
+  /**
+   * @return The model used to score the consonance of notes which are on at the same time
+   */
+  public ConsonanceModel getConsonanceModel() {
+    return this.consonanceModel;
+  }
+
+  /**
+   * Change the way the consonance of notes which are on at the same time is scored. The default is
+   * IntervalConsonanceModel.DEFAULT, which gives the same scores as
+   * Note.calculateIPitchConsonanceScore
+   * 
+   * @param consonanceModel The new model
+   */
+  public void setConsonanceModel(ConsonanceModel consonanceModel) {
+    this.consonanceModel = consonanceModel;
+    invalidateFitnessCache();
+  }
+
+  /**
+   * @return How the whole population is scored
+   */
+  public ScoringEngine getScoringEngine() {
+    return this.scoringEngine;
+  }
+
+  /**
+   * Change how the whole population is scored by getAverageFitnessScore() and when the cached
+   * scores are built. The default is ScoringEngine.OVERLAP_GRAPH. The scores don't depend on the
+   * engine, so the cache is kept
+   * 
+   * @param scoringEngine The new engine
+   */
+  public void setScoringEngine(ScoringEngine scoringEngine) {
+    this.scoringEngine = scoringEngine;
+  }
+
+  /**
+   * @return The number of lines in this population, including the melody
+   */
+  public int getNumberOfLines() {
+    return this.lines.size();
+  }
+
   public Line getLineAtIndex(int index) {
     if (index == 0) {
       logger
@@ -84,6 +228,189 @@ public class LinePopulation {
    */
   public double getPitchFitnessScore(int lineIndex, int noteIndex) {
 
+    checkHarmonyNoteIndices(lineIndex, noteIndex);
+
+    Line lineInQuestion = this.lines.get(lineIndex);
+    long timestamp = lineInQuestion.getTimeStampAtIndex(noteIndex);
+    long duration = lineInQuestion.getDurationAtIndex(noteIndex);
+
+    // We look at each other line in turn and find all the notes in it which are on at the same time
+    // as this note, along with the time for which they are on. The score is then a weighted sum of
+    // the individual consonance scores, which the accumulator builds up as the notes are found
+    PitchScoreAccumulator accumulator = new PitchScoreAccumulator(this.consonanceModel,
+        lineInQuestion.getPitchAtIndex(noteIndex));
+
+    double sum = 0;
+
+    for (int i = 0; i < this.lines.size(); i++) {
+
+      if (i == lineIndex) {
+        // We don't consider the line we're on
+        continue;
+      }
+
+      accumulator.reset(this.lines.get(i));
+      this.lines.get(i).getNotesWithinTimeFrame(timestamp, duration, accumulator);
+      sum += accumulator.getSum();
+    }
+    Metrics.PAIR_EVALUATIONS.add(accumulator.getPairCount());
+
+    // To normalise the score, divide it by the total time the note is on for * the number of
+    // harmony lines, so that we get a score between 0 and 1
+    return sum / (duration * (this.lines.size() - 1));
+
+  }
+
+  /**
+   * Set the pitch of a harmony note and update the cached fitness scores (see
+   * getCachedAverageFitnessScore) to match.
+   * 
+   * Changing one note only changes its own score and the scores of the notes in the other harmony
+   * lines which are on at the same time as it, so only those are updated. This makes a single
+   * change cost in proportion to the number of notes it overlaps rather than to the size of the
+   * whole population, which is what hill climbing and similar one-note-at-a-time searches want
+   * 
+   * @param lineIndex The index of the line (must not be the melody, index 0)
+   * @param noteIndex The index of the note within the line
+   * @param pitch The new pitch
+   */
+  public void setPitch(int lineIndex, int noteIndex, int pitch) {
+
+    checkHarmonyNoteIndices(lineIndex, noteIndex);
+    ensureFitnessCache();
+
+    Line lineInQuestion = this.lines.get(lineIndex);
+    int oldPitch = lineInQuestion.getPitchAtIndex(noteIndex);
+    lineInQuestion.setPitchAtIndex(noteIndex, pitch);
+    if (oldPitch == pitch) {
+      return;
+    }
+
+    // Rescore the note itself
+    double[] scoresOfLine = this.cachedScores[lineIndex];
+    if (this.cachedPitches != null) {
+      // The cache was built over the overlap graph, so the note's row of the graph holds every
+      // note whose score depends on it
+      OverlapGraph graph = getOverlapGraph();
+      int node = graph.getNode(lineIndex, noteIndex);
+      this.cachedPitches[node] = pitch;
+      double newScore = graph.scoreNode(node, pitch, this.cachedPitches, this.consonanceModel);
+      this.cachedScoreSum += newScore - scoresOfLine[noteIndex];
+      scoresOfLine[noteIndex] = newScore;
+      this.cachedScoreSum += graph.updateNeighbourScores(node, oldPitch, pitch, this.cachedPitches,
+          this.consonanceModel, this.cachedScores);
+      return;
+    }
+    double newScore = getPitchFitnessScore(lineIndex, noteIndex);
+    this.cachedScoreSum += newScore - scoresOfLine[noteIndex];
+    scoresOfLine[noteIndex] = newScore;
+
+    // Then adjust the scores of the overlapping notes in the other harmony lines by the change in
+    // the part of their score which came from this note
+    NeighbourScoreUpdater updater = new NeighbourScoreUpdater(this.consonanceModel, oldPitch,
+        pitch, this.lines.size() - 1);
+    long timestamp = lineInQuestion.getTimeStampAtIndex(noteIndex);
+    long duration = lineInQuestion.getDurationAtIndex(noteIndex);
+    for (int i = 1; i < this.lines.size(); i++) {
+      if (i == lineIndex) {
+        continue;
+      }
+      updater.reset(this.lines.get(i), this.cachedScores[i]);
+      this.lines.get(i).getNotesWithinTimeFrame(timestamp, duration, updater);
+      this.cachedScoreSum += updater.getChangeInSum();
+    }
+    Metrics.PAIR_EVALUATIONS.add(updater.getPairCount());
+  }
+
+  /**
+   * Mutate the pitch of a harmony note to a random pitch within the bounds of its line, updating
+   * the cached fitness scores in the same way as setPitch
+   * 
+   * @param lineIndex The index of the line (must not be the melody, index 0)
+   * @param noteIndex The index of the note within the line
+   */
+  public void mutatePitch(int lineIndex, int noteIndex) {
+    mutatePitch(lineIndex, noteIndex, ThreadLocalRandom.current());
+  }
+
+  /**
+   * The same as mutatePitch(lineIndex, noteIndex), with the new pitch drawn from the given
+   * generator
+   * 
+   * @param lineIndex The index of the line (must not be the melody, index 0)
+   * @param noteIndex The index of the note within the line
+   * @param random The generator to draw the new pitch from
+   */
+  public void mutatePitch(int lineIndex, int noteIndex, RandomGenerator random) {
+    checkHarmonyNoteIndices(lineIndex, noteIndex);
+    Line lineInQuestion = this.lines.get(lineIndex);
+    setPitch(lineIndex, noteIndex,
+        Note.getRandomPitch(lineInQuestion.getMinPitch(), lineInQuestion.getMaxPitch(), random));
+  }
+
+  /**
+   * The same as getPitchFitnessScore, but taken from the cached scores, which are built the first
+   * time they are needed and then kept up to date by setPitch and mutatePitch
+   * 
+   * @param lineIndex The index of the line (must not be the melody, index 0)
+   * @param noteIndex The index of the note within the line
+   * @return The pitch fitness score as a double between 0 (lowest score) and 1 (highest score)
+   */
+  public double getCachedPitchFitnessScore(int lineIndex, int noteIndex) {
+    checkHarmonyNoteIndices(lineIndex, noteIndex);
+    ensureFitnessCache();
+    return this.cachedScores[lineIndex][noteIndex];
+  }
+
+  /**
+   * The same as getAverageFitnessScore, but taken from the cached scores, which are built the first
+   * time they are needed and then kept up to date by setPitch and mutatePitch. Reading it costs
+   * nothing once the cache has been built.
+   * 
+   * The cache only knows about changes made through this population. If pitches are changed some
+   * other way (e.g. through getLineAtIndex(i).setPitchAtIndex) call invalidateFitnessCache
+   * afterwards. Keeping the sum up to date change by change can let rounding errors build up very
+   * slowly, so long searches may also want to invalidate the cache now and again
+   * 
+   * @return The average fitness as a double between 0 and 1
+   */
+  public double getCachedAverageFitnessScore() {
+    ensureFitnessCache();
+    return this.cachedScoreSum / this.cachedScoreCount;
+  }
+
+  /**
+   * Throw away the cached fitness scores, so they are worked out afresh the next time they are
+   * needed
+   */
+  public void invalidateFitnessCache() {
+    this.cachedScores = null;
+    this.cachedPitches = null;
+  }
+
+  private void ensureFitnessCache() {
+    if (this.cachedScores != null) {
+      return;
+    }
+    double[][] scores = scoreAllNotes();
+    if (this.scoringEngine == ScoringEngine.OVERLAP_GRAPH) {
+      // Keep the pitches the scores were built from, so setPitch can rescore over the graph
+      this.cachedPitches = getOverlapGraph().gatherPitches(this.lines);
+    }
+    double sum = 0;
+    int count = 0;
+    for (int l = 1; l < this.lines.size(); l++) {
+      for (int n = 0; n < scores[l].length; n++) {
+        sum += scores[l][n];
+        count++;
+      }
+    }
+    this.cachedScores = scores;
+    this.cachedScoreSum = sum;
+    this.cachedScoreCount = count;
+  }
+
+  private void checkHarmonyNoteIndices(int lineIndex, int noteIndex) {
     // Check the parameters
     if (lineIndex > lines.size() - 1 || lineIndex < 1) {
       throw new InvalidParameterException(lineIndex + " is not a valid lineIndex value. "
@@ -97,67 +424,293 @@ public class LinePopulation {
           + " noteIndex must be between 0 < noteIndex < "
           + String.valueOf(lines.get(lineIndex).getLength() - 1));
     }
+  }
 
-    Line lineInQuestion = this.lines.get(lineIndex);
-    Note noteInQuestion = lineInQuestion.getNotes().get(noteIndex);
+  /**
+   * Compute the average of getPitchFitnessScore() as taken over all the notes in the harmony lines
+   * of this population (the melody can't be scored, see getPitchFitnessScore)
+   * 
+   * The notes are scored by the population's scoring engine (see setScoringEngine). By default
+   * they are all scored over a graph of which notes overlap which, built the first time it is
+   * needed (see ScoringEngine.OVERLAP_GRAPH)
+   * 
+   * @return The average fitness as a double between 0 and 1
+   */
+  public double getAverageFitnessScore() {
 
-    // First we need to build a HashMap of Notes to the times for which they are on at the same time
-    // as this note
-    // We do this by looking at each other line in turn and building a hashmap for each, then adding
-    // these to a list and concatenating them
-    HashMap<Note, Long> concatenatedMapOfNotesToDurations = new HashMap<Note, Long>();
-    for (int i = 0; i < this.lines.size(); i++) {
+    double[][] scores = scoreAllNotes();
 
-      if (i == lineIndex) {
-        // We don't consider the line we're on
-        continue;
-      }
+    // Count the number of values whose score we are computing
+    int totalScores = 0;
+    // Get the sum of all the scores
+    double sumOfScores = 0;
 
-      HashMap<Note, Long> mapOfNotesToDurations = this.lines.get(i)
-          .getNotesWithinTimeFrame(noteInQuestion.getTimestamp(), noteInQuestion.getDuration());
-      for (Note note : mapOfNotesToDurations.keySet()) {
-        concatenatedMapOfNotesToDurations.put(note, mapOfNotesToDurations.get(note));
+    for (int l = 1; l < this.lines.size(); l++) {
+      for (int n = 0; n < scores[l].length; n++) {
+        totalScores += 1;
+        sumOfScores += scores[l][n];
       }
     }
-    // Now we have a hashmap of all the notes in all the other lines which are on at the same time
-    // as this note mapped to the time for which they are on.
-    // The score is then a weighted sum of the individual consonance scores
+    return sumOfScores / totalScores;
 
-    double sum = 0;
+  }
+
+  /**
+   * @return The score of every harmony note, by line then note (the melody's row is empty), worked
+   *         out with the current scoring engine
+   */
+  private double[][] scoreAllNotes() {
+    long start = Metrics.FITNESS_EVALUATIONS.start();
+    try {
+      if (this.scoringEngine == ScoringEngine.SWEEP_LINE) {
+        return SweepLineScorer.score(this.lines, this.consonanceModel);
+      }
+      if (this.scoringEngine == ScoringEngine.OVERLAP_GRAPH) {
+        OverlapGraph graph = getOverlapGraph();
+        return graph.score(graph.gatherPitches(this.lines), this.consonanceModel);
+      }
 
-    for (Note note : concatenatedMapOfNotesToDurations.keySet()) {
-      // Multiply the consonance score by the time for which the note is on and add it to the total
-      // sum
-      sum += noteInQuestion.calculateIPitchConsonanceScore(note)
-          * concatenatedMapOfNotesToDurations.get(note);
+      double[][] scores = new double[this.lines.size()][];
+      scores[0] = new double[0];
+      for (int l = 1; l < this.lines.size(); l++) {
+        scores[l] = new double[this.lines.get(l).getLength()];
+        for (int n = 0; n < scores[l].length; n++) {
+          scores[l][n] = getPitchFitnessScore(l, n);
+        }
+      }
+      return scores;
+    } finally {
+      Metrics.FITNESS_EVALUATIONS.stop(start);
     }
+  }
 
-    // To normalise the score, divide it by the total time the note is on for * the number of
-    // harmony lines, so that we get a score between 0 and 1
-    return sum / (noteInQuestion.getDuration() * (this.lines.size() - 1));
+  /**
+   * @return Which notes overlap which, built now if it hasn't been already or if lines or notes
+   *         have been added since it was built
+   */
+  OverlapGraph getOverlapGraph() {
+    OverlapGraph graph = this.overlapGraph;
+    if (graph == null || !graph.fits(this.lines)) {
+      graph = new OverlapGraph(this.lines);
+      this.overlapGraph = graph;
+    }
+    return graph;
+  }
 
+  /**
+   * @return The pitch of every note, numbered as in the overlap graph
+   */
+  int[] getPitchesByNode() {
+    return getOverlapGraph().gatherPitches(this.lines);
   }
 
   /**
-   * Compute the average of getPitchFitnessScore() as taken over all the notes in this population
+   * The same as getAverageFitnessScore(), but with the notes scored in parallel on a fork-join pool
+   * (e.g. ForkJoinPool.commonPool()). The notes of all the harmony lines are split into ranges
+   * which are scored by separate tasks, and the scores are then added up in the same order as
+   * getAverageFitnessScore() adds them, so the result is exactly the same whatever the number of
+   * threads.
    * 
+   * With the OVERLAP_GRAPH engine the tasks share the population's overlap graph and a snapshot of
+   * its pitches, and each scores its range of notes over the graph. Otherwise each note is scored
+   * with getPitchFitnessScore, as the sweep of SWEEP_LINE passes through every line at once and
+   * can't be split up by note.
+   * 
+   * The population must not be changed while it is being scored.
+   * 
+   * @param pool The pool on which to score the notes
    * @return The average fitness as a double between 0 and 1
    */
-  public double getAverageFitnessScore() {
+  public double getAverageFitnessScore(ForkJoinPool pool) {
+
+    // Lay the harmony notes out one line after another, so that each task gets a range of them
+    int[] lineOffsets = new int[this.lines.size() + 1];
+    for (int l = 1; l < this.lines.size(); l++) {
+      lineOffsets[l + 1] = lineOffsets[l] + this.lines.get(l).getLength();
+    }
+    double[] scores = new double[lineOffsets[this.lines.size()]];
+
+    long start = Metrics.FITNESS_EVALUATIONS.start();
+    OverlapGraph graph = null;
+    int[] pitches = null;
+    if (this.scoringEngine == ScoringEngine.OVERLAP_GRAPH) {
+      // The harmony notes are numbered in the graph in the same order as they are laid out here
+      graph = getOverlapGraph();
+      pitches = graph.gatherPitches(this.lines);
+      Metrics.PAIR_EVALUATIONS.add(graph.getStart(graph.getNodeCount()));
+    }
+    pool.invoke(new ScoringTask(this, graph, pitches, lineOffsets, scores, 0, scores.length));
+    Metrics.FITNESS_EVALUATIONS.stop(start);
 
-    // Count the number of values whose score we are computing
-    int totalScores = 0;
-    // Get the sum of all the scores
     double sumOfScores = 0;
+    for (int i = 0; i < scores.length; i++) {
+      sumOfScores += scores[i];
+    }
+    return sumOfScores / scores.length;
 
-    for (int l = 0; l < this.lines.size(); l++) {
-      for (int n = 0; n < this.lines.get(l).getLength(); n++) {
-        totalScores += 1;
-        sumOfScores += this.getPitchFitnessScore(l, n);
-      }
+  }
+
+  /**
+   * Sums the consonance score of a note against each note visited in another line, weighted by the
+   * time for which they are on together
+   */
+  private static class PitchScoreAccumulator implements NoteOverlapVisitor {
+
+    private final ConsonanceModel consonanceModel;
+    private final int pitchInQuestion;
+    private Line otherLine;
+    private double sum;
+    private long pairCount;
+
+    PitchScoreAccumulator(ConsonanceModel consonanceModel, int pitchInQuestion) {
+      this.consonanceModel = consonanceModel;
+      this.pitchInQuestion = pitchInQuestion;
+    }
+
+    void reset(Line otherLine) {
+      this.otherLine = otherLine;
+      this.sum = 0;
+    }
+
+    double getSum() {
+      return this.sum;
     }
-    return sumOfScores / totalScores;
 
+    /**
+     * @return The number of notes visited since the accumulator was created, for Metrics
+     */
+    long getPairCount() {
+      return this.pairCount;
+    }
+
+    @Override
+    public void visit(int noteIndex, long overlapTicks) {
+      this.pairCount++;
+      // Multiply the consonance score by the time for which the note is on and add it to the sum
+      this.sum += this.consonanceModel.getConsonanceScore(this.pitchInQuestion,
+          this.otherLine.getPitchAtIndex(noteIndex)) * overlapTicks;
+    }
+  }
+
+  /**
+   * Adjusts the cached scores of the notes visited in another harmony line after the pitch of a
+   * note which overlaps them has changed
+   */
+  private static class NeighbourScoreUpdater implements NoteOverlapVisitor {
+
+    private final ConsonanceModel consonanceModel;
+    private final int oldPitch;
+    private final int newPitch;
+    private final int otherLineCount;
+    private Line otherLine;
+    private double[] scoresOfOtherLine;
+    private double changeInSum;
+    private long pairCount;
+
+    NeighbourScoreUpdater(ConsonanceModel consonanceModel, int oldPitch, int newPitch,
+        int otherLineCount) {
+      this.consonanceModel = consonanceModel;
+      this.oldPitch = oldPitch;
+      this.newPitch = newPitch;
+      this.otherLineCount = otherLineCount;
+    }
+
+    void reset(Line otherLine, double[] scoresOfOtherLine) {
+      this.otherLine = otherLine;
+      this.scoresOfOtherLine = scoresOfOtherLine;
+      this.changeInSum = 0;
+    }
+
+    double getChangeInSum() {
+      return this.changeInSum;
+    }
+
+    /**
+     * @return The number of notes visited since the updater was created, for Metrics
+     */
+    long getPairCount() {
+      return this.pairCount;
+    }
+
+    @Override
+    public void visit(int noteIndex, long overlapTicks) {
+      // The overlap is the same from either note's point of view, so the changed note contributed
+      // its consonance score * overlapTicks to this note's sum, normalised as in
+      // getPitchFitnessScore
+      this.pairCount++;
+      int pitch = this.otherLine.getPitchAtIndex(noteIndex);
+      double change = (this.consonanceModel.getConsonanceScore(pitch, this.newPitch)
+          - this.consonanceModel.getConsonanceScore(pitch, this.oldPitch)) * overlapTicks
+          / (this.otherLine.getDurationAtIndex(noteIndex) * this.otherLineCount);
+      this.scoresOfOtherLine[noteIndex] += change;
+      this.changeInSum += change;
+    }
+  }
+
+  /**
+   * Scores the harmony notes in a range of the flattened note order used by
+   * getAverageFitnessScore(ForkJoinPool), splitting the range in half until it is small enough
+   */
+  private static class ScoringTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LinePopulation population;
+    // The population's overlap graph and the pitch of each of its notes, or null to score each
+    // note with getPitchFitnessScore
+    private final OverlapGraph graph;
+    private final int[] pitches;
+    private final int[] lineOffsets;
+    private final double[] scores;
+    private final int from;
+    private final int to;
+
+    ScoringTask(LinePopulation population, OverlapGraph graph, int[] pitches, int[] lineOffsets,
+        double[] scores, int from, int to) {
+      this.population = population;
+      this.graph = graph;
+      this.pitches = pitches;
+      this.lineOffsets = lineOffsets;
+      this.scores = scores;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from > NOTES_PER_SCORING_TASK) {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(
+            new ScoringTask(this.population, this.graph, this.pitches, this.lineOffsets,
+                this.scores, this.from, mid),
+            new ScoringTask(this.population, this.graph, this.pitches, this.lineOffsets,
+                this.scores, mid, this.to));
+        return;
+      }
+
+      if (this.graph != null) {
+        int firstNode = this.graph.getFirstHarmonyNode();
+        ConsonanceModel consonanceModel = this.population.consonanceModel;
+        for (int i = this.from; i < this.to; i++) {
+          int node = firstNode + i;
+          this.scores[i] =
+              this.graph.scoreNode(node, this.pitches[node], this.pitches, consonanceModel);
+        }
+        return;
+      }
+
+      // Find the line holding the start of the range, then walk through the range line by line
+      int l = 1;
+      while (this.lineOffsets[l + 1] <= this.from) {
+        l++;
+      }
+      for (int i = this.from; i < this.to; i++) {
+        while (i >= this.lineOffsets[l + 1]) {
+          l++;
+        }
+        this.scores[i] = this.population.getPitchFitnessScore(l, i - this.lineOffsets[l]);
+      }
+    }
   }
 
 }
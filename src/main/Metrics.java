@@ -0,0 +1,390 @@
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters, timers and histograms for the parts of the program where the time goes: reading and
+ * writing midi files, overlap queries, consonance evaluations, fitness evaluations and generations
+ * of the genetic optimiser.
+ *
+ * The metrics are static, so they add up across every population and thread in the JVM. They can
+ * be read with getValues, or over JMX once registerMBean has been called. Counting is cheap (a
+ * LongAdder, which doesn't contend between threads), and the inner loops add up their counts
+ * locally and report them once per call rather than once per pair of notes. With setEnabled(false)
+ * every metric becomes a no-op: recording costs a read of one volatile flag, and neither allocates
+ * nor reads the clock.
+ */
+public final class Metrics {
+
+  // Returned by Timer.start when the metrics are off, so that stop knows to do nothing even if
+  // they are switched on in between
+  private static final long NOT_TIMED = Long.MIN_VALUE;
+
+  private static volatile boolean enabled = true;
+
+  private static final Map<String, Object> METRICS = new TreeMap<String, Object>();
+
+  /**
+   * The notes read from midi files
+   */
+  public static final Counter NOTES_IMPORTED = register(new Counter("notesImported"));
+
+  /**
+   * The notes written to midi files
+   */
+  public static final Counter NOTES_EXPORTED = register(new Counter("notesExported"));
+
+  /**
+   * Calls to Line.getNotesWithinTimeFrame
+   */
+  public static final Counter OVERLAP_QUERIES = register(new Counter("overlapQueries"));
+
+  /**
+   * Pairs of overlapping notes whose consonance was scored while working out fitness
+   */
+  public static final Counter PAIR_EVALUATIONS = register(new Counter("pairEvaluations"));
+
+  /**
+   * Lookups found in a FitnessCache
+   */
+  public static final Counter FITNESS_CACHE_HITS = register(new Counter("fitnessCacheHits"));
+
+  /**
+   * Lookups not found in a FitnessCache, which had to be scored
+   */
+  public static final Counter FITNESS_CACHE_MISSES = register(new Counter("fitnessCacheMisses"));
+
+  /**
+   * Reading a melody from a midi file
+   */
+  public static final Timer IMPORTS = register(new Timer("imports"));
+
+  /**
+   * Writing lines to a midi file
+   */
+  public static final Timer EXPORTS = register(new Timer("exports"));
+
+  /**
+   * Scoring every harmony note of a population, for its average fitness or to fill its cache
+   */
+  public static final Timer FITNESS_EVALUATIONS = register(new Timer("fitnessEvaluations"));
+
+  /**
+   * Breeding and scoring one generation of the genetic optimiser
+   */
+  public static final Timer GENERATIONS = register(new Timer("generations"));
+
+  /**
+   * The number of notes in each melody read
+   */
+  public static final Histogram NOTES_PER_IMPORT = register(new Histogram("notesPerImport"));
+
+  private static ObjectName registeredName;
+
+  private Metrics() {}
+
+  private static <T> T register(T metric) {
+    METRICS.put(metric.toString(), metric);
+    return metric;
+  }
+
+  /**
+   * @return Whether the metrics are recording
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param enabled Whether the metrics should record (default true). The values already recorded
+   *        are kept
+   */
+  public static void setEnabled(boolean enabled) {
+    Metrics.enabled = enabled;
+  }
+
+  /**
+   * Set every metric back to zero
+   */
+  public static void reset() {
+    for (Object metric : METRICS.values()) {
+      if (metric instanceof Counter) {
+        ((Counter) metric).reset();
+      } else if (metric instanceof Timer) {
+        ((Timer) metric).reset();
+      } else {
+        ((Histogram) metric).reset();
+      }
+    }
+  }
+
+  /**
+   * Get the current value of every metric. Counters appear under their names, and timers and
+   * histograms as several values: name.count, name.total, name.max, name.p50 and name.p99 (in
+   * nanoseconds for timers). Percentiles are the upper bounds of power of two buckets, so are
+   * within a factor of two of the true value
+   *
+   * @return The values by name, in name order
+   */
+  public static Map<String, Long> getValues() {
+    Map<String, Long> values = new TreeMap<String, Long>();
+    for (Map.Entry<String, Object> entry : METRICS.entrySet()) {
+      Object metric = entry.getValue();
+      if (metric instanceof Counter) {
+        values.put(entry.getKey(), ((Counter) metric).get());
+      } else {
+        Histogram histogram = (metric instanceof Timer) ? ((Timer) metric).histogram
+            : (Histogram) metric;
+        histogram.addValues(entry.getKey(), values);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return The pairs of notes scored for each second spent evaluating fitness, or 0 if no time
+   *         has been spent
+   */
+  public static double getPairEvaluationsPerSecond() {
+    long nanos = FITNESS_EVALUATIONS.getTotalNanos();
+    return (nanos == 0) ? 0 : PAIR_EVALUATIONS.get() * 1e9 / nanos;
+  }
+
+  /**
+   * Make the metrics available over JMX from the platform MBean server, as main:type=Metrics.
+   * Calling this again does nothing
+   *
+   * @return The name the metrics are registered under
+   * @throws JMException if the metrics can't be registered
+   */
+  public static synchronized ObjectName registerMBean() throws JMException {
+    if (registeredName == null) {
+      ObjectName name = new ObjectName("main:type=Metrics");
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(new MetricsBean(), MetricsMXBean.class, true), name);
+      registeredName = name;
+    }
+    return registeredName;
+  }
+
+  /**
+   * A count of events
+   */
+  public static final class Counter {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name) {
+      this.name = name;
+    }
+
+    public void increment() {
+      if (enabled) {
+        this.count.increment();
+      }
+    }
+
+    /**
+     * @param amount The number of events to count at once
+     */
+    public void add(long amount) {
+      if (enabled) {
+        this.count.add(amount);
+      }
+    }
+
+    public long get() {
+      return this.count.sum();
+    }
+
+    void reset() {
+      this.count.reset();
+    }
+
+    @Override
+    public String toString() {
+      return this.name;
+    }
+  }
+
+  /**
+   * Times an operation, keeping a histogram of how long it takes. Use as
+   * {@code long start = timer.start(); ... timer.stop(start);}
+   */
+  public static final class Timer {
+
+    private final String name;
+    private final Histogram histogram;
+
+    Timer(String name) {
+      this.name = name;
+      this.histogram = new Histogram(name);
+    }
+
+    /**
+     * @return The time to pass to stop
+     */
+    public long start() {
+      return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * @param start The time returned by start
+     */
+    public void stop(long start) {
+      if (start != NOT_TIMED && enabled) {
+        this.histogram.record(System.nanoTime() - start);
+      }
+    }
+
+    public long getCount() {
+      return this.histogram.getCount();
+    }
+
+    public long getTotalNanos() {
+      return this.histogram.getTotal();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return See Histogram.getPercentile
+     */
+    public long getPercentileNanos(double percentile) {
+      return this.histogram.getPercentile(percentile);
+    }
+
+    void reset() {
+      this.histogram.reset();
+    }
+
+    @Override
+    public String toString() {
+      return this.name;
+    }
+  }
+
+  /**
+   * Counts values in buckets by their power of two, so that recording one is a few atomic adds
+   * whatever has been recorded before. Negative values are counted as 0
+   */
+  public static final class Histogram {
+
+    private final String name;
+    // Bucket b holds the values with b significant bits, i.e. 0 in bucket 0 and [2^(b-1), 2^b)
+    private final AtomicLongArray buckets = new AtomicLongArray(65);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram(String name) {
+      this.name = name;
+    }
+
+    public void record(long value) {
+      if (!enabled) {
+        return;
+      }
+      value = Math.max(value, 0);
+      this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+      this.count.increment();
+      this.total.add(value);
+      this.max.accumulate(value);
+    }
+
+    public long getCount() {
+      return this.count.sum();
+    }
+
+    public long getTotal() {
+      return this.total.sum();
+    }
+
+    public long getMax() {
+      return this.max.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The upper bound of the bucket holding the percentile (but no more than the largest
+     *         value recorded), or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+      long count = getCount();
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+      long seen = 0;
+      for (int b = 0; b < 65; b++) {
+        seen += this.buckets.get(b);
+        if (seen >= rank) {
+          long upperBound = (b >= 63) ? Long.MAX_VALUE : (1L << b) - 1;
+          return Math.min(upperBound, getMax());
+        }
+      }
+      return getMax();
+    }
+
+    void addValues(String prefix, Map<String, Long> values) {
+      values.put(prefix + ".count", getCount());
+      values.put(prefix + ".total", getTotal());
+      values.put(prefix + ".max", getMax());
+      values.put(prefix + ".p50", getPercentile(50));
+      values.put(prefix + ".p99", getPercentile(99));
+    }
+
+    void reset() {
+      for (int b = 0; b < 65; b++) {
+        this.buckets.set(b, 0);
+      }
+      this.count.reset();
+      this.total.reset();
+      this.max.reset();
+    }
+
+    @Override
+    public String toString() {
+      return this.name;
+    }
+  }
+
+  private static final class MetricsBean implements MetricsMXBean {
+
+    @Override
+    public Map<String, Long> getValues() {
+      return Metrics.getValues();
+    }
+
+    @Override
+    public double getPairEvaluationsPerSecond() {
+      return Metrics.getPairEvaluationsPerSecond();
+    }
+
+    @Override
+    public boolean isEnabled() {
+      return Metrics.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+      Metrics.setEnabled(enabled);
+    }
+
+    @Override
+    public void reset() {
+      Metrics.reset();
+    }
+  }
+
+}
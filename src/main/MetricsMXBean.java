@@ -0,0 +1,30 @@
+package main;
+
+import java.util.Map;
+
+/**
+ * The view of Metrics given over JMX (see Metrics.registerMBean), so that a running harmoniser can
+ * be watched from JConsole or VisualVM
+ */
+public interface MetricsMXBean {
+
+  /**
+   * @return Every metric's current values (see Metrics.getValues)
+   */
+  Map<String, Long> getValues();
+
+  /**
+   * @return See Metrics.getPairEvaluationsPerSecond
+   */
+  double getPairEvaluationsPerSecond();
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  /**
+   * Set every metric back to zero
+   */
+  void reset();
+
+}
@@ -2,6 +2,7 @@ package main;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.InvalidParameterException;
 import java.text.DateFormat;
@@ -10,13 +11,11 @@ import java.util.Date;
 import java.util.List;
 
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
-import javax.sound.midi.SysexMessage;
 import javax.sound.midi.Track;
 
 import org.slf4j.Logger;
@@ -40,8 +39,13 @@ public class MidiStatic {
   /**
    * Takes a string path (pointing to a midi file) and converts the midi data into a Line object
    * 
-   * Note: This method is currently quite brittle, and cannot be relied upon to work for complex
-   * midi files. The midi files I tested it with are straightforward, single channel sequences of
+   * The notes of every track and channel are put into the one line, in the order in which they
+   * start within each track. Each "Note On" is paired with the next "Note Off" (or "Note On" with
+   * velocity 0) on the same channel and pitch, in a single pass through each track, and any other
+   * events (meta events, controllers and so on) are skipped. Notes still on at the end of a track
+   * are ended with it.
+   * 
+   * The midi files this was first tested with are straightforward, single channel sequences of
    * Note_ON and Note_OFF events of the kind which can be easily generated with ScoreCloud
    * http://scorecloud.com/ (Midi export requires plus subscription for about $5 per month and you
    * get a free month).
@@ -60,7 +64,8 @@ public class MidiStatic {
     }
     
 
-    logger.info("Attempting to generate Line object from midi file at url "+filepath);
+    logger.info("Attempting to generate Line object from midi file at url {}", filepath);
+    long start = Metrics.IMPORTS.start();
 
     File midiImport = new File(filepath);
     
@@ -73,68 +78,39 @@ public class MidiStatic {
     
     logger.info("Successfully obtained midi sequence. Analysing Tracks");
 
+    // Pair up the "Note On" and "Note Off" events as we go, so each track is only read once
+    NotePairer pairer = new NotePairer(melody);
+
     // Iterate over the tracks in the sequence
     for (Track track : sequence.getTracks()) {
 
       // Look at each event in the track
       for (int i = 0; i < track.size(); i++) {
 
-        // These values will trigger an error in the event data could not be properly retrieved
-        long timestamp = -1;
-        long duration = -1;
-        int pitch = -1;
-        int velocity = -1;
-
         // Get the current midi event
         MidiEvent event = track.get(i);
 
-        // Get the timestamp for the event, in ticks
-        timestamp = event.getTick();
-
         MidiMessage message = event.getMessage();
 
-        // We are only interested in "Note On" and "Note Off" events, so we search for the On events
-        // then look ahead to the Off events
+        // We are only interested in "Note On" and "Note Off" events, which are short messages. A
+        // "Note On" with a velocity of 0 is another way of switching a note off
         if (message instanceof ShortMessage) {
           ShortMessage sm = (ShortMessage) message;
-          if (sm.getCommand() == NOTE_ON) {
-            pitch = sm.getData1();
-            velocity = sm.getData2();
-
-            // Search ahead for the "Note Off" event
-            int j = i;
-            MidiEvent nextEvent = null;
-            MidiMessage nextMessage = null;
-            ShortMessage sm2 = null;
-            long endTime = 0;
-            int offPitch = -1;
-            // The correct "Note Off" event is the subsequent short message Note Off event with the
-            // same pitch as the Note On event
-            // There is no guarantee that any subsequent "Note Off" will be the correct one, as the
-            // notes can overlap even in the same chanell
-            while (!(nextMessage instanceof ShortMessage) || !(sm2.getCommand() == NOTE_OFF)
-                || offPitch != pitch) {
-              nextEvent = track.get(j + 1);
-              nextMessage = nextEvent.getMessage();
-              sm2 = (ShortMessage) nextMessage;
-              offPitch = sm2.getData1();
-              j++;
-              if (j > track.size()) {
-                throw new IndexOutOfBoundsException(
-                    "I have reached the end of the track without finding the 'Note Off' signal");
-              }
-              endTime = nextEvent.getTick();
-            }
-            duration = endTime - timestamp;
-
-            // Add the note to the melody line
-            melody.addNoteToLine(timestamp, duration, pitch, velocity);
+          if (sm.getCommand() == NOTE_ON && sm.getData2() > 0) {
+            pairer.noteOn(sm.getChannel(), sm.getData1(), sm.getData2(), event.getTick());
+          } else if (sm.getCommand() == NOTE_OFF || sm.getCommand() == NOTE_ON) {
+            pairer.noteOff(sm.getChannel(), sm.getData1(), event.getTick());
           }
         }
       }
+
+      pairer.endOfTrack(track.ticks());
     }
     
-    logger.info("Successfully generated line object from "+filepath);
+    Metrics.IMPORTS.stop(start);
+    Metrics.NOTES_IMPORTED.add(melody.getLength());
+    Metrics.NOTES_PER_IMPORT.record(melody.getLength());
+    logger.info("Successfully generated line object from {}", filepath);
     
     return melody;
   }
@@ -159,7 +135,9 @@ public class MidiStatic {
 
   /**
    * Takes a list of lines as input, overlays them in a midi sequence and saves them out to a
-   * specified destination. All lines are currently saved to a single channel with the piano sound
+   * specified destination. All lines are currently saved to a single channel with the piano sound,
+   * one track per line. To render to a stream or a byte array instead of a file, use a
+   * StandardMidiFileWriter directly
    * 
    * @param lines The list of lines to be overlaid and saved
    * @param filepath The filepath to be saved to. Must end with .mid
@@ -175,103 +153,16 @@ public class MidiStatic {
     
     logger.info("Saving lines to midi file");
 
-    // At the moment we assume that all the lines supplied have the same division type and ticks per
-    // beat as the first line. If the timings get messed up, this may well be why
-    float divisionType = lines.get(0).getDivisionType();
-    int ticksPerBeat = lines.get(0).getTicksPerBeat();
-
-    Sequence s = new Sequence(divisionType, ticksPerBeat);
-
-    for (Line l : lines) {
-      addLineToMidiSequence(s, l);
+    // The bytes are encoded directly and written straight to the file, without building up a
+    // Sequence first (see StandardMidiFileWriter)
+    FileOutputStream out = new FileOutputStream(filepath);
+    try {
+      new StandardMidiFileWriter().write(lines, out.getChannel());
+    } finally {
+      out.close();
     }
-
-    File f = new File(filepath);
-    MidiSystem.write(s, 1, f);
     
-    logger.info("Successfully saved lines to midi file at "+filepath);
-
-  }
-
-  /**
-   * Take a Line object as input and adds it to a midi sequence. Based on (more or less verbatim)
-   * http://www.automatic-pilot.com/midifile.html
-   * 
-   * @param s The Sequence to which the line will be added.
-   * @param line The line to be added to the midi sequence
-   * @throws InvalidMidiDataException
-   */
-  private static void addLineToMidiSequence(Sequence s, Line line) throws InvalidMidiDataException {
-
-    Track t = s.createTrack();
-
-    // Turn on general midi sound set
-    byte[] b = {(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
-    SysexMessage sm = new SysexMessage();
-    sm.setMessage(b, 6);
-    MidiEvent me = new MidiEvent(sm, (long) 0);
-    t.add(me);
-
-    // Set track name
-    MetaMessage mt = new MetaMessage();
-    String TrackName = new String("midifile track");
-    mt.setMessage(0x03, TrackName.getBytes(), TrackName.length());
-    me = new MidiEvent(mt, (long) 0);
-    t.add(me);
-
-    // Set omni on
-    addShortMessageToTrack(t, 0xB0, 0x7D, 0x00, 0, 0);
-
-    // Turn poly on
-    addShortMessageToTrack(t, 0xB0, 0x7F, 0x00, 0, 0);
-
-    // Set instrument to piano
-    addShortMessageToTrack(t, 0xC0, 0x00, 0x00, 0, 0);
-
-    for (int i = 0; i < line.getLength(); i++) {
-
-      // Note on at t=timestamp
-      addShortMessageToTrack(t, NOTE_ON, line.getPitchAtIndex(i), line.getVelocityAtIndex(i),
-          line.getTimeStampAtIndex(i), 0);
-
-      // Note off at timestamp+duration
-      addShortMessageToTrack(t, NOTE_OFF, line.getPitchAtIndex(i), 0x00,
-          line.getTimeStampAtIndex(i), line.getDurationAtIndex(i));
-
-    }
-
-    // Set end of track a short while after the last note ends
-    long endTimeStamp = line.getTimeStampAtIndex(line.getLength() - 1)
-        + line.getDurationAtIndex(line.getLength() - 1) + 20;
-    mt = new MetaMessage();
-    byte[] bet = {}; // empty array
-    mt.setMessage(0x2F, bet, 0);
-    me = new MidiEvent(mt, endTimeStamp);
-    t.add(me);
-
-  }
-
-  /**
-   * A private method to keep saveLineToMidiFile neater. Add a short midi message to the Track t.
-   * 
-   * @param t The track the message will be added to
-   * @param status The MIDI status byte for this short message, defining in broad terms what the
-   *        message does (e.g. NOTE_ON, NOTE_OFF)
-   * @param dataByte1 The first databyte as an int or byte. In the case of NOTE_ON/NOTE_OFF this is
-   *        the pitch
-   * @param dataByte2 The second databyte as an int or byte. In the case of NOTE_ON/NOTE_OFF this is
-   *        the velocity
-   * @param timestamp The time at which the event in this message occurs (as a long)
-   * @param duration The duration of the event. If status != NOTE_OFF then this should be set to 0
-   * @throws InvalidMidiDataException
-   */
-  private static void addShortMessageToTrack(Track t, int status, int dataByte1, int dataByte2,
-      long timestamp, long duration) throws InvalidMidiDataException {
-
-    ShortMessage mm = new ShortMessage();
-    mm.setMessage(status, dataByte1, dataByte2);
-    MidiEvent me = new MidiEvent(mm, timestamp + duration);
-    t.add(me);
+    logger.info("Successfully saved lines to midi file at {}", filepath);
 
   }
 
@@ -0,0 +1,26 @@
+package main;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the threads of a pool, so the pools can be told apart in a thread dump or profiler. The
+ * threads are daemons, so a pool which is never shut down doesn't keep the JVM alive
+ */
+final class NamedThreadFactory implements ThreadFactory {
+
+  private final String prefix;
+  private final AtomicInteger count = new AtomicInteger();
+
+  NamedThreadFactory(String prefix) {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, this.prefix + "-" + this.count.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+
+}
@@ -1,6 +1,9 @@
 package main;
 
 import java.security.InvalidParameterException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
 
 /**
  * Note objects form the building blocks of line objects
@@ -15,6 +18,13 @@ public class Note {
   private int pitch;
   private int velocity;
 
+  /**
+   * Incremented whenever the timestamp or duration of any note changes. Lines cache a time index
+   * over their notes (see Line.getNotesWithinTimeFrame) and use this to know when to rebuild it.
+   * Timings are only really changed while building lines, so a single shared counter is cheap.
+   */
+  private static final AtomicLong timingVersion = new AtomicLong();
+
   /**
    * Create a note object with a supplied timestamp, duration, pitch and velocity
    * 
@@ -37,6 +47,7 @@ public class Note {
 
   public void setTimestamp(long timestamp) {
     this.timestamp = timestamp;
+    timingVersion.incrementAndGet();
   }
 
   public long getDuration() {
@@ -45,6 +56,7 @@ public class Note {
 
   public void setDuration(long duration) {
     this.duration = duration;
+    timingVersion.incrementAndGet();
   }
 
   public int getPitch() {
@@ -63,6 +75,13 @@ public class Note {
     this.velocity = velocity;
   }
 
+  /**
+   * @return A counter which changes whenever the timestamp or duration of any note is set
+   */
+  static long getTimingVersion() {
+    return timingVersion.get();
+  }
+
   /**
    * Changes the pitch to any key between minKey and maxKey, inclusive, with equal probability
    * 
@@ -70,6 +89,31 @@ public class Note {
    * @param maxPitch The upper bound (inclusive) which the note may mutate between
    */
   public void mutatePitch(int minPitch, int maxPitch) {
+    mutatePitch(minPitch, maxPitch, ThreadLocalRandom.current());
+  }
+
+  /**
+   * Changes the pitch to any key between minKey and maxKey, inclusive, with equal probability,
+   * drawing from the given generator. Pass a seeded generator to be able to repeat the mutation
+   * 
+   * @param minPitch The lower bound (inclusive) which the note may mutate between
+   * @param maxPitch The upper bound (inclusive) which the note may mutate between
+   * @param random The generator to draw the new pitch from
+   */
+  public void mutatePitch(int minPitch, int maxPitch, RandomGenerator random) {
+    checkPitchBounds(minPitch, maxPitch);
+    this.setPitch(getRandomPitch(minPitch, maxPitch, random));
+  }
+
+  /**
+   * Check that a pair of bounds can be passed to mutatePitch
+   * 
+   * @param minPitch The lower bound (inclusive)
+   * @param maxPitch The upper bound (inclusive)
+   * @throws InvalidParameterException if the bounds are not valid midi pitches or are the wrong way
+   *         around
+   */
+  static void checkPitchBounds(int minPitch, int maxPitch) {
     if (minPitch < 0 || maxPitch < 0 || minPitch > 127 || maxPitch > 127) {
       throw new InvalidParameterException("keys must be between 0<key<127. You have set minKey = "
           + minPitch + " and maxKey = " + maxPitch);
@@ -77,8 +121,19 @@ public class Note {
     if (minPitch > maxPitch) {
       throw new InvalidParameterException("minKey cannot be greater than maxKey");
     }
-    int newPitch = (int) Math.round((double) minPitch + (maxPitch - minPitch) * Math.random());
-    this.setPitch(newPitch);
+  }
+
+  /**
+   * Pick a pitch between minPitch and maxPitch, inclusive, with equal probability. The bounds are
+   * not checked
+   * 
+   * @param minPitch The lower bound (inclusive)
+   * @param maxPitch The upper bound (inclusive)
+   * @param random The generator to draw the pitch from
+   * @return The pitch
+   */
+  static int getRandomPitch(int minPitch, int maxPitch, RandomGenerator random) {
+    return minPitch + random.nextInt(maxPitch - minPitch + 1);
   }
 
   /**
@@ -94,37 +149,26 @@ public class Note {
    * 
    * @param comparisonNote The note whose pitch will be compared
    * @return A score between 0 and 1, with 1 being most consonant and 0 being least
+   * @throws InvalidParameterException if either pitch is not a midi pitch (0-127)
    */
   public double calculateIPitchConsonanceScore(Note comparisonNote) {
 
-    // We want to calculate the frequency ratio of these two notes.
-    int pitchOfThisNote = this.getPitch();
-    int pitchOfComparisonNote = comparisonNote.getPitch();
-
-    // This was originally something cleverer, but like so many clever things, it was obtuse and not
-    // as good as something simpler, so we just assign a score based on the intervals
-    // Of course this is highly subjective, but it at least means that we will usually have more
-    // consonances than dissonances in the song
-
-    int semitoneSteps = Math.abs(pitchOfThisNote - pitchOfComparisonNote);
-
-    if (semitoneSteps == 0) {
-      // if the notes are the same this is consonant but dull, so assign a low score
-      return 0.25;
-    } else if (semitoneSteps % 7 == 0 || semitoneSteps % 12 == 0) {
-      // The perfect intervals get a high score
-      return 1.0;
-    } else if (semitoneSteps % 3 == 0 || semitoneSteps % 4 == 0 || semitoneSteps % 8 == 0
-        || semitoneSteps % 9 == 0) {
-      // The major/minor 3rds and 6ths are imperfect consonances so get upper-middle scores
-      return 0.75;
-    } else {
-      // All of the others get low scores as they are dissonant
-      return 0.0;
-    }
-
-
+    return calculateIPitchConsonanceScore(this.getPitch(), comparisonNote.getPitch());
+  }
 
+  /**
+   * As calculateIPitchConsonanceScore(Note), but works directly from the pitches so that lines
+   * which don't hold Note objects can be scored without creating them. The scores are looked up in
+   * the table of IntervalConsonanceModel.DEFAULT rather than worked out each time
+   * 
+   * @param pitchOfThisNote The pitch of the first note
+   * @param pitchOfComparisonNote The pitch of the note it is compared with
+   * @return A score between 0 and 1, with 1 being most consonant and 0 being least
+   * @throws InvalidParameterException if either pitch is not a midi pitch (0-127)
+   */
+  static double calculateIPitchConsonanceScore(int pitchOfThisNote, int pitchOfComparisonNote) {
+    return IntervalConsonanceModel.DEFAULT.getConsonanceScore(pitchOfThisNote,
+        pitchOfComparisonNote);
   }
 
 }
@@ -0,0 +1,72 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The default note storage: a list of Note objects
+ */
+class NoteObjectStore extends NoteStore {
+
+  private final List<Note> notes;
+
+  NoteObjectStore() {
+    this.notes = new ArrayList<Note>();
+  }
+
+  NoteObjectStore(List<Note> notes) {
+    this.notes = notes;
+  }
+
+  @Override
+  Line.Storage getStorage() {
+    return Line.Storage.NOTE_OBJECTS;
+  }
+
+  @Override
+  int size() {
+    return this.notes.size();
+  }
+
+  @Override
+  long getTimestamp(int i) {
+    return this.notes.get(i).getTimestamp();
+  }
+
+  @Override
+  long getDuration(int i) {
+    return this.notes.get(i).getDuration();
+  }
+
+  @Override
+  int getPitch(int i) {
+    return this.notes.get(i).getPitch();
+  }
+
+  @Override
+  int getVelocity(int i) {
+    return this.notes.get(i).getVelocity();
+  }
+
+  @Override
+  void setPitch(int i, int pitch) {
+    this.notes.get(i).setPitch(pitch);
+  }
+
+  @Override
+  void addNote(long timestamp, long duration, int pitch, int velocity) {
+    this.notes.add(new Note(timestamp, duration, pitch, velocity));
+  }
+
+  @Override
+  List<Note> asList() {
+    return this.notes;
+  }
+
+  @Override
+  long getTimingVersion() {
+    // Note objects can be retimed by anyone holding them, so we rely on the shared counter
+    return Note.getTimingVersion();
+  }
+
+}
@@ -0,0 +1,18 @@
+package main;
+
+/**
+ * Callback for Line.getNotesWithinTimeFrame. Lets the caller consume the notes which are on during
+ * a time window one at a time, instead of having a HashMap built for every query.
+ */
+public interface NoteOverlapVisitor {
+
+  /**
+   * Called once for each note which is on during the queried window, in timestamp order
+   * 
+   * @param noteIndex The index of the note within the queried line (see Line.getNotes)
+   * @param overlapTicks The time for which the note is on during the window (NOT the duration of
+   *        the note itself)
+   */
+  void visit(int noteIndex, long overlapTicks);
+
+}
@@ -0,0 +1,154 @@
+package main;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns a stream of midi "Note On" and "Note Off" events into notes on a Line, in a single pass.
+ *
+ * Each "Note On" opens a note, which is queued under its channel and pitch. Each "Note Off" closes
+ * the oldest note still open on the same channel and pitch, so overlapping notes of the same pitch
+ * are paired first in, first out. Notes are added to the line in the order they started, as soon as
+ * they and every note which started before them have been closed, so only the notes between the
+ * oldest open note and the newest are ever held here.
+ */
+final class NotePairer {
+
+  static Logger logger = LoggerFactory.getLogger(NotePairer.class);
+
+  private static final int NO_NOTE = -1;
+
+  private final Line line;
+
+  // Notes which have started but not yet been added to the line, in the order they started. The
+  // note at position p has sequence number base + p. A duration of -1 means the note is still open
+  private long[] timestamps = new long[16];
+  private long[] durations = new long[16];
+  private int[] pitches = new int[16];
+  private int[] velocities = new int[16];
+  // The sequence number of the next note open on the same channel and pitch
+  private int[] nextOpen = new int[16];
+  private int base;
+  private int count;
+
+  // The sequence numbers of the oldest and newest open notes for each channel * 128 + pitch
+  private final int[] firstOpen = new int[16 * 128];
+  private final int[] lastOpen = new int[16 * 128];
+
+  /**
+   * @param line The line to which the notes are added
+   */
+  NotePairer(Line line) {
+    this.line = line;
+    Arrays.fill(this.firstOpen, NO_NOTE);
+    Arrays.fill(this.lastOpen, NO_NOTE);
+  }
+
+  /**
+   * @param channel The midi channel (0-15)
+   * @param pitch The pitch of the note
+   * @param velocity The velocity of the note. A velocity of 0 should be passed to noteOff instead,
+   *        as that is how many files switch notes off
+   * @param tick The time of the event
+   */
+  void noteOn(int channel, int pitch, int velocity, long tick) {
+    if (this.count == this.timestamps.length) {
+      int capacity = this.count * 2;
+      this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+      this.durations = Arrays.copyOf(this.durations, capacity);
+      this.pitches = Arrays.copyOf(this.pitches, capacity);
+      this.velocities = Arrays.copyOf(this.velocities, capacity);
+      this.nextOpen = Arrays.copyOf(this.nextOpen, capacity);
+    }
+
+    int position = this.count++;
+    int sequenceNumber = this.base + position;
+    this.timestamps[position] = tick;
+    this.durations[position] = -1;
+    this.pitches[position] = pitch;
+    this.velocities[position] = velocity;
+    this.nextOpen[position] = NO_NOTE;
+
+    int key = (channel << 7) | pitch;
+    if (this.lastOpen[key] == NO_NOTE) {
+      this.firstOpen[key] = sequenceNumber;
+    } else {
+      this.nextOpen[this.lastOpen[key] - this.base] = sequenceNumber;
+    }
+    this.lastOpen[key] = sequenceNumber;
+  }
+
+  /**
+   * @param channel The midi channel (0-15)
+   * @param pitch The pitch of the note
+   * @param tick The time of the event
+   */
+  void noteOff(int channel, int pitch, long tick) {
+    int key = (channel << 7) | pitch;
+    int sequenceNumber = this.firstOpen[key];
+    if (sequenceNumber == NO_NOTE) {
+      // Nothing to switch off, which some files do to be safe
+      return;
+    }
+
+    int position = sequenceNumber - this.base;
+    this.durations[position] = tick - this.timestamps[position];
+    this.firstOpen[key] = this.nextOpen[position];
+    if (this.firstOpen[key] == NO_NOTE) {
+      this.lastOpen[key] = NO_NOTE;
+    }
+
+    flush();
+  }
+
+  /**
+   * Close any notes left open at the end of a track, then add everything to the line
+   *
+   * @param tick The time at which the track ends
+   */
+  void endOfTrack(long tick) {
+    int unclosed = 0;
+    for (int position = 0; position < this.count; position++) {
+      if (this.durations[position] == -1) {
+        this.durations[position] = tick - this.timestamps[position];
+        unclosed++;
+      }
+    }
+    if (unclosed > 0) {
+      logger.warn("Reached the end of the track without finding the 'Note Off' for {} notes, so "
+          + "they have been ended with the track", unclosed);
+    }
+    Arrays.fill(this.firstOpen, NO_NOTE);
+    Arrays.fill(this.lastOpen, NO_NOTE);
+
+    flush();
+  }
+
+  /**
+   * Add every note at the front of the queue which has been closed to the line
+   */
+  private void flush() {
+    int flushed = 0;
+    while (flushed < this.count && this.durations[flushed] != -1) {
+      this.line.addNoteToLine(this.timestamps[flushed], this.durations[flushed],
+          this.pitches[flushed], this.velocities[flushed]);
+      flushed++;
+    }
+    if (flushed == 0) {
+      return;
+    }
+
+    // Move what is left to the front so the arrays only grow with the number of notes in flight
+    int remaining = this.count - flushed;
+    System.arraycopy(this.timestamps, flushed, this.timestamps, 0, remaining);
+    System.arraycopy(this.durations, flushed, this.durations, 0, remaining);
+    System.arraycopy(this.pitches, flushed, this.pitches, 0, remaining);
+    System.arraycopy(this.velocities, flushed, this.velocities, 0, remaining);
+    System.arraycopy(this.nextOpen, flushed, this.nextOpen, 0, remaining);
+    this.base += flushed;
+    this.count = remaining;
+  }
+
+}
@@ -0,0 +1,59 @@
+package main;
+
+import java.util.List;
+
+/**
+ * The storage behind a Line's notes. Line does its own argument checking, so implementations can
+ * assume that indices are in range.
+ */
+abstract class NoteStore {
+
+  /**
+   * @return Which of the Line storage modes this store implements
+   */
+  abstract Line.Storage getStorage();
+
+  abstract int size();
+
+  abstract long getTimestamp(int i);
+
+  abstract long getDuration(int i);
+
+  abstract int getPitch(int i);
+
+  abstract int getVelocity(int i);
+
+  abstract void setPitch(int i, int pitch);
+
+  abstract void addNote(long timestamp, long duration, int pitch, int velocity);
+
+  /**
+   * @return A List view of the notes. Changes made through the Note objects in the list must be
+   *         seen by the store and vice versa
+   */
+  abstract List<Note> asList();
+
+  /**
+   * @return A value which changes whenever the timing of a note already in the store changes (the
+   *         note count is checked separately)
+   */
+  abstract long getTimingVersion();
+
+  /**
+   * Build a time index over the notes currently in the store
+   * 
+   * @return The index
+   */
+  NoteTimeIndex buildTimeIndex() {
+    long timingVersion = getTimingVersion();
+    int count = size();
+    long[] timestamps = new long[count];
+    long[] durations = new long[count];
+    for (int i = 0; i < count; i++) {
+      timestamps[i] = getTimestamp(i);
+      durations[i] = getDuration(i);
+    }
+    return NoteTimeIndex.build(timestamps, durations, count, timingVersion);
+  }
+
+}
@@ -0,0 +1,195 @@
+package main;
+
+/**
+ * An immutable interval index over the notes of a line, used to answer "which notes are on during
+ * this window" queries in O(log n + k) time rather than by scanning every note.
+ *
+ * The notes are sorted by timestamp and laid out as an implicit balanced binary tree (the root of
+ * any range [lo, hi) is its midpoint). Each tree node also stores the latest end time found in its
+ * subtree, so whole subtrees which finish before the window starts can be skipped.
+ *
+ * Indexes are built by Line (see Line.getNotesWithinTimeFrame) and are thrown away whenever the
+ * timing of the line changes.
+ */
+final class NoteTimeIndex {
+
+  // Note indices (into the line) sorted by timestamp, ties broken by index
+  private final int[] order;
+  // Start and end times, aligned with order
+  private final long[] starts;
+  private final long[] ends;
+  // The latest end time in the implicit subtree rooted at each position
+  private final long[] maxEnds;
+
+  // Used by Line to check whether this index still describes the line's notes
+  private final int noteCount;
+  private final long timingVersion;
+
+  private NoteTimeIndex(int[] order, long[] starts, long[] ends, long timingVersion) {
+    this.order = order;
+    this.starts = starts;
+    this.ends = ends;
+    this.maxEnds = new long[order.length];
+    this.noteCount = order.length;
+    this.timingVersion = timingVersion;
+    buildMaxEnds(0, order.length);
+  }
+
+  /**
+   * Build an index from the timestamps and durations of a set of notes
+   *
+   * @param timestamps The timestamp of each note, by note index
+   * @param durations The duration of each note, by note index
+   * @param count The number of notes (the arrays may be longer than this)
+   * @param timingVersion The timing version the notes had when they were read, so that stale
+   *        indexes can be detected (see isValidFor)
+   * @return The index
+   */
+  static NoteTimeIndex build(long[] timestamps, long[] durations, int count,
+      long timingVersion) {
+
+    int[] order = sortIndicesByKey(timestamps, count);
+
+    long[] starts = new long[count];
+    long[] ends = new long[count];
+    for (int p = 0; p < count; p++) {
+      starts[p] = timestamps[order[p]];
+      ends[p] = timestamps[order[p]] + durations[order[p]];
+    }
+    return new NoteTimeIndex(order, starts, ends, timingVersion);
+  }
+
+  /**
+   * @param noteCount The number of notes currently in the line
+   * @param timingVersion The current timing version of the line's notes
+   * @return true if this index was built from the same notes and timings
+   */
+  boolean isValidFor(int noteCount, long timingVersion) {
+    return this.noteCount == noteCount && this.timingVersion == timingVersion;
+  }
+
+  /**
+   * Report every note which is on at some point during [windowStart, windowEnd], in timestamp
+   * order. This matches the semantics of Line.getNotesWithinTimeFrame, so notes which only touch
+   * the window at one end are reported with an overlap of 0.
+   *
+   * @param windowStart The beginning of the window
+   * @param windowEnd The end of the window
+   * @param visitor Receives the index and overlap (in ticks) of each note found
+   */
+  void query(long windowStart, long windowEnd, NoteOverlapVisitor visitor) {
+    query(0, this.noteCount, windowStart, windowEnd, visitor);
+  }
+
+  private void query(int lo, int hi, long windowStart, long windowEnd,
+      NoteOverlapVisitor visitor) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      // Nothing in this subtree is still on by the time the window starts
+      if (this.maxEnds[mid] < windowStart) {
+        return;
+      }
+
+      query(lo, mid, windowStart, windowEnd, visitor);
+
+      // Everything from here on starts after the window has finished
+      if (this.starts[mid] > windowEnd) {
+        return;
+      }
+
+      if (this.ends[mid] >= windowStart) {
+        long endPoint = (this.ends[mid] > windowEnd) ? windowEnd : this.ends[mid];
+        long startPoint = (this.starts[mid] > windowStart) ? this.starts[mid] : windowStart;
+        visitor.visit(this.order[mid], endPoint - startPoint);
+      }
+
+      // Carry on into the right subtree without recursing
+      lo = mid + 1;
+    }
+  }
+
+  private long buildMaxEnds(int lo, int hi) {
+    if (lo >= hi) {
+      return Long.MIN_VALUE;
+    }
+    int mid = (lo + hi) >>> 1;
+    long max = this.ends[mid];
+    long left = buildMaxEnds(lo, mid);
+    long right = buildMaxEnds(mid + 1, hi);
+    if (left > max) {
+      max = left;
+    }
+    if (right > max) {
+      max = right;
+    }
+    this.maxEnds[mid] = max;
+    return max;
+  }
+
+  /**
+   * Stable sort of the indices 0..count-1 by the supplied keys. Lines are almost always already in
+   * timestamp order, so that case is checked for first.
+   *
+   * @param keys The key for each index
+   * @param count The number of indices to sort
+   * @return The sorted indices
+   */
+  static int[] sortIndicesByKey(long[] keys, int count) {
+    int[] order = new int[count];
+    boolean sorted = true;
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+      if (i > 0 && keys[i] < keys[i - 1]) {
+        sorted = false;
+      }
+    }
+    if (!sorted) {
+      mergeSort(order, new int[count], 0, count, keys);
+    }
+    return order;
+  }
+
+  /**
+   * Stable sort of some indices, in place, by the supplied keys, so indices with equal keys stay in
+   * the order they are given in. Nothing is allocated.
+   *
+   * @param keys The key for each index
+   * @param order The indices to sort, in its first count places
+   * @param count The number of indices to sort
+   * @param buffer Scratch space of at least count places
+   */
+  static void sortIndicesByKey(long[] keys, int[] order, int count, int[] buffer) {
+    for (int i = 1; i < count; i++) {
+      if (keys[order[i]] < keys[order[i - 1]]) {
+        mergeSort(order, buffer, 0, count, keys);
+        return;
+      }
+    }
+  }
+
+  private static void mergeSort(int[] order, int[] buffer, int lo, int hi, long[] keys) {
+    if (hi - lo < 2) {
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    mergeSort(order, buffer, lo, mid, keys);
+    mergeSort(order, buffer, mid, hi, keys);
+
+    int i = lo;
+    int j = mid;
+    int k = lo;
+    while (i < mid && j < hi) {
+      // Take from the left on ties to keep the sort stable
+      buffer[k++] = (keys[order[j]] < keys[order[i]]) ? order[j++] : order[i++];
+    }
+    while (i < mid) {
+      buffer[k++] = order[i++];
+    }
+    while (j < hi) {
+      buffer[k++] = order[j++];
+    }
+    System.arraycopy(buffer, lo, order, lo, hi - lo);
+  }
+
+}
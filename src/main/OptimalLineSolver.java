@@ -0,0 +1,169 @@
+package main;
+
+import java.security.InvalidParameterException;
+
+/**
+ * Finds the best possible pitches for one harmony line of a population, with the other lines held
+ * as they are, by dynamic programming rather than random search.
+ *
+ * The notes of a line are never scored against each other, so with the other lines fixed the sum
+ * of every harmony note's score (and so the average fitness) splits into one term per note of the
+ * line: the note's own score, plus the part of each overlapping harmony note's score which comes
+ * from it. Each term depends only on that note's pitch, and is worked out for every pitch in the
+ * line's range. On its own that would make the best pitch for each note independent of the others,
+ * but a leap penalty (see setLeapPenalty) ties each note to the one before it, taking the size of
+ * the leap between them away from the total. The notes are taken in timestamp order and the best
+ * total for every pitch of each note is found from those of the note before (the Viterbi
+ * algorithm), which takes O(notes * range^2) time and finds the best total exactly. With no leap
+ * penalty the inner step reduces to taking the best pitch of each note, in O(notes * range).
+ *
+ * Which notes overlap which is taken from the population's overlap graph (see OverlapGraph), and
+ * the graph, and the order of the line's notes, are looked up afresh on each solve, so a solver
+ * can be used again after the other lines have changed pitch, or any line has been retimed.
+ */
+public class OptimalLineSolver {
+
+  private final LinePopulation population;
+  private final int lineIndex;
+  private final int minPitch;
+  private final int range;
+
+  private double leapPenalty;
+
+  /**
+   * @param population The population holding the line
+   * @param lineIndex The index of the line to be solved (must not be the melody, index 0)
+   * @throws InvalidParameterException if the line index is not that of a harmony line
+   */
+  public OptimalLineSolver(LinePopulation population, int lineIndex) {
+    if (lineIndex < 1 || lineIndex >= population.getNumberOfLines()) {
+      throw new InvalidParameterException(lineIndex + " is not the index of a harmony line");
+    }
+    this.population = population;
+    this.lineIndex = lineIndex;
+
+    Line line = population.getLineAtIndex(lineIndex);
+    this.minPitch = line.getMinPitch();
+    this.range = line.getMaxPitch() - this.minPitch + 1;
+  }
+
+  /**
+   * Find the best pitches for the line, given the current pitches of the other lines
+   *
+   * @return The best pitch for each note of the line, by note index. Of equally good pitches the
+   *         lowest is chosen
+   */
+  public int[] solve() {
+    Line line = this.population.getLineAtIndex(this.lineIndex);
+    int noteCount = line.getLength();
+    // The notes of the line in timestamp order
+    long[] timestamps = new long[noteCount];
+    for (int n = 0; n < noteCount; n++) {
+      timestamps[n] = line.getTimeStampAtIndex(n);
+    }
+    int[] order = NoteTimeIndex.sortIndicesByKey(timestamps, noteCount);
+    double[][] gains = computeGains(noteCount);
+
+    // best[p] is the best total of the notes so far with the latest note at minPitch + p, and
+    // from[k][p] is the pitch of the note before which gives it
+    int[][] from = new int[noteCount][this.range];
+    double[] best = new double[this.range];
+    double[] next = new double[this.range];
+    if (noteCount > 0) {
+      System.arraycopy(gains[order[0]], 0, best, 0, this.range);
+    }
+    for (int k = 1; k < noteCount; k++) {
+      double[] gain = gains[order[k]];
+      if (this.leapPenalty == 0) {
+        int previous = argmax(best);
+        for (int p = 0; p < this.range; p++) {
+          next[p] = best[previous] + gain[p];
+          from[k][p] = previous;
+        }
+      } else {
+        for (int p = 0; p < this.range; p++) {
+          double bestTotal = Double.NEGATIVE_INFINITY;
+          int bestPrevious = 0;
+          for (int q = 0; q < this.range; q++) {
+            double total = best[q] - this.leapPenalty * Math.abs(p - q);
+            if (total > bestTotal) {
+              bestTotal = total;
+              bestPrevious = q;
+            }
+          }
+          next[p] = bestTotal + gain[p];
+          from[k][p] = bestPrevious;
+        }
+      }
+      double[] swap = best;
+      best = next;
+      next = swap;
+    }
+
+    // Trace the best pitches back from the last note
+    int[] pitches = new int[noteCount];
+    if (noteCount > 0) {
+      int p = argmax(best);
+      for (int k = noteCount - 1; k >= 0; k--) {
+        pitches[order[k]] = this.minPitch + p;
+        p = from[k][p];
+      }
+    }
+    return pitches;
+  }
+
+  /**
+   * Solve the line and set its pitches in the population, updating the population's cached
+   * fitness scores (see LinePopulation.setPitch)
+   *
+   * @return The new average fitness of the population
+   */
+  public double apply() {
+    int[] pitches = solve();
+    for (int n = 0; n < pitches.length; n++) {
+      this.population.setPitch(this.lineIndex, n, pitches[n]);
+    }
+    return this.population.getCachedAverageFitnessScore();
+  }
+
+  /**
+   * @return For each note and pitch in the range, how much the note adds to the sum of the
+   *         harmony notes' scores at that pitch
+   */
+  private double[][] computeGains(int noteCount) {
+    double[][] gains = new double[noteCount][this.range];
+    // Taken from the population each time, as it builds a new graph if the lines have changed
+    OverlapGraph graph = this.population.getOverlapGraph();
+    int[] pitches = this.population.getPitchesByNode();
+    ConsonanceModel model = this.population.getConsonanceModel();
+    for (int n = 0; n < noteCount; n++) {
+      graph.computeGains(graph.getNode(this.lineIndex, n), pitches, model, this.minPitch,
+          gains[n]);
+    }
+    return gains;
+  }
+
+  private static int argmax(double[] values) {
+    int best = 0;
+    for (int i = 1; i < values.length; i++) {
+      if (values[i] > values[best]) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @param leapPenalty How much each semitone of leap between one note of the line and the next
+   *        is taken from the sum of the harmony notes' scores (default 0, for no penalty). Each
+   *        note's score is between 0 and 1, so penalties of around 0.01 to 0.1 favour smooth lines
+   *        without overruling the consonance
+   */
+  public void setLeapPenalty(double leapPenalty) {
+    if (leapPenalty < 0) {
+      throw new InvalidParameterException("leapPenalty must not be negative");
+    }
+    this.leapPenalty = leapPenalty;
+  }
+
+}
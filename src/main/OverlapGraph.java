@@ -0,0 +1,292 @@
+package main;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Which notes of a population sound together, and for how long, worked out once. Only the pitches
+ * of a population change while it is being optimised, so LinePopulation builds one of these the
+ * first time it is scored (see ScoringEngine.OVERLAP_GRAPH) and shares it with its copies, and
+ * scoring becomes a loop over flat arrays with no queries of the lines at all. The searches which
+ * score each harmony note at many pitches (OptimalLineSolver and CoordinateDescentOptimiser) use
+ * it in the same way.
+ *
+ * Every note is given a number, the melody's first, then those of line 1 and so on, and the notes
+ * each harmony note overlaps in the other lines (melody included) are held in flat arrays in
+ * compressed sparse row form: those of note g are at positions getStart(g) up to getStart(g + 1),
+ * the other lines in line order and the notes of each in timestamp order, which is the order in
+ * which getPitchFitnessScore finds them. The melody isn't scored, so its notes have no neighbours
+ * of their own. Notes which only touch, and so overlap for 0 ticks, are left out as they make no
+ * difference to any score.
+ *
+ * The graph depends only on the timings of the notes, so it stays good however the pitches change.
+ * It remembers the number of notes and the timing version of each line it was built from, so a
+ * graph left behind by a change of timing can be spotted (see fits) and built again. It is never
+ * changed once built, so can be shared between threads.
+ */
+final class OverlapGraph {
+
+  private final int lineCount;
+  private final int[] lineOffsets;
+  private final long[] timingVersions;
+  private final int[] lineOfNode;
+  private final int[] noteOfNode;
+  private final long[] durations;
+
+  private final int[] starts;
+  private final int[] neighbourNodes;
+  private final long[] overlapTicks;
+
+  /**
+   * @param lines The lines whose notes are to be connected, melody first
+   */
+  OverlapGraph(List<Line> lines) {
+    this.lineCount = lines.size();
+    this.lineOffsets = new int[this.lineCount + 1];
+    this.timingVersions = new long[this.lineCount];
+    for (int l = 0; l < this.lineCount; l++) {
+      this.lineOffsets[l + 1] = this.lineOffsets[l] + lines.get(l).getLength();
+      // Read before the timings, so a change made while the graph is being built is seen later
+      this.timingVersions[l] = lines.get(l).getTimingVersion();
+    }
+    int nodeCount = this.lineOffsets[this.lineCount];
+    this.lineOfNode = new int[nodeCount];
+    this.noteOfNode = new int[nodeCount];
+    this.durations = new long[nodeCount];
+    this.starts = new int[nodeCount + 1];
+
+    Collector collector = new Collector();
+    for (int l = 0; l < this.lineCount; l++) {
+      Line line = lines.get(l);
+      for (int n = 0; n < line.getLength(); n++) {
+        int node = this.lineOffsets[l] + n;
+        this.lineOfNode[node] = l;
+        this.noteOfNode[node] = n;
+        this.durations[node] = line.getDurationAtIndex(n);
+        for (int other = 0; l > 0 && other < this.lineCount; other++) {
+          if (other != l) {
+            collector.offset = this.lineOffsets[other];
+            lines.get(other).getNotesWithinTimeFrame(line.getTimeStampAtIndex(n),
+                line.getDurationAtIndex(n), collector);
+          }
+        }
+        this.starts[node + 1] = collector.count;
+      }
+    }
+    this.neighbourNodes = Arrays.copyOf(collector.nodes, collector.count);
+    this.overlapTicks = Arrays.copyOf(collector.ticks, collector.count);
+  }
+
+  /**
+   * Check that the graph still fits the lines: that they have the same numbers of notes, and the
+   * same timing versions, as the lines it was built from. The copies of a population have the same
+   * timings, so the graph fits them too
+   */
+  boolean fits(List<Line> lines) {
+    if (lines.size() != this.lineCount) {
+      return false;
+    }
+    for (int l = 0; l < this.lineCount; l++) {
+      Line line = lines.get(l);
+      if (line.getLength() != this.lineOffsets[l + 1] - this.lineOffsets[l]
+          || line.getTimingVersion() != this.timingVersions[l]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The number of notes, melody included
+   */
+  int getNodeCount() {
+    return this.lineOfNode.length;
+  }
+
+  /**
+   * @return The number of the first harmony note
+   */
+  int getFirstHarmonyNode() {
+    return this.lineOffsets[1];
+  }
+
+  /**
+   * @param lineIndex The index of a line
+   * @param noteIndex The index of a note in that line
+   * @return The note's number in the graph
+   */
+  int getNode(int lineIndex, int noteIndex) {
+    return this.lineOffsets[lineIndex] + noteIndex;
+  }
+
+  int getLineOfNode(int node) {
+    return this.lineOfNode[node];
+  }
+
+  int getNoteOfNode(int node) {
+    return this.noteOfNode[node];
+  }
+
+  int getStart(int node) {
+    return this.starts[node];
+  }
+
+  int getNeighbourNode(int k) {
+    return this.neighbourNodes[k];
+  }
+
+  /**
+   * @param lines The lines the graph was built from
+   * @return The pitch of every note, by number
+   */
+  int[] gatherPitches(List<Line> lines) {
+    int[] pitches = new int[getNodeCount()];
+    for (int l = 0; l < this.lineCount; l++) {
+      Line line = lines.get(l);
+      for (int n = 0; n < line.getLength(); n++) {
+        pitches[this.lineOffsets[l] + n] = line.getPitchAtIndex(n);
+      }
+    }
+    return pitches;
+  }
+
+  /**
+   * Score every harmony note. The score of each note is a sum over its row of the graph of the
+   * consonance with each neighbour's pitch, weighted by their overlap, added up a line at a time
+   * just as getPitchFitnessScore adds it up, so the scores are the same to the last bit
+   *
+   * @param pitches The pitch of every note, by number (see gatherPitches)
+   * @param consonanceModel The model for scoring pairs of pitches
+   * @return The score of each note of each line, with an empty array for the melody
+   */
+  double[][] score(int[] pitches, ConsonanceModel consonanceModel) {
+    double[][] scores = new double[this.lineCount][];
+    scores[0] = new double[0];
+    for (int l = 1; l < this.lineCount; l++) {
+      double[] lineScores = new double[this.lineOffsets[l + 1] - this.lineOffsets[l]];
+      for (int n = 0; n < lineScores.length; n++) {
+        int node = this.lineOffsets[l] + n;
+        lineScores[n] = scoreNode(node, pitches[node], pitches, consonanceModel);
+      }
+      scores[l] = lineScores;
+    }
+    Metrics.PAIR_EVALUATIONS.add(this.starts[getNodeCount()]);
+    return scores;
+  }
+
+  /**
+   * Score one harmony note at the given pitch, with every other note at its pitch in the array
+   */
+  double scoreNode(int node, int pitch, int[] pitches, ConsonanceModel consonanceModel) {
+    double sum = 0;
+    double lineSum = 0;
+    int currentLine = 0;
+    for (int k = this.starts[node]; k < this.starts[node + 1]; k++) {
+      int neighbour = this.neighbourNodes[k];
+      if (this.lineOfNode[neighbour] != currentLine) {
+        sum += lineSum;
+        lineSum = 0;
+        currentLine = this.lineOfNode[neighbour];
+      }
+      lineSum += consonanceModel.getConsonanceScore(pitch, pitches[neighbour])
+          * this.overlapTicks[k];
+    }
+    sum += lineSum;
+    return sum / (this.durations[node] * (this.lineCount - 1));
+  }
+
+  /**
+   * Adjust the scores of the harmony notes overlapping a note after its pitch has changed, by the
+   * change in the part of their score which came from it
+   *
+   * @param node The number of the note which changed
+   * @param oldPitch Its pitch before the change
+   * @param newPitch Its pitch after the change
+   * @param pitches The pitch of every note, by number
+   * @param consonanceModel The model for scoring pairs of pitches
+   * @param scores The score of each note of each line, to be adjusted
+   * @return The change in the sum of the scores
+   */
+  double updateNeighbourScores(int node, int oldPitch, int newPitch, int[] pitches,
+      ConsonanceModel consonanceModel, double[][] scores) {
+    double changeInSum = 0;
+    for (int k = this.starts[node]; k < this.starts[node + 1]; k++) {
+      int neighbour = this.neighbourNodes[k];
+      int neighbourLine = this.lineOfNode[neighbour];
+      if (neighbourLine == 0) {
+        continue;
+      }
+      int pitch = pitches[neighbour];
+      double change = (consonanceModel.getConsonanceScore(pitch, newPitch)
+          - consonanceModel.getConsonanceScore(pitch, oldPitch)) * this.overlapTicks[k]
+          / (this.durations[neighbour] * (this.lineCount - 1));
+      scores[neighbourLine][this.noteOfNode[neighbour]] += change;
+      changeInSum += change;
+    }
+    Metrics.PAIR_EVALUATIONS.add(2L * (this.starts[node + 1] - this.starts[node]));
+    return changeInSum;
+  }
+
+  /**
+   * Work out how much a harmony note adds to the sum of every harmony note's score at each pitch
+   * from minPitch up, with the other notes at the given pitches: its own score, plus the part of
+   * each overlapping harmony note's score which comes from it. The notes of a line are never scored
+   * against each other, so the rest of the sum doesn't depend on the note's pitch
+   *
+   * @param node The note's number
+   * @param pitches The pitch of every note, by number
+   * @param consonanceModel The model for scoring pairs of pitches
+   * @param minPitch The lowest pitch
+   * @param gains Filled with the gain at each pitch from minPitch up, for as many pitches as it
+   *        holds
+   */
+  void computeGains(int node, int[] pitches, ConsonanceModel consonanceModel, int minPitch,
+      double[] gains) {
+    int otherLineCount = this.lineCount - 1;
+    double ownNormaliser = (double) this.durations[node] * otherLineCount;
+
+    Arrays.fill(gains, 0);
+    for (int k = this.starts[node]; k < this.starts[node + 1]; k++) {
+      int neighbour = this.neighbourNodes[k];
+      int otherPitch = pitches[neighbour];
+      long ticks = this.overlapTicks[k];
+      // The melody isn't scored, so only harmony notes' scores depend on this note
+      double otherNormaliser = (this.lineOfNode[neighbour] == 0) ? 0
+          : (double) this.durations[neighbour] * otherLineCount;
+      for (int p = 0; p < gains.length; p++) {
+        int pitch = minPitch + p;
+        gains[p] += consonanceModel.getConsonanceScore(pitch, otherPitch) * ticks / ownNormaliser;
+        if (otherNormaliser > 0) {
+          gains[p] +=
+              consonanceModel.getConsonanceScore(otherPitch, pitch) * ticks / otherNormaliser;
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends each overlapping note found to growing arrays, skipping those which only touch
+   */
+  private static class Collector implements NoteOverlapVisitor {
+
+    int offset;
+    int count;
+    int[] nodes = new int[16];
+    long[] ticks = new long[16];
+
+    @Override
+    public void visit(int noteIndex, long overlapTicks) {
+      if (overlapTicks <= 0) {
+        return;
+      }
+      if (this.count == this.nodes.length) {
+        this.nodes = Arrays.copyOf(this.nodes, this.count * 2);
+        this.ticks = Arrays.copyOf(this.ticks, this.count * 2);
+      }
+      this.nodes[this.count] = this.offset + noteIndex;
+      this.ticks[this.count] = overlapTicks;
+      this.count++;
+    }
+  }
+
+}
@@ -0,0 +1,232 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Struct-of-arrays note storage. The notes are held in parallel primitive arrays rather than as
+ * Note objects: 18 bytes a note against about 44 for a Note object and the reference to it, so
+ * around 2.4 times less heap for long lines, and the scoring loops read pitches and timings without
+ * chasing pointers.
+ *
+ * Note objects are only created when asked for through asList, and are views onto the arrays.
+ */
+class PackedNoteStore extends NoteStore {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] timestamps;
+  private long[] durations;
+  private byte[] pitches;
+  private byte[] velocities;
+  private int size;
+
+  // Bumped whenever a note is retimed through one of the views
+  private long timingVersion;
+
+  private final List<Note> view = new AbstractList<Note>() {
+
+    @Override
+    public Note get(int index) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+      }
+      return new PackedNote(index);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void add(int index, Note note) {
+      if (index != size) {
+        throw new UnsupportedOperationException("Notes can only be added to the end of a line");
+      }
+      addNote(note.getTimestamp(), note.getDuration(), note.getPitch(), note.getVelocity());
+    }
+  };
+
+  PackedNoteStore() {
+    this(INITIAL_CAPACITY);
+  }
+
+  PackedNoteStore(int capacity) {
+    capacity = Math.max(capacity, 1);
+    this.timestamps = new long[capacity];
+    this.durations = new long[capacity];
+    this.pitches = new byte[capacity];
+    this.velocities = new byte[capacity];
+  }
+
+  /**
+   * Create a packed copy of another store
+   *
+   * @param source The store to copy
+   */
+  PackedNoteStore(NoteStore source) {
+    this(source.size());
+    for (int i = 0; i < source.size(); i++) {
+      addNote(source.getTimestamp(i), source.getDuration(i), source.getPitch(i),
+          source.getVelocity(i));
+    }
+  }
+
+  @Override
+  Line.Storage getStorage() {
+    return Line.Storage.PACKED_ARRAYS;
+  }
+
+  @Override
+  int size() {
+    return this.size;
+  }
+
+  @Override
+  long getTimestamp(int i) {
+    return this.timestamps[i];
+  }
+
+  @Override
+  long getDuration(int i) {
+    return this.durations[i];
+  }
+
+  @Override
+  int getPitch(int i) {
+    return this.pitches[i];
+  }
+
+  @Override
+  int getVelocity(int i) {
+    return this.velocities[i];
+  }
+
+  @Override
+  void setPitch(int i, int pitch) {
+    checkMidiValue("pitch", pitch);
+    this.pitches[i] = (byte) pitch;
+  }
+
+  @Override
+  void addNote(long timestamp, long duration, int pitch, int velocity) {
+    checkMidiValue("pitch", pitch);
+    checkMidiValue("velocity", velocity);
+
+    if (this.size == this.timestamps.length) {
+      int capacity = this.size + (this.size >> 1) + 1;
+      this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+      this.durations = Arrays.copyOf(this.durations, capacity);
+      this.pitches = Arrays.copyOf(this.pitches, capacity);
+      this.velocities = Arrays.copyOf(this.velocities, capacity);
+    }
+    this.timestamps[this.size] = timestamp;
+    this.durations[this.size] = duration;
+    this.pitches[this.size] = (byte) pitch;
+    this.velocities[this.size] = (byte) velocity;
+    this.size++;
+  }
+
+  @Override
+  List<Note> asList() {
+    return this.view;
+  }
+
+  @Override
+  long getTimingVersion() {
+    return this.timingVersion;
+  }
+
+  @Override
+  NoteTimeIndex buildTimeIndex() {
+    // The arrays can be handed over as they are, as the index copies what it needs
+    return NoteTimeIndex.build(this.timestamps, this.durations, this.size, this.timingVersion);
+  }
+
+  private static void checkMidiValue(String name, int value) {
+    // Pitches and velocities are stored as bytes, so have to be proper midi values
+    if (value < 0 || value > 127) {
+      throw new InvalidParameterException(
+          "A packed line can only hold midi values between 0 and 127, but " + name + " = " + value);
+    }
+  }
+
+  /**
+   * A Note which reads and writes through to a position in the arrays. Two views of the same
+   * position are equal, so they can be used as HashMap keys in the same way as Note objects
+   */
+  private class PackedNote extends Note {
+
+    private final int index;
+
+    PackedNote(int index) {
+      super(0, 0, 0, 0);
+      this.index = index;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return timestamps[this.index];
+    }
+
+    @Override
+    public void setTimestamp(long timestamp) {
+      timestamps[this.index] = timestamp;
+      timingVersion++;
+    }
+
+    @Override
+    public long getDuration() {
+      return durations[this.index];
+    }
+
+    @Override
+    public void setDuration(long duration) {
+      durations[this.index] = duration;
+      timingVersion++;
+    }
+
+    @Override
+    public int getPitch() {
+      return pitches[this.index];
+    }
+
+    @Override
+    public void setPitch(int pitch) {
+      PackedNoteStore.this.setPitch(this.index, pitch);
+    }
+
+    @Override
+    public int getVelocity() {
+      return velocities[this.index];
+    }
+
+    @Override
+    public void setVelocity(int velocity) {
+      checkMidiValue("velocity", velocity);
+      velocities[this.index] = (byte) velocity;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof PackedNote)) {
+        return false;
+      }
+      PackedNote otherNote = (PackedNote) other;
+      return otherNote.index == this.index && otherNote.getStore() == PackedNoteStore.this;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(PackedNoteStore.this) * 31 + this.index;
+    }
+
+    private PackedNoteStore getStore() {
+      return PackedNoteStore.this;
+    }
+  }
+
+}
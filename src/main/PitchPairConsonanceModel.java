@@ -0,0 +1,103 @@
+package main;
+
+import java.security.InvalidParameterException;
+
+/**
+ * A consonance model with its own score for every pair of midi pitches, held as a flattened 128x128
+ * table. This can express things an interval table can't, such as scoring notes differently
+ * depending on whether they belong to a key (see forKey).
+ */
+public final class PitchPairConsonanceModel implements ConsonanceModel {
+
+  // Major and natural minor scales as semitones above the tonic
+  private static final int[] MAJOR_SCALE = {0, 2, 4, 5, 7, 9, 11};
+  private static final int[] MINOR_SCALE = {0, 2, 3, 5, 7, 8, 10};
+
+  // scores[pitch * 128 + comparisonPitch]
+  private final double[] scores;
+
+  /**
+   * @param scores The score for each pair of pitches, as scores[pitch][comparisonPitch]. Must be
+   *        128x128. The scores are copied
+   * @throws InvalidParameterException if the table is the wrong size
+   */
+  public PitchPairConsonanceModel(double[][] scores) {
+    if (scores.length != 128) {
+      throw new InvalidParameterException("The score table must be 128x128");
+    }
+    this.scores = new double[128 * 128];
+    for (int pitch = 0; pitch < 128; pitch++) {
+      if (scores[pitch].length != 128) {
+        throw new InvalidParameterException("The score table must be 128x128");
+      }
+      System.arraycopy(scores[pitch], 0, this.scores, pitch * 128, 128);
+    }
+  }
+
+  /**
+   * Create a table from any other model, for example to speed up one which does more work per pair
+   * 
+   * @param model The model to be tabulated
+   */
+  public PitchPairConsonanceModel(ConsonanceModel model) {
+    this.scores = new double[128 * 128];
+    for (int pitch = 0; pitch < 128; pitch++) {
+      for (int comparisonPitch = 0; comparisonPitch < 128; comparisonPitch++) {
+        this.scores[pitch * 128 + comparisonPitch] =
+            model.getConsonanceScore(pitch, comparisonPitch);
+      }
+    }
+  }
+
+  /**
+   * Create a key-aware model from an interval-based one. Pairs where both notes are in the key
+   * score as they do in the interval model, while pairs with notes outside the key have their
+   * score multiplied by outOfKeyFactor
+   * 
+   * @param intervals The model giving the scores of the intervals themselves
+   * @param tonic The pitch class of the tonic (0 = C, 1 = C#, ... 11 = B)
+   * @param major true for a major key, false for a (natural) minor key
+   * @param outOfKeyFactor The factor (between 0 and 1) applied to pairs with notes outside the key
+   * @return The model
+   */
+  public static PitchPairConsonanceModel forKey(ConsonanceModel intervals, int tonic,
+      boolean major, double outOfKeyFactor) {
+    if (tonic < 0 || tonic > 11) {
+      throw new InvalidParameterException("tonic must be a pitch class between 0 and 11");
+    }
+    if (outOfKeyFactor < 0 || outOfKeyFactor > 1) {
+      throw new InvalidParameterException("outOfKeyFactor must be between 0 and 1");
+    }
+
+    boolean[] inKey = new boolean[12];
+    for (int degree : (major ? MAJOR_SCALE : MINOR_SCALE)) {
+      inKey[(tonic + degree) % 12] = true;
+    }
+
+    double[][] scores = new double[128][128];
+    for (int pitch = 0; pitch < 128; pitch++) {
+      for (int comparisonPitch = 0; comparisonPitch < 128; comparisonPitch++) {
+        double score = intervals.getConsonanceScore(pitch, comparisonPitch);
+        if (!inKey[pitch % 12] || !inKey[comparisonPitch % 12]) {
+          score *= outOfKeyFactor;
+        }
+        scores[pitch][comparisonPitch] = score;
+      }
+    }
+    return new PitchPairConsonanceModel(scores);
+  }
+
+  /**
+   * @throws InvalidParameterException if either pitch is not a midi pitch
+   */
+  @Override
+  public double getConsonanceScore(int pitch, int comparisonPitch) {
+    // Both pitches must fit in 7 bits, or the lookup would land on the score of some other pair
+    if (((pitch | comparisonPitch) & ~127) != 0) {
+      throw new InvalidParameterException("Pitches must be between 0 and 127. You have "
+          + pitch + " and " + comparisonPitch);
+    }
+    return this.scores[(pitch << 7) | comparisonPitch];
+  }
+
+}
@@ -0,0 +1,369 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Harmonises a melody as it is played, for example from a midi keyboard: connect it to the
+ * keyboard's Transmitter, and it passes every message on to the output Receiver (a synthesizer,
+ * say) along with a harmony note in each voice for every melody note.
+ *
+ * The harmony of a note has to be decided as soon as the note arrives, before anyone knows how
+ * long it will last, so each candidate pitch is scored by how consonant it is with every note
+ * sounding at that moment: the new melody note, the other voices' new harmony notes, and any
+ * earlier notes still held. The search is an anytime one with a time budget per note. It starts
+ * from each voice's last pitch, which is always an acceptable answer, then improves the voices in
+ * turn, trying the pitches nearest the last one first, until no voice can be improved or the
+ * budget runs out, and sends whatever it has at that point. So a small budget gives smoother, less
+ * considered harmonies rather than late ones.
+ *
+ * The harmony notes go out on the melody note's channel. A voice often keeps its pitch from one
+ * note to the next, or lands on the melody's pitch, and a synthesizer ends a pitch at the first
+ * note off it is sent, whichever note it was meant for. So the notes sounding on each channel are
+ * counted by pitch, and a note off (the melody's or a voice's) is only sent once no other note
+ * started on the channel at that pitch is still held.
+ *
+ * The time from a note arriving to its harmony being sent is recorded by getDecisionLatencies. The
+ * notes played are also kept as lines (see getPerformance), with timestamps in milliseconds, so a
+ * performance can be saved with MidiStatic.saveLinesToMidiFile.
+ *
+ * Messages may arrive on any thread, but are handled one at a time.
+ */
+public class RealTimeHarmoniser implements Receiver {
+
+  static Logger logger = LoggerFactory.getLogger(RealTimeHarmoniser.class);
+
+  // 25 frames a second at 40 ticks a frame, so that one tick is one millisecond
+  private static final int TICKS_PER_FRAME = 40;
+  private static final float DIVISION_TYPE = Sequence.SMPTE_25;
+
+  private final Receiver output;
+
+  // The pitch bounds of each harmony line, as {minPitch, maxPitch}
+  private final List<int[]> voices = new ArrayList<int[]>();
+  private int[] lastPitches;
+
+  private ConsonanceModel consonanceModel = IntervalConsonanceModel.DEFAULT;
+  private long timeBudgetNanos = 1000000;
+
+  // The melody notes still held, with their harmony notes
+  private final List<SoundingNote> sounding = new ArrayList<SoundingNote>();
+  // How many notes are sounding at each pitch on each channel, by channel * 128 + pitch
+  private final int[] soundingCounts = new int[16 * 128];
+
+  private Line melody;
+  private List<Line> harmonies;
+  private final long startNanos = System.nanoTime();
+  private boolean closed;
+
+  private final LatencyRecorder decisionLatencies = new LatencyRecorder();
+
+  /**
+   * @param output Receives the melody and harmony messages
+   */
+  public RealTimeHarmoniser(Receiver output) {
+    this.output = output;
+  }
+
+  /**
+   * Add a voice, which will be given a harmony note for every melody note, with pitches between
+   * minPitch and maxPitch
+   *
+   * @param minPitch The lowest pitch of the voice
+   * @param maxPitch The highest pitch of the voice
+   * @throws InvalidParameterException if the pitches are invalid or notes have already arrived
+   */
+  public synchronized void addVoice(int minPitch, int maxPitch) {
+    if (this.melody != null) {
+      throw new InvalidParameterException("Voices must be added before the first note arrives");
+    }
+    if (minPitch < 0 || maxPitch > 127 || minPitch >= maxPitch) {
+      throw new InvalidParameterException("Voices need 0 <= minPitch < maxPitch <= 127, not "
+          + minPitch + " and " + maxPitch);
+    }
+    this.voices.add(new int[] {minPitch, maxPitch});
+  }
+
+  /**
+   * Handle a message from the input. Note ons get a harmony note in every voice, note offs end
+   * them, and everything else is passed straight on
+   *
+   * @param message The message
+   * @param timeStamp The time of the message in microseconds, or -1 if it is to be taken as now
+   */
+  @Override
+  public synchronized void send(MidiMessage message, long timeStamp) {
+    long arrival = System.nanoTime();
+    if (this.closed) {
+      throw new IllegalStateException("The harmoniser has been closed");
+    }
+    if (!(message instanceof ShortMessage)) {
+      this.output.send(message, timeStamp);
+      return;
+    }
+
+    ShortMessage shortMessage = (ShortMessage) message;
+    int command = shortMessage.getCommand();
+    int channel = shortMessage.getChannel();
+    int pitch = shortMessage.getData1();
+    long tick = (timeStamp >= 0) ? timeStamp / 1000 : (arrival - this.startNanos) / 1000000;
+    if (command == ShortMessage.NOTE_ON && shortMessage.getData2() > 0) {
+      this.soundingCounts[channel * 128 + pitch]++;
+      this.output.send(message, timeStamp);
+      noteOn(channel, pitch, shortMessage.getData2(), tick, timeStamp);
+      this.decisionLatencies.record(System.nanoTime() - arrival);
+    } else if (command == ShortMessage.NOTE_OFF || command == ShortMessage.NOTE_ON) {
+      if (release(channel, pitch)) {
+        this.output.send(message, timeStamp);
+      }
+      noteOff(channel, pitch, tick, timeStamp);
+    } else {
+      this.output.send(message, timeStamp);
+    }
+  }
+
+  /**
+   * Count a note off for a pitch on a channel
+   *
+   * @return Whether the note off should be sent on, because no other note is still sounding at the
+   *         pitch. A note off for a pitch which wasn't counted as sounding (say, one held down
+   *         before the harmoniser was connected) is always sent on
+   */
+  private boolean release(int channel, int pitch) {
+    int key = channel * 128 + pitch;
+    if (this.soundingCounts[key] > 0) {
+      this.soundingCounts[key]--;
+    }
+    return this.soundingCounts[key] == 0;
+  }
+
+  private void noteOn(int channel, int pitch, int velocity, long tick, long timeStamp) {
+    if (this.voices.isEmpty()) {
+      return;
+    }
+    if (this.melody == null) {
+      startPerformance();
+    }
+
+    int[] harmony = decide(pitch, System.nanoTime() + this.timeBudgetNanos);
+    for (int v = 0; v < harmony.length; v++) {
+      this.soundingCounts[channel * 128 + harmony[v]]++;
+      sendNote(ShortMessage.NOTE_ON, channel, harmony[v], velocity, timeStamp);
+    }
+    System.arraycopy(harmony, 0, this.lastPitches, 0, harmony.length);
+    this.sounding.add(new SoundingNote(channel, pitch, velocity, tick, harmony));
+  }
+
+  private void noteOff(int channel, int pitch, long tick, long timeStamp) {
+    Iterator<SoundingNote> iterator = this.sounding.iterator();
+    while (iterator.hasNext()) {
+      SoundingNote note = iterator.next();
+      if (note.channel == channel && note.pitch == pitch) {
+        iterator.remove();
+        end(note, tick, timeStamp);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Send the note offs for a note's harmony, for pitches no other note is still sounding at, and
+   * add the note and its harmony to the performance
+   */
+  private void end(SoundingNote note, long tick, long timeStamp) {
+    long duration = Math.max(tick - note.tick, 1);
+    this.melody.addNoteToLine(note.tick, duration, note.pitch, note.velocity);
+    for (int v = 0; v < note.harmony.length; v++) {
+      if (release(note.channel, note.harmony[v])) {
+        sendNote(ShortMessage.NOTE_OFF, note.channel, note.harmony[v], 0, timeStamp);
+      }
+      this.harmonies.get(v).addNoteToLine(note.tick, duration, note.harmony[v], note.velocity);
+    }
+  }
+
+  /**
+   * The anytime search for the harmony of a new melody note
+   *
+   * @param pitch The pitch of the melody note
+   * @param deadline The System.nanoTime by which the search must stop
+   * @return The best pitch found for each voice
+   */
+  private int[] decide(int pitch, long deadline) {
+    int voiceCount = this.voices.size();
+
+    // The pitches of the notes still held, which the new ones will sound against
+    int[] held = new int[this.sounding.size() * (1 + voiceCount) + 1];
+    int h = 0;
+    for (SoundingNote note : this.sounding) {
+      held[h++] = note.pitch;
+      for (int v = 0; v < voiceCount; v++) {
+        held[h++] = note.harmony[v];
+      }
+    }
+    held[h] = pitch;
+
+    // Each voice's last pitch is the first answer
+    int[] harmony = this.lastPitches.clone();
+
+    boolean improved = true;
+    while (improved) {
+      improved = false;
+      for (int v = 0; v < voiceCount; v++) {
+        // The other voices may have moved since this one was scored
+        double best = score(harmony, v, harmony[v], held);
+        int last = this.lastPitches[v];
+        int min = this.voices.get(v)[0];
+        int max = this.voices.get(v)[1];
+        // Work outwards from the last pitch, so that if time runs out the leaps stay small
+        for (int step = 1; last - step >= min || last + step <= max; step++) {
+          if (System.nanoTime() - deadline >= 0) {
+            return harmony;
+          }
+          for (int candidate = last - step; candidate <= last + step; candidate += 2 * step) {
+            if (candidate < min || candidate > max) {
+              continue;
+            }
+            double score = score(harmony, v, candidate, held);
+            if (score > best) {
+              harmony[v] = candidate;
+              best = score;
+              improved = true;
+            }
+          }
+        }
+      }
+    }
+    return harmony;
+  }
+
+  /**
+   * @return The total consonance of the candidate pitch for a voice with the notes held and the
+   *         other voices' new pitches
+   */
+  private double score(int[] harmony, int voice, int candidate, int[] held) {
+    double score = 0;
+    for (int i = 0; i < held.length; i++) {
+      score += this.consonanceModel.getConsonanceScore(candidate, held[i]);
+    }
+    for (int v = 0; v < harmony.length; v++) {
+      if (v != voice) {
+        score += this.consonanceModel.getConsonanceScore(candidate, harmony[v]);
+      }
+    }
+    return score;
+  }
+
+  private void startPerformance() {
+    this.melody = new Line(TICKS_PER_FRAME, DIVISION_TYPE);
+    this.harmonies = new ArrayList<Line>();
+    this.lastPitches = new int[this.voices.size()];
+    for (int v = 0; v < this.voices.size(); v++) {
+      this.harmonies.add(new Line(TICKS_PER_FRAME, DIVISION_TYPE));
+      this.lastPitches[v] = (this.voices.get(v)[0] + this.voices.get(v)[1]) / 2;
+    }
+  }
+
+  private void sendNote(int command, int channel, int pitch, int velocity, long timeStamp) {
+    try {
+      this.output.send(new ShortMessage(command, channel, pitch, velocity), timeStamp);
+    } catch (InvalidMidiDataException e) {
+      // Can't happen, as the channel came from a valid message and the pitch from a valid voice
+      logger.error("Could not create a harmony message", e);
+    }
+  }
+
+  /**
+   * @return The time taken to decide the harmony of each note, from the note arriving to its
+   *         harmony being sent
+   */
+  public LatencyRecorder getDecisionLatencies() {
+    return this.decisionLatencies;
+  }
+
+  /**
+   * Get the notes played so far, which have finished. Timestamps and durations are in milliseconds
+   * (the lines have an SMPTE 25 division with 40 ticks a frame)
+   *
+   * @return The melody line followed by a line for each voice, or an empty list if no notes have
+   *         arrived yet
+   */
+  public synchronized List<Line> getPerformance() {
+    List<Line> lines = new ArrayList<Line>();
+    if (this.melody != null) {
+      lines.add(new Line(this.melody));
+      for (Line harmony : this.harmonies) {
+        lines.add(new Line(harmony));
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * @param consonanceModel The model used to score candidate pitches (default
+   *        IntervalConsonanceModel.DEFAULT)
+   */
+  public synchronized void setConsonanceModel(ConsonanceModel consonanceModel) {
+    this.consonanceModel = consonanceModel;
+  }
+
+  /**
+   * @param timeBudgetMicros The longest the search for a note's harmony may take, in microseconds
+   *        (default 1000). A budget of 0 keeps each voice on its last pitch
+   */
+  public synchronized void setTimeBudgetMicros(long timeBudgetMicros) {
+    if (timeBudgetMicros < 0) {
+      throw new InvalidParameterException("timeBudgetMicros must not be negative");
+    }
+    this.timeBudgetNanos = timeBudgetMicros * 1000;
+  }
+
+  /**
+   * End any harmony notes still sounding and stop taking messages. The output is not closed, as it
+   * may have other senders
+   */
+  @Override
+  public synchronized void close() {
+    if (this.closed) {
+      return;
+    }
+    long tick = (System.nanoTime() - this.startNanos) / 1000000;
+    for (SoundingNote note : this.sounding) {
+      end(note, tick, -1);
+    }
+    this.sounding.clear();
+    this.closed = true;
+    logger.info("Harmonised {}", this.decisionLatencies);
+  }
+
+  /**
+   * A melody note which has started but not yet ended, with its harmony
+   */
+  private static final class SoundingNote {
+
+    final int channel;
+    final int pitch;
+    final int velocity;
+    final long tick;
+    final int[] harmony;
+
+    SoundingNote(int channel, int pitch, int velocity, long tick, int[] harmony) {
+      this.channel = channel;
+      this.pitch = pitch;
+      this.velocity = velocity;
+      this.tick = tick;
+      this.harmony = harmony;
+    }
+  }
+
+}
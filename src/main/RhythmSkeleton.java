@@ -0,0 +1,77 @@
+package main;
+
+/**
+ * The timing of a line (timestamps and durations, plus velocities) frozen so that it can be shared.
+ * Harmony lines created from a template all share the template's skeleton and only own an array of
+ * pitches, so adding lines or copying candidate populations doesn't copy any timing data. The time
+ * index used by Line.getNotesWithinTimeFrame is built once per skeleton rather than once per line.
+ */
+final class RhythmSkeleton {
+
+  private final long[] timestamps;
+  private final long[] durations;
+  private final byte[] velocities;
+
+  private volatile NoteTimeIndex timeIndex;
+
+  /**
+   * Freeze the timings of the notes in a store
+   * 
+   * @param source The store whose timings are copied
+   */
+  RhythmSkeleton(NoteStore source) {
+    int count = source.size();
+    this.timestamps = new long[count];
+    this.durations = new long[count];
+    this.velocities = new byte[count];
+    for (int i = 0; i < count; i++) {
+      this.timestamps[i] = source.getTimestamp(i);
+      this.durations[i] = source.getDuration(i);
+      this.velocities[i] = (byte) source.getVelocity(i);
+    }
+  }
+
+  int size() {
+    return this.timestamps.length;
+  }
+
+  long getTimestamp(int i) {
+    return this.timestamps[i];
+  }
+
+  long getDuration(int i) {
+    return this.durations[i];
+  }
+
+  int getVelocity(int i) {
+    return this.velocities[i];
+  }
+
+  NoteTimeIndex getTimeIndex() {
+    NoteTimeIndex index = this.timeIndex;
+    if (index == null) {
+      // The skeleton never changes, so neither does its index (timing version 0 throughout)
+      index = NoteTimeIndex.build(this.timestamps, this.durations, this.timestamps.length, 0);
+      this.timeIndex = index;
+    }
+    return index;
+  }
+
+  /**
+   * @param store A note store
+   * @return true if the timings and velocities of the store are the same as this skeleton's
+   */
+  boolean matches(NoteStore store) {
+    if (store.size() != size()) {
+      return false;
+    }
+    for (int i = 0; i < size(); i++) {
+      if (store.getTimestamp(i) != this.timestamps[i] || store.getDuration(i) != this.durations[i]
+          || store.getVelocity(i) != this.velocities[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
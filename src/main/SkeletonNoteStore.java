@@ -0,0 +1,184 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Note storage for lines which share their timings with other lines (see RhythmSkeleton). Only the
+ * pitches belong to the line. The timings can't be changed through this store, and Line moves the
+ * notes into packed storage of their own if any more are added.
+ */
+class SkeletonNoteStore extends NoteStore {
+
+  private final RhythmSkeleton skeleton;
+  private final byte[] pitches;
+
+  private final List<Note> view = new AbstractList<Note>() {
+
+    @Override
+    public Note get(int index) {
+      if (index < 0 || index >= pitches.length) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + pitches.length);
+      }
+      return new SkeletonNote(index);
+    }
+
+    @Override
+    public int size() {
+      return pitches.length;
+    }
+  };
+
+  /**
+   * @param skeleton The shared timings
+   * @param pitches The pitches of this line, one per note in the skeleton. The array is owned by
+   *        the store from then on
+   */
+  SkeletonNoteStore(RhythmSkeleton skeleton, byte[] pitches) {
+    this.skeleton = skeleton;
+    this.pitches = pitches;
+  }
+
+  /**
+   * @return A store sharing the same skeleton with its own copy of the pitches
+   */
+  SkeletonNoteStore copy() {
+    return new SkeletonNoteStore(this.skeleton, this.pitches.clone());
+  }
+
+  RhythmSkeleton getSkeleton() {
+    return this.skeleton;
+  }
+
+  @Override
+  Line.Storage getStorage() {
+    return Line.Storage.SHARED_RHYTHM;
+  }
+
+  @Override
+  int size() {
+    return this.pitches.length;
+  }
+
+  @Override
+  long getTimestamp(int i) {
+    return this.skeleton.getTimestamp(i);
+  }
+
+  @Override
+  long getDuration(int i) {
+    return this.skeleton.getDuration(i);
+  }
+
+  @Override
+  int getPitch(int i) {
+    return this.pitches[i];
+  }
+
+  @Override
+  int getVelocity(int i) {
+    return this.skeleton.getVelocity(i);
+  }
+
+  @Override
+  void setPitch(int i, int pitch) {
+    if (pitch < 0 || pitch > 127) {
+      throw new InvalidParameterException(
+          "A line can only hold midi pitches between 0 and 127, but pitch = " + pitch);
+    }
+    this.pitches[i] = (byte) pitch;
+  }
+
+  @Override
+  void addNote(long timestamp, long duration, int pitch, int velocity) {
+    throw new UnsupportedOperationException("The rhythm of this line is shared with other lines");
+  }
+
+  @Override
+  List<Note> asList() {
+    return this.view;
+  }
+
+  @Override
+  long getTimingVersion() {
+    return 0;
+  }
+
+  @Override
+  NoteTimeIndex buildTimeIndex() {
+    return this.skeleton.getTimeIndex();
+  }
+
+  /**
+   * A Note which reads through to the skeleton and the pitch array. Only the pitch can be changed
+   */
+  private class SkeletonNote extends Note {
+
+    private final int index;
+
+    SkeletonNote(int index) {
+      super(0, 0, 0, 0);
+      this.index = index;
+    }
+
+    @Override
+    public long getTimestamp() {
+      return skeleton.getTimestamp(this.index);
+    }
+
+    @Override
+    public void setTimestamp(long timestamp) {
+      throw new UnsupportedOperationException("The rhythm of this line is shared with other lines");
+    }
+
+    @Override
+    public long getDuration() {
+      return skeleton.getDuration(this.index);
+    }
+
+    @Override
+    public void setDuration(long duration) {
+      throw new UnsupportedOperationException("The rhythm of this line is shared with other lines");
+    }
+
+    @Override
+    public int getPitch() {
+      return pitches[this.index];
+    }
+
+    @Override
+    public void setPitch(int pitch) {
+      SkeletonNoteStore.this.setPitch(this.index, pitch);
+    }
+
+    @Override
+    public int getVelocity() {
+      return skeleton.getVelocity(this.index);
+    }
+
+    @Override
+    public void setVelocity(int velocity) {
+      throw new UnsupportedOperationException("The rhythm of this line is shared with other lines");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof SkeletonNote)) {
+        return false;
+      }
+      SkeletonNote otherNote = (SkeletonNote) other;
+      return otherNote.index == this.index && otherNote.getStore() == SkeletonNoteStore.this;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(SkeletonNoteStore.this) * 31 + this.index;
+    }
+
+    private SkeletonNoteStore getStore() {
+      return SkeletonNoteStore.this;
+    }
+  }
+
+}
@@ -0,0 +1,306 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidParameterException;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+
+/**
+ * Writes lines out as a type 1 Standard MIDI File, one track per line, encoding the bytes directly
+ * rather than building a javax.sound.midi Sequence and writing it with MidiSystem.
+ *
+ * The file is built up in a ByteBuffer which is kept between calls, along with the scratch arrays
+ * used to put each track's events in order, so once they have grown to the size of the largest
+ * file written, writing another allocates nothing but the output. The result can be written to an
+ * OutputStream or a WritableByteChannel, or taken as a byte array, so files can be rendered without
+ * touching the disk. Each track contains the same events as the tracks
+ * MidiStatic.saveLinesToMidiFile has always written (general midi on, a track name, omni and poly
+ * on, the piano program, then the notes).
+ *
+ * Writers are not thread safe, so use one per thread.
+ */
+public class StandardMidiFileWriter {
+
+  private static final int NOTE_ON = 0x90;
+  private static final int NOTE_OFF = 0x80;
+  private static final int CONTROL_CHANGE = 0xB0;
+  private static final int PROGRAM_CHANGE = 0xC0;
+
+  // Turns on the general midi sound set (the bytes after the 0xF0 status and length)
+  private static final byte[] GENERAL_MIDI_ON = {0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
+  private static final byte[] TRACK_NAME = "midifile track".getBytes();
+
+  // The end of track is set this long after the last note ends
+  private static final long END_OF_TRACK_DELAY = 20;
+
+  private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+  // Scratch space for the note timings of the track being written
+  private long[] starts = new long[0];
+  private long[] ends = new long[0];
+  // Whether the "Note On" of each note has been written yet
+  private boolean[] sounding = new boolean[0];
+  // The notes in the order of their "Note On" and "Note Off" events, and room for sorting them
+  private int[] onOrder = new int[0];
+  private int[] offOrder = new int[0];
+  private int[] sortBuffer = new int[0];
+
+  private int runningStatus;
+
+  /**
+   * Encode the lines as a midi file and write it to a stream. The stream is not closed
+   *
+   * @param lines The lines to be written, one per track. The division type and ticks per beat are
+   *        taken from the first line
+   * @param out The stream to write to
+   * @throws InvalidMidiDataException if the lines can't be written as a midi file
+   * @throws IOException if the stream can't be written to
+   */
+  public void write(List<Line> lines, OutputStream out)
+      throws InvalidMidiDataException, IOException {
+    ByteBuffer encoded = encode(lines);
+    out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+  }
+
+  /**
+   * Encode the lines as a midi file and write it to a channel. The channel is not closed
+   *
+   * @param lines The lines to be written, one per track (see write(List, OutputStream))
+   * @param channel The channel to write to
+   * @throws InvalidMidiDataException if the lines can't be written as a midi file
+   * @throws IOException if the channel can't be written to
+   */
+  public void write(List<Line> lines, WritableByteChannel channel)
+      throws InvalidMidiDataException, IOException {
+    ByteBuffer encoded = encode(lines);
+    while (encoded.hasRemaining()) {
+      channel.write(encoded);
+    }
+  }
+
+  /**
+   * @param lines The lines to be written, one per track (see write(List, OutputStream))
+   * @return The bytes of the midi file
+   * @throws InvalidMidiDataException if the lines can't be written as a midi file
+   */
+  public byte[] toByteArray(List<Line> lines) throws InvalidMidiDataException {
+    ByteBuffer encoded = encode(lines);
+    byte[] bytes = new byte[encoded.remaining()];
+    encoded.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Encode the lines as a midi file into this writer's buffer
+   *
+   * @param lines The lines to be written, one per track (see write(List, OutputStream))
+   * @return A buffer holding the file between its position and limit. It belongs to the writer, so
+   *         is only good until the writer is next used
+   * @throws InvalidMidiDataException if the lines can't be written as a midi file
+   */
+  public ByteBuffer encode(List<Line> lines) throws InvalidMidiDataException {
+    if (lines.isEmpty()) {
+      throw new InvalidParameterException("There must be at least one line to write");
+    }
+
+    // At the moment we assume that all the lines supplied have the same division type and ticks per
+    // beat as the first line. If the timings get messed up, this may well be why
+    int division = getDivision(lines.get(0).getDivisionType(), lines.get(0).getTicksPerBeat());
+
+    long start = Metrics.EXPORTS.start();
+    this.buffer.clear();
+
+    ensureCapacity(14);
+    this.buffer.put((byte) 'M').put((byte) 'T').put((byte) 'h').put((byte) 'd');
+    this.buffer.putInt(6);
+    this.buffer.putShort((short) 1);
+    this.buffer.putShort((short) lines.size());
+    this.buffer.putShort((short) division);
+
+    for (Line line : lines) {
+      writeTrack(line);
+      Metrics.NOTES_EXPORTED.add(line.getLength());
+    }
+
+    this.buffer.flip();
+    Metrics.EXPORTS.stop(start);
+    return this.buffer;
+  }
+
+  private void writeTrack(Line line) throws InvalidMidiDataException {
+    ensureCapacity(8);
+    this.buffer.put((byte) 'M').put((byte) 'T').put((byte) 'r').put((byte) 'k');
+    int lengthPosition = this.buffer.position();
+    this.buffer.putInt(0); // Filled in once the track is written
+    int trackStart = this.buffer.position();
+    this.runningStatus = 0;
+
+    // Turn on general midi sound set
+    writeDelta(0);
+    ensureCapacity(2 + GENERAL_MIDI_ON.length);
+    this.buffer.put((byte) 0xF0);
+    this.buffer.put((byte) GENERAL_MIDI_ON.length);
+    this.buffer.put(GENERAL_MIDI_ON);
+
+    // Set track name
+    writeDelta(0);
+    ensureCapacity(3 + TRACK_NAME.length);
+    this.buffer.put((byte) 0xFF).put((byte) 0x03).put((byte) TRACK_NAME.length);
+    this.buffer.put(TRACK_NAME);
+    this.runningStatus = 0;
+
+    // Set omni on, turn poly on, and set instrument to piano
+    writeDelta(0);
+    writeChannelMessage(CONTROL_CHANGE, 0x7D, 0x00);
+    writeDelta(0);
+    writeChannelMessage(CONTROL_CHANGE, 0x7F, 0x00);
+    writeDelta(0);
+    writeChannelMessage(PROGRAM_CHANGE, 0x00, -1);
+
+    // Events have to be written in time order. The notes come sorted by start (almost always
+    // already the case), and the same notes sorted by end, then by start, give the "Note Off"
+    // events. Where a note ends as another starts the "Note Off" goes first, so repeated notes
+    // aren't cut short, unless its own "Note On" hasn't been written yet, which happens when a note
+    // lasts no time at all
+    int count = line.getLength();
+    if (this.starts.length < count) {
+      this.starts = new long[count];
+      this.ends = new long[count];
+      this.sounding = new boolean[count];
+      this.onOrder = new int[count];
+      this.offOrder = new int[count];
+      this.sortBuffer = new int[count];
+    }
+    long lastEnd = 0;
+    for (int i = 0; i < count; i++) {
+      this.starts[i] = line.getTimeStampAtIndex(i);
+      this.ends[i] = this.starts[i] + line.getDurationAtIndex(i);
+      this.sounding[i] = false;
+      this.onOrder[i] = i;
+      lastEnd = Math.max(lastEnd, this.ends[i]);
+    }
+    NoteTimeIndex.sortIndicesByKey(this.starts, this.onOrder, count, this.sortBuffer);
+    System.arraycopy(this.onOrder, 0, this.offOrder, 0, count);
+    NoteTimeIndex.sortIndicesByKey(this.ends, this.offOrder, count, this.sortBuffer);
+    int[] onOrder = this.onOrder;
+    int[] offOrder = this.offOrder;
+
+    long tick = 0;
+    int on = 0;
+    int off = 0;
+    while (off < count) {
+      int next = offOrder[off];
+      if (on < count && (this.starts[onOrder[on]] < this.ends[next]
+          || (this.starts[onOrder[on]] == this.ends[next] && !this.sounding[next]))) {
+        int i = onOrder[on++];
+        writeDelta(this.starts[i] - tick);
+        tick = this.starts[i];
+        writeChannelMessage(NOTE_ON, line.getPitchAtIndex(i), line.getVelocityAtIndex(i));
+        this.sounding[i] = true;
+      } else {
+        off++;
+        writeDelta(this.ends[next] - tick);
+        tick = this.ends[next];
+        writeChannelMessage(NOTE_OFF, line.getPitchAtIndex(next), 0x00);
+      }
+    }
+
+    // Set end of track a short while after the last note ends
+    writeDelta(lastEnd + END_OF_TRACK_DELAY - tick);
+    ensureCapacity(3);
+    this.buffer.put((byte) 0xFF).put((byte) 0x2F).put((byte) 0x00);
+
+    this.buffer.putInt(lengthPosition, this.buffer.position() - trackStart);
+  }
+
+  /**
+   * Write a channel 0 message, leaving out the status byte if it is the same as the last one
+   *
+   * @param status The status of the message
+   * @param data1 The first data byte
+   * @param data2 The second data byte, or -1 if the message only has one
+   */
+  private void writeChannelMessage(int status, int data1, int data2)
+      throws InvalidMidiDataException {
+    if ((data1 & ~0x7F) != 0 || data2 > 0x7F) {
+      throw new InvalidMidiDataException("Midi data bytes must be between 0 and 127, but got "
+          + data1 + " and " + data2);
+    }
+    ensureCapacity(3);
+    if (status != this.runningStatus) {
+      this.buffer.put((byte) status);
+      this.runningStatus = status;
+    }
+    this.buffer.put((byte) data1);
+    if (data2 >= 0) {
+      this.buffer.put((byte) data2);
+    }
+  }
+
+  /**
+   * Write a delta time as a variable length quantity: 7 bits per byte, most significant first, with
+   * the top bit set on every byte but the last
+   */
+  private void writeDelta(long delta) throws InvalidMidiDataException {
+    if (delta < 0 || delta > 0x0FFFFFFF) {
+      throw new InvalidMidiDataException(
+          "Delta time " + delta + " can't be written to a midi file");
+    }
+    ensureCapacity(4);
+    int shift = 21;
+    while (shift > 0 && (delta >>> shift) == 0) {
+      shift -= 7;
+    }
+    while (shift > 0) {
+      this.buffer.put((byte) (0x80 | ((delta >>> shift) & 0x7F)));
+      shift -= 7;
+    }
+    this.buffer.put((byte) (delta & 0x7F));
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (this.buffer.remaining() < bytes) {
+      int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + bytes);
+      ByteBuffer larger = ByteBuffer.allocate(capacity);
+      this.buffer.flip();
+      larger.put(this.buffer);
+      this.buffer = larger;
+    }
+  }
+
+  /**
+   * @return The division field of the header for a division type and resolution
+   */
+  private static int getDivision(float divisionType, int resolution)
+      throws InvalidMidiDataException {
+    if (divisionType == Sequence.PPQ) {
+      if (resolution <= 0 || resolution > 0x7FFF) {
+        throw new InvalidMidiDataException("Can't write " + resolution + " ticks per beat");
+      }
+      return resolution;
+    }
+    if (resolution <= 0 || resolution > 0xFF) {
+      throw new InvalidMidiDataException("Can't write " + resolution + " ticks per frame");
+    }
+    int framesPerSecond;
+    if (divisionType == Sequence.SMPTE_24) {
+      framesPerSecond = 24;
+    } else if (divisionType == Sequence.SMPTE_25) {
+      framesPerSecond = 25;
+    } else if (divisionType == Sequence.SMPTE_30DROP) {
+      framesPerSecond = 29;
+    } else if (divisionType == Sequence.SMPTE_30) {
+      framesPerSecond = 30;
+    } else {
+      throw new InvalidMidiDataException("Unknown division type " + divisionType);
+    }
+    // The frame rate is stored negated in the upper byte
+    return ((-framesPerSecond & 0xFF) << 8) | resolution;
+  }
+
+}
@@ -0,0 +1,274 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Harmonises a melody which arrives a note at a time, for live input or pieces too long to hold at
+ * once.
+ *
+ * Only the notes within a window of recent beats are kept. Each time a melody note arrives it is
+ * added to the window, with a harmony note for each voice at the same time, and the harmony notes
+ * in the window are improved by hill climbing: each in turn is moved to whichever pitch in its
+ * voice gives the best average fitness over the window, newest first. Notes which have finished
+ * before the window starts (the window ends at the start of the newest note) are frozen, passed to
+ * the listener, and forgotten, so the memory used depends on the length of the window rather than
+ * of the piece, and every harmony note is settled within about a window's length of its end.
+ *
+ * Frozen notes no longer take part in the scoring, so a harmony note can only be judged against the
+ * notes which are in the window with it.
+ *
+ * The voices and settings must be made before the first note arrives. A harmoniser is not thread
+ * safe, so notes should all arrive on one thread (or be synchronised by the caller).
+ */
+public class StreamingHarmoniser {
+
+  private final int ticksPerBeat;
+  private final float divisionType;
+  private final long windowTicks;
+
+  // The pitch bounds of each harmony line, as {minPitch, maxPitch}
+  private final List<int[]> voices = new ArrayList<int[]>();
+
+  private HarmonyListener listener;
+  private int passes = 2;
+  private SplittableRandom random = new SplittableRandom();
+
+  // The notes in the window, in the order they arrived
+  private final LinkedList<WindowNote> window = new LinkedList<WindowNote>();
+  private long latestTimestamp = Long.MIN_VALUE;
+
+  /**
+   * @param ticksPerBeat The ticks per beat of the melody (see Line(int, float))
+   * @param divisionType The division type of the melody (see Line(int, float))
+   * @param windowBeats The length of the window in beats
+   * @throws InvalidParameterException if the window is not at least a beat long
+   */
+  public StreamingHarmoniser(int ticksPerBeat, float divisionType, int windowBeats) {
+    if (windowBeats < 1) {
+      throw new InvalidParameterException("The window must be at least one beat long");
+    }
+    this.ticksPerBeat = ticksPerBeat;
+    this.divisionType = divisionType;
+    this.windowTicks = (long) windowBeats * ticksPerBeat;
+  }
+
+  /**
+   * Add a voice, which will be given a harmony note for every melody note, with pitches between
+   * minPitch and maxPitch
+   *
+   * @param minPitch The lowest pitch of the voice
+   * @param maxPitch The highest pitch of the voice
+   * @throws InvalidParameterException if the pitches are invalid or notes have already arrived
+   */
+  public void addVoice(int minPitch, int maxPitch) {
+    if (this.latestTimestamp != Long.MIN_VALUE) {
+      throw new InvalidParameterException("Voices must be added before the first note arrives");
+    }
+    if (minPitch < 0 || maxPitch > 127 || minPitch >= maxPitch) {
+      throw new InvalidParameterException("Voices need 0 <= minPitch < maxPitch <= 127, not "
+          + minPitch + " and " + maxPitch);
+    }
+    this.voices.add(new int[] {minPitch, maxPitch});
+  }
+
+  /**
+   * Add the next note of the melody, improve the harmony in the window, and pass any harmony notes
+   * which have left the window to the listener
+   *
+   * @param timestamp The time at which the note starts. Notes must arrive in order of timestamp
+   * @param duration The length of the note
+   * @param pitch The pitch of the note
+   * @param velocity The velocity of the note, which the harmony notes are given too
+   * @throws InvalidParameterException if the note starts before the last one, has a negative
+   *         duration or a pitch or velocity outside 0-127, or there are no voices. A note which is
+   *         rejected is not added, so the harmoniser can carry on with the next
+   */
+  public void addMelodyNote(long timestamp, long duration, int pitch, int velocity) {
+    if (this.voices.isEmpty()) {
+      throw new InvalidParameterException("At least one voice must be added first");
+    }
+    // Checked here rather than left to the window's line, which would throw every time the window
+    // was rebuilt until the note had left it
+    if (duration < 0) {
+      throw new InvalidParameterException("duration must not be negative, not " + duration);
+    }
+    if (pitch < 0 || pitch > 127 || velocity < 0 || velocity > 127) {
+      throw new InvalidParameterException("pitch and velocity must be between 0 and 127, not "
+          + pitch + " and " + velocity);
+    }
+    if (timestamp < this.latestTimestamp) {
+      throw new InvalidParameterException("Notes must arrive in order, but a note at " + timestamp
+          + " arrived after one at " + this.latestTimestamp);
+    }
+    this.latestTimestamp = timestamp;
+
+    WindowNote note = new WindowNote(timestamp, duration, pitch, velocity, this.voices.size());
+    for (int v = 0; v < this.voices.size(); v++) {
+      note.harmonyPitches[v] = Note.getRandomPitch(this.voices.get(v)[0], this.voices.get(v)[1],
+          this.random);
+    }
+    this.window.add(note);
+
+    freeze(timestamp - this.windowTicks);
+    optimiseWindow();
+  }
+
+  /**
+   * Call at the end of the melody to settle the harmony of the notes left in the window and pass
+   * them to the listener
+   */
+  public void finish() {
+    optimiseWindow();
+    freeze(Long.MAX_VALUE);
+  }
+
+  /**
+   * @return The number of melody notes in the window
+   */
+  public int getWindowSize() {
+    return this.window.size();
+  }
+
+  /**
+   * Pass the harmony notes of every window note which has ended by the given time to the listener,
+   * and drop them from the window
+   */
+  private void freeze(long time) {
+    Iterator<WindowNote> iterator = this.window.iterator();
+    while (iterator.hasNext()) {
+      WindowNote note = iterator.next();
+      if (note.timestamp + note.duration <= time) {
+        iterator.remove();
+        if (this.listener != null) {
+          for (int v = 0; v < this.voices.size(); v++) {
+            this.listener.harmonyNote(v, note.timestamp, note.duration, note.harmonyPitches[v],
+                note.velocity);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Hill climb the harmony notes of the window, newest first, keeping the pitches found in the
+   * window notes
+   */
+  private void optimiseWindow() {
+    if (this.window.isEmpty()) {
+      return;
+    }
+
+    Line melody = new Line(this.ticksPerBeat, this.divisionType, Line.Storage.PACKED_ARRAYS);
+    for (WindowNote note : this.window) {
+      melody.addNoteToLine(note.timestamp, note.duration, note.pitch, note.velocity);
+    }
+    LinePopulation population = new LinePopulation(melody);
+    for (int v = 0; v < this.voices.size(); v++) {
+      population.addNewLineWithMelodyAsTemplate(this.voices.get(v)[0], this.voices.get(v)[1],
+          this.random);
+      int n = 0;
+      for (WindowNote note : this.window) {
+        population.setPitch(v + 1, n++, note.harmonyPitches[v]);
+      }
+    }
+
+    int noteCount = this.window.size();
+    for (int pass = 0; pass < this.passes; pass++) {
+      boolean changed = false;
+      for (int n = noteCount - 1; n >= 0; n--) {
+        for (int v = 0; v < this.voices.size(); v++) {
+          changed |= climb(population, v + 1, n);
+        }
+      }
+      if (!changed) {
+        break;
+      }
+    }
+
+    int n = 0;
+    for (WindowNote note : this.window) {
+      for (int v = 0; v < this.voices.size(); v++) {
+        note.harmonyPitches[v] = population.getLineAtIndex(v + 1).getPitchAtIndex(n);
+      }
+      n++;
+    }
+  }
+
+  /**
+   * Move one harmony note to the pitch in its voice which gives the best average fitness, staying
+   * put unless another pitch is strictly better
+   *
+   * @return Whether the note moved
+   */
+  private boolean climb(LinePopulation population, int lineIndex, int noteIndex) {
+    Line line = population.getLineAtIndex(lineIndex);
+    int startPitch = line.getPitchAtIndex(noteIndex);
+    int bestPitch = startPitch;
+    double bestFitness = population.getCachedAverageFitnessScore();
+    for (int pitch = line.getMinPitch(); pitch <= line.getMaxPitch(); pitch++) {
+      if (pitch == startPitch) {
+        continue;
+      }
+      population.setPitch(lineIndex, noteIndex, pitch);
+      double fitness = population.getCachedAverageFitnessScore();
+      if (fitness > bestFitness) {
+        bestFitness = fitness;
+        bestPitch = pitch;
+      }
+    }
+    population.setPitch(lineIndex, noteIndex, bestPitch);
+    return bestPitch != startPitch;
+  }
+
+  /**
+   * @param listener Receives the harmony notes as they are frozen
+   */
+  public void setListener(HarmonyListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * @param passes The most hill climbing passes made over the window after each note arrives
+   *        (default 2). Fewer passes keep up with faster input, more give a better harmony
+   */
+  public void setPasses(int passes) {
+    if (passes < 1) {
+      throw new InvalidParameterException("passes must be at least 1");
+    }
+    this.passes = passes;
+  }
+
+  /**
+   * @param seed The seed for the starting pitches of the harmony notes, so that the same melody
+   *        always gets the same harmony (default a random seed)
+   */
+  public void setSeed(long seed) {
+    this.random = new SplittableRandom(seed);
+  }
+
+  /**
+   * A melody note in the window, with the current pitch of each voice's harmony note
+   */
+  private static final class WindowNote {
+
+    final long timestamp;
+    final long duration;
+    final int pitch;
+    final int velocity;
+    final int[] harmonyPitches;
+
+    WindowNote(long timestamp, long duration, int pitch, int velocity, int voiceCount) {
+      this.timestamp = timestamp;
+      this.duration = duration;
+      this.pitch = pitch;
+      this.velocity = velocity;
+      this.harmonyPitches = new int[voiceCount];
+    }
+  }
+
+}
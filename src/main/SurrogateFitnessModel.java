@@ -0,0 +1,282 @@
+package main;
+
+import java.security.InvalidParameterException;
+import java.util.List;
+
+import org.encog.engine.network.activation.ActivationLinear;
+import org.encog.engine.network.activation.ActivationSigmoid;
+import org.encog.ml.data.basic.BasicMLDataSet;
+import org.encog.neural.networks.BasicNetwork;
+import org.encog.neural.networks.layers.BasicLayer;
+import org.encog.neural.networks.training.propagation.resilient.ResilientPropagation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small neural network which learns to guess the fitness of a LinePopulation, so that large
+ * batches of candidates can be screened cheaply and only the most promising scored exactly (see
+ * GeneticOptimiser.setSurrogate).
+ *
+ * The network doesn't see the notes themselves but a fixed number of features (see getFeatures)
+ * which take one pass over the notes to work out, whatever the cost of the consonance model. It is
+ * trained on (features, fitness) samples collected as candidates are scored exactly (see
+ * addSample and train), keeping only the latest samples, so it follows the search as the
+ * candidates improve. Its guesses are only ever used to put candidates in order, so it doesn't
+ * matter much if they are off by a constant.
+ *
+ * A model isn't safe to use from more than one thread at once.
+ */
+public class SurrogateFitnessModel {
+
+  static Logger logger = LoggerFactory.getLogger(SurrogateFitnessModel.class);
+
+  /**
+   * The number of features worked out for each population: 4 histograms of 12 bins each
+   */
+  public static final int FEATURE_COUNT = 48;
+
+  private int hiddenNeurons = 16;
+  private int maxSamples = 2000;
+  private int minSamples = 100;
+  private int trainingIterations = 20;
+  private int seed = 1;
+
+  // The latest samples, in a ring which overwrites the oldest once full
+  private double[][] sampleFeatures;
+  private double[] sampleFitnesses;
+  private int sampleCount;
+  private int nextSample;
+
+  private BasicNetwork network;
+  // Fitnesses are scaled to between 0 and 1 for training using the range of the samples
+  private double fitnessOffset;
+  private double fitnessScale = 1;
+  private boolean trained;
+
+  /**
+   * Work out the features the model uses for a population. There are four histograms of 12 bins,
+   * each scaled to add up to 1: the pitch classes of the harmony notes; the interval classes
+   * between each harmony note and the melody note it was copied from (see
+   * LinePopulation.addNewLineWithMelodyAsTemplate), which it sounds with for its whole length; the
+   * interval classes between the notes at the same index in each pair of harmony lines, which
+   * sound together in the same way; and the leaps from one note to the next in each harmony line,
+   * in semitones, with 11 and over in the last bin. All but the last are weighted by duration
+   *
+   * @param population The population
+   * @return The FEATURE_COUNT features
+   */
+  public static double[] getFeatures(LinePopulation population) {
+    double[] features = new double[FEATURE_COUNT];
+    Line melody = population.getMelody();
+    int lineCount = population.getNumberOfLines();
+    Line[] lines = new Line[lineCount];
+    lines[0] = melody;
+    for (int l = 1; l < lineCount; l++) {
+      lines[l] = population.getLineAtIndex(l);
+    }
+
+    for (int l = 1; l < lineCount; l++) {
+      Line line = lines[l];
+      boolean alignedWithMelody = line.getLength() == melody.getLength();
+      int previousPitch = -1;
+      for (int n = 0; n < line.getLength(); n++) {
+        int pitch = line.getPitchAtIndex(n);
+        double duration = line.getDurationAtIndex(n);
+        features[pitch % 12] += duration;
+        if (alignedWithMelody) {
+          features[12 + Math.abs(pitch - melody.getPitchAtIndex(n)) % 12] += duration;
+        }
+        for (int m = l + 1; m < lineCount; m++) {
+          if (n < lines[m].getLength()) {
+            features[24 + Math.abs(pitch - lines[m].getPitchAtIndex(n)) % 12] += duration;
+          }
+        }
+        if (previousPitch >= 0) {
+          features[36 + Math.min(Math.abs(pitch - previousPitch), 11)] += 1;
+        }
+        previousPitch = pitch;
+      }
+    }
+
+    for (int histogram = 0; histogram < FEATURE_COUNT; histogram += 12) {
+      double sum = 0;
+      for (int i = histogram; i < histogram + 12; i++) {
+        sum += features[i];
+      }
+      if (sum > 0) {
+        for (int i = histogram; i < histogram + 12; i++) {
+          features[i] /= sum;
+        }
+      }
+    }
+    return features;
+  }
+
+  /**
+   * Remember a population's exact fitness for the next call to train. Once maxSamples samples have
+   * been added, each new sample replaces the oldest
+   *
+   * @param population The population
+   * @param fitness Its exact fitness (see LinePopulation.getAverageFitnessScore)
+   */
+  public void addSample(LinePopulation population, double fitness) {
+    if (this.sampleFeatures == null) {
+      this.sampleFeatures = new double[this.maxSamples][];
+      this.sampleFitnesses = new double[this.maxSamples];
+    }
+    this.sampleFeatures[this.nextSample] = getFeatures(population);
+    this.sampleFitnesses[this.nextSample] = fitness;
+    this.nextSample = (this.nextSample + 1) % this.maxSamples;
+    this.sampleCount = Math.min(this.sampleCount + 1, this.maxSamples);
+  }
+
+  /**
+   * @return The number of samples held
+   */
+  public int getSampleCount() {
+    return this.sampleCount;
+  }
+
+  /**
+   * Train the network on the samples held, carrying on from where the last call left off. Does
+   * nothing if there are fewer than minSamples samples (see setMinSamples)
+   *
+   * @return Whether the network was trained
+   */
+  public boolean train() {
+    if (this.sampleCount < this.minSamples) {
+      return false;
+    }
+    if (this.network == null) {
+      this.network = new BasicNetwork();
+      this.network.addLayer(new BasicLayer(null, true, FEATURE_COUNT));
+      this.network.addLayer(new BasicLayer(new ActivationSigmoid(), true, this.hiddenNeurons));
+      this.network.addLayer(new BasicLayer(new ActivationLinear(), false, 1));
+      this.network.getStructure().finalizeStructure();
+      this.network.reset(this.seed);
+    }
+
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < this.sampleCount; i++) {
+      min = Math.min(min, this.sampleFitnesses[i]);
+      max = Math.max(max, this.sampleFitnesses[i]);
+    }
+    this.fitnessOffset = min;
+    this.fitnessScale = (max > min) ? max - min : 1;
+
+    double[][] inputs = new double[this.sampleCount][];
+    double[][] ideals = new double[this.sampleCount][1];
+    for (int i = 0; i < this.sampleCount; i++) {
+      inputs[i] = this.sampleFeatures[i];
+      ideals[i][0] = (this.sampleFitnesses[i] - this.fitnessOffset) / this.fitnessScale;
+    }
+
+    // One thread, so that training gives the same network every time
+    ResilientPropagation training =
+        new ResilientPropagation(this.network, new BasicMLDataSet(inputs, ideals));
+    training.setThreadCount(1);
+    training.iteration(this.trainingIterations);
+    training.finishTraining();
+    this.trained = true;
+    logger.debug("Surrogate trained on {} samples with error {}", this.sampleCount,
+        training.getError());
+    return true;
+  }
+
+  /**
+   * @return Whether the network has been trained, so can make guesses
+   */
+  public boolean isTrained() {
+    return this.trained;
+  }
+
+  /**
+   * @param population The population
+   * @return A guess at its fitness
+   * @throws IllegalStateException if the network hasn't been trained
+   */
+  public double predict(LinePopulation population) {
+    if (!this.trained) {
+      throw new IllegalStateException("The surrogate must be trained before it can predict");
+    }
+    double[] output = new double[1];
+    this.network.compute(getFeatures(population), output);
+    return output[0] * this.fitnessScale + this.fitnessOffset;
+  }
+
+  /**
+   * @param populations The populations
+   * @return A guess at the fitness of each, in the same order
+   * @throws IllegalStateException if the network hasn't been trained
+   */
+  public double[] predict(List<LinePopulation> populations) {
+    double[] predictions = new double[populations.size()];
+    for (int i = 0; i < predictions.length; i++) {
+      predictions[i] = predict(populations.get(i));
+    }
+    return predictions;
+  }
+
+  /**
+   * @param hiddenNeurons The number of neurons in the network's hidden layer (default 16)
+   * @throws IllegalStateException if the network has already been built by the first training
+   */
+  public void setHiddenNeurons(int hiddenNeurons) {
+    if (hiddenNeurons < 1) {
+      throw new InvalidParameterException("hiddenNeurons must be at least 1");
+    }
+    if (this.network != null) {
+      throw new IllegalStateException("hiddenNeurons must be set before the first training");
+    }
+    this.hiddenNeurons = hiddenNeurons;
+  }
+
+  /**
+   * @param maxSamples The most samples held (default 2000)
+   * @throws IllegalStateException if samples have already been added, as the space for them has
+   *         been set aside
+   */
+  public void setMaxSamples(int maxSamples) {
+    if (maxSamples < 1) {
+      throw new InvalidParameterException("maxSamples must be at least 1");
+    }
+    if (this.sampleFeatures != null) {
+      throw new IllegalStateException("maxSamples must be set before the first sample is added");
+    }
+    this.maxSamples = maxSamples;
+  }
+
+  /**
+   * @param minSamples The fewest samples the network is trained on (default 100)
+   */
+  public void setMinSamples(int minSamples) {
+    if (minSamples < 1) {
+      throw new InvalidParameterException("minSamples must be at least 1");
+    }
+    this.minSamples = minSamples;
+  }
+
+  /**
+   * @param trainingIterations The number of passes over the samples made by each call to train
+   *        (default 20)
+   */
+  public void setTrainingIterations(int trainingIterations) {
+    if (trainingIterations < 1) {
+      throw new InvalidParameterException("trainingIterations must be at least 1");
+    }
+    this.trainingIterations = trainingIterations;
+  }
+
+  /**
+   * @param seed The seed for the network's starting weights (default 1)
+   * @throws IllegalStateException if the network has already been built by the first training
+   */
+  public void setSeed(int seed) {
+    if (this.network != null) {
+      throw new IllegalStateException("The seed must be set before the first training");
+    }
+    this.seed = seed;
+  }
+
+}
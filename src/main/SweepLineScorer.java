@@ -0,0 +1,222 @@
+package main;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scores every harmony note of a population in one sweep through time, rather than querying every
+ * other line for each note as LinePopulation.getPitchFitnessScore does.
+ *
+ * The notes of all the lines are merged in order of timestamp, and the sweep keeps, for each line,
+ * the notes which are still on. When a note starts it is paired with every note still on in the
+ * other lines, so each pair of notes which sound together is found exactly once, when the later of
+ * the two starts, and the work done is in proportion to the number of notes times the number
+ * sounding at once. A harmony note's score is finished as soon as the sweep passes its end, so only
+ * the partial sums of the notes currently on are held.
+ *
+ * The scores are the same, bit for bit, as those from getPitchFitnessScore. Each note keeps a
+ * separate partial sum for every other line, and the pairs are added into each partial sum in the
+ * order getPitchFitnessScore finds them (the other line's notes in timestamp order), then the
+ * partial sums are added up line by line in the same order too. Pairs which only touch, and so
+ * overlap for 0 ticks, are left out, as adding a score multiplied by 0 never changes the sum.
+ * Durations are assumed not to be negative.
+ */
+final class SweepLineScorer {
+
+  private SweepLineScorer() {}
+
+  /**
+   * @param lines The lines of the population, melody first
+   * @param consonanceModel The model for scoring pairs of pitches
+   * @return The score of each note of each line, as getPitchFitnessScore(line, note) would give it.
+   *         The melody (index 0) is not scored, so has an empty array
+   */
+  static double[][] score(List<Line> lines, ConsonanceModel consonanceModel) {
+    int lineCount = lines.size();
+
+    // Lay all the notes out one line after another
+    int total = 0;
+    for (Line line : lines) {
+      total += line.getLength();
+    }
+    long[] starts = new long[total];
+    long[] ends = new long[total];
+    int[] pitches = new int[total];
+    int[] lineOf = new int[total];
+    int[] indexOf = new int[total];
+    int g = 0;
+    for (int l = 0; l < lineCount; l++) {
+      Line line = lines.get(l);
+      for (int n = 0; n < line.getLength(); n++) {
+        starts[g] = line.getTimeStampAtIndex(n);
+        ends[g] = starts[g] + line.getDurationAtIndex(n);
+        pitches[g] = line.getPitchAtIndex(n);
+        lineOf[g] = l;
+        indexOf[g] = n;
+        g++;
+      }
+    }
+
+    // A stable sort by timestamp, so notes which start together stay in line then index order, and
+    // the notes of each line are visited in the order getNotesWithinTimeFrame reports them
+    int[] order = NoteTimeIndex.sortIndicesByKey(starts, total);
+
+    double[][] scores = new double[lineCount][];
+    scores[0] = new double[0];
+    for (int l = 1; l < lineCount; l++) {
+      scores[l] = new double[lines.get(l).getLength()];
+    }
+
+    Sweep sweep = new Sweep(lineCount, starts, ends, lineOf, indexOf, scores);
+    long pairCount = 0;
+    for (int o = 0; o < total; o++) {
+      int x = order[o];
+      int lineOfX = lineOf[x];
+      long start = starts[x];
+      long end = ends[x];
+      int pitch = pitches[x];
+      int slotOfX = (lineOfX == 0) ? -1 : sweep.allocateSlot();
+
+      for (int i = 0; i < lineCount; i++) {
+        int[] active = sweep.active[i];
+        int kept = 0;
+        for (int k = 0; k < sweep.activeCount[i]; k++) {
+          int y = active[k];
+          if (ends[y] <= start) {
+            // Nothing starting from now on can overlap this note, so its score is complete
+            sweep.finish(y, sweep.activeSlots[i][k]);
+            continue;
+          }
+          active[kept] = y;
+          sweep.activeSlots[i][kept] = sweep.activeSlots[i][k];
+          kept++;
+
+          if (i == lineOfX) {
+            continue;
+          }
+          // y started no later than x, so they overlap from the start of x
+          long overlap = ((ends[y] < end) ? ends[y] : end) - start;
+          if (overlap > 0) {
+            pairCount++;
+            if (slotOfX >= 0) {
+              sweep.partials[slotOfX * lineCount + i] +=
+                  consonanceModel.getConsonanceScore(pitch, pitches[y]) * overlap;
+            }
+            int slotOfY = sweep.activeSlots[i][kept - 1];
+            if (slotOfY >= 0) {
+              sweep.partials[slotOfY * lineCount + lineOfX] +=
+                  consonanceModel.getConsonanceScore(pitches[y], pitch) * overlap;
+            }
+          }
+        }
+        sweep.activeCount[i] = kept;
+      }
+
+      sweep.activate(x, lineOfX, slotOfX);
+    }
+
+    sweep.finishAll();
+    Metrics.PAIR_EVALUATIONS.add(pairCount);
+    return scores;
+  }
+
+  /**
+   * The notes still on in each line, and the partial sums of the harmony notes among them
+   */
+  private static final class Sweep {
+
+    private final int lineCount;
+    private final long[] starts;
+    private final long[] ends;
+    private final int[] lineOf;
+    private final int[] indexOf;
+    private final double[][] scores;
+
+    // For each line, the notes still on in the order they started, and their partial sum slots
+    // (-1 for melody notes, which aren't scored)
+    final int[][] active;
+    final int[][] activeSlots;
+    final int[] activeCount;
+
+    // lineCount partial sums per slot, one for each other line
+    double[] partials;
+    private int[] freeSlots;
+    private int freeSlotCount;
+    private int slotCount;
+
+    Sweep(int lineCount, long[] starts, long[] ends, int[] lineOf, int[] indexOf,
+        double[][] scores) {
+      this.lineCount = lineCount;
+      this.starts = starts;
+      this.ends = ends;
+      this.lineOf = lineOf;
+      this.indexOf = indexOf;
+      this.scores = scores;
+      this.active = new int[lineCount][8];
+      this.activeSlots = new int[lineCount][8];
+      this.activeCount = new int[lineCount];
+      this.partials = new double[8 * lineCount];
+      this.freeSlots = new int[8];
+    }
+
+    int allocateSlot() {
+      int slot;
+      if (this.freeSlotCount > 0) {
+        slot = this.freeSlots[--this.freeSlotCount];
+      } else {
+        slot = this.slotCount++;
+        if ((slot + 1) * this.lineCount > this.partials.length) {
+          this.partials = Arrays.copyOf(this.partials, this.partials.length * 2);
+        }
+      }
+      Arrays.fill(this.partials, slot * this.lineCount, (slot + 1) * this.lineCount, 0);
+      return slot;
+    }
+
+    void activate(int note, int line, int slot) {
+      int count = this.activeCount[line];
+      if (count == this.active[line].length) {
+        this.active[line] = Arrays.copyOf(this.active[line], count * 2);
+        this.activeSlots[line] = Arrays.copyOf(this.activeSlots[line], count * 2);
+      }
+      this.active[line][count] = note;
+      this.activeSlots[line][count] = slot;
+      this.activeCount[line] = count + 1;
+    }
+
+    /**
+     * Work out the score of a note whose partial sums are complete, and free its slot
+     */
+    void finish(int note, int slot) {
+      if (slot < 0) {
+        return;
+      }
+      int line = this.lineOf[note];
+
+      // Add up the partial sums line by line, then normalise, as getPitchFitnessScore does
+      double sum = 0;
+      for (int i = 0; i < this.lineCount; i++) {
+        if (i != line) {
+          sum += this.partials[slot * this.lineCount + i];
+        }
+      }
+      long duration = this.ends[note] - this.starts[note];
+      this.scores[line][this.indexOf[note]] = sum / (duration * (this.lineCount - 1));
+
+      if (this.freeSlotCount == this.freeSlots.length) {
+        this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlotCount * 2);
+      }
+      this.freeSlots[this.freeSlotCount++] = slot;
+    }
+
+    void finishAll() {
+      for (int i = 0; i < this.lineCount; i++) {
+        for (int k = 0; k < this.activeCount[i]; k++) {
+          finish(this.active[i][k], this.activeSlots[i][k]);
+        }
+        this.activeCount[i] = 0;
+      }
+    }
+  }
+
+}
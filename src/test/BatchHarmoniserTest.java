@@ -0,0 +1,158 @@
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import main.BatchHarmoniser;
+import main.GeneticHarmoniser;
+import main.Harmoniser;
+import main.Line;
+import main.LinePopulation;
+import main.StandardMidiFileReader;
+
+public class BatchHarmoniserTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    this.directory = Files.createTempDirectory("BatchHarmoniserTest");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Stream<Path> paths = Files.walk(this.directory);
+    try {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } finally {
+      paths.close();
+    }
+  }
+
+  @Test
+  public void testHarmoniseDirectory()
+      throws IOException, InterruptedException, InvalidMidiDataException {
+    Path input = Files.createDirectory(this.directory.resolve("melodies"));
+    Path output = this.directory.resolve("harmonies");
+    for (int i = 0; i < 6; i++) {
+      int resource = 1 + i % 2;
+      Files.copy(Paths.get("src/test/Resources/MidiStaticTest_Resource" + resource + ".mid"),
+          input.resolve("melody" + i + ".mid"));
+    }
+    // Not midi, but named as if it was, so it should fail without stopping the batch
+    Files.write(input.resolve("broken.mid"), "not midi".getBytes(StandardCharsets.US_ASCII));
+
+    GeneticHarmoniser harmoniser = new GeneticHarmoniser();
+    harmoniser.addVoice(48, 60);
+    harmoniser.addVoice(36, 48);
+    harmoniser.setPopulationSize(6);
+    harmoniser.setMaxGenerations(3);
+    harmoniser.setSeed(1);
+
+    // Small pools and no queueing, so the stages have to hold each other back
+    BatchHarmoniser batch = new BatchHarmoniser(harmoniser);
+    batch.setIoThreads(1);
+    batch.setCpuThreads(2);
+    batch.setWriterThreads(1);
+    batch.setQueueCapacity(0);
+    BatchHarmoniser.Report report = batch.harmoniseDirectory(input, output);
+
+    Assert.assertEquals(7, report.getResults().size());
+    Assert.assertEquals(6, report.getSucceeded());
+    Assert.assertEquals(1, report.getFailed());
+
+    // Files are reported in name order
+    BatchHarmoniser.FileResult broken = report.getResults().get(0);
+    Assert.assertEquals("broken.mid", broken.getInput().getFileName().toString());
+    Assert.assertFalse(broken.isSuccess());
+    Assert.assertTrue(broken.getFailure() instanceof InvalidMidiDataException);
+
+    for (BatchHarmoniser.FileResult result : report.getResults().subList(1, 7)) {
+      Assert.assertTrue(result.isSuccess());
+      Assert.assertTrue(result.getNoteCount() > 0);
+      Assert.assertEquals(result.getInput().getFileName().toString().replace(".mid", "")
+          + "_harmonised.mid", result.getOutput().getFileName().toString());
+
+      // The melody and a track for each voice
+      Sequence sequence = MidiSystem.getSequence(
+          new ByteArrayInputStream(Files.readAllBytes(result.getOutput())));
+      Assert.assertEquals(3, sequence.getTracks().length);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testErrorsAndClashingNames()
+      throws IOException, InterruptedException, InvalidMidiDataException {
+    Path input = Files.createDirectory(this.directory.resolve("melodies"));
+    Path output = this.directory.resolve("harmonies");
+    Path resource1 = Paths.get("src/test/Resources/MidiStaticTest_Resource1.mid");
+    Path resource2 = Paths.get("src/test/Resources/MidiStaticTest_Resource2.mid");
+    Files.copy(resource1, input.resolve("a.mid"));
+    Files.copy(resource1, input.resolve("a.midi"));
+    Files.copy(resource2, input.resolve("b.mid"));
+    final int brokenPitch =
+        StandardMidiFileReader.readMelody(resource2.toString()).getPitchAtIndex(0);
+
+    // An Error, rather than an exception, must still let the batch finish
+    final GeneticHarmoniser harmoniser = new GeneticHarmoniser();
+    harmoniser.addVoice(48, 60);
+    harmoniser.setPopulationSize(4);
+    harmoniser.setMaxGenerations(2);
+    BatchHarmoniser batch = new BatchHarmoniser(new Harmoniser() {
+      @Override
+      public LinePopulation harmonise(Line melody) {
+        if (melody.getPitchAtIndex(0) == brokenPitch) {
+          throw new StackOverflowError("Too deep");
+        }
+        return harmoniser.harmonise(melody);
+      }
+    });
+    batch.setCpuThreads(1);
+    batch.setQueueCapacity(0);
+    BatchHarmoniser.Report report = batch.harmoniseDirectory(input, output);
+
+    Assert.assertEquals(2, report.getSucceeded());
+    Assert.assertEquals(1, report.getFailed());
+    Assert.assertTrue(report.getResults().get(2).getFailure() instanceof StackOverflowError);
+
+    // a.mid and a.midi each get a file of their own
+    Assert.assertEquals("a_harmonised.mid",
+        report.getResults().get(0).getOutput().getFileName().toString());
+    Assert.assertEquals("a-2_harmonised.mid",
+        report.getResults().get(1).getOutput().getFileName().toString());
+    Assert.assertTrue(Files.exists(output.resolve("a_harmonised.mid")));
+    Assert.assertTrue(Files.exists(output.resolve("a-2_harmonised.mid")));
+  }
+
+  @Test
+  public void testReadManifest() throws IOException {
+    Path manifest = this.directory.resolve("manifest.txt");
+    Files.write(manifest, Arrays.asList("# Tonight's melodies", "a.mid", "", "  sub/b.midi  ",
+        "/absolute/c.mid"), StandardCharsets.UTF_8);
+
+    List<Path> inputs = BatchHarmoniser.readManifest(manifest);
+
+    Assert.assertEquals(3, inputs.size());
+    Assert.assertEquals(this.directory.resolve("a.mid").toAbsolutePath(), inputs.get(0));
+    Assert.assertEquals(this.directory.resolve("sub/b.midi").toAbsolutePath(), inputs.get(1));
+    Assert.assertEquals(Paths.get("/absolute/c.mid"), inputs.get(2));
+  }
+
+}
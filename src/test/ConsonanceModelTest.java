@@ -0,0 +1,101 @@
+package test;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.ConsonanceModel;
+import main.IntervalConsonanceModel;
+import main.Line;
+import main.LinePopulation;
+import main.Note;
+import main.PitchPairConsonanceModel;
+
+public class ConsonanceModelTest {
+
+  @Test
+  public void testDefaultModelMatchesIntervalRules() {
+    for (int pitch = 0; pitch < 128; pitch++) {
+      for (int comparisonPitch = 0; comparisonPitch < 128; comparisonPitch++) {
+        int steps = Math.abs(pitch - comparisonPitch);
+        double expected;
+        if (steps == 0) {
+          expected = 0.25;
+        } else if (steps % 7 == 0 || steps % 12 == 0) {
+          expected = 1.0;
+        } else if (steps % 3 == 0 || steps % 4 == 0 || steps % 8 == 0 || steps % 9 == 0) {
+          expected = 0.75;
+        } else {
+          expected = 0.0;
+        }
+        Assert.assertEquals(expected,
+            IntervalConsonanceModel.DEFAULT.getConsonanceScore(pitch, comparisonPitch), 0);
+        Assert.assertEquals(expected, new Note(0, 1, pitch, 64)
+            .calculateIPitchConsonanceScore(new Note(0, 1, comparisonPitch, 64)), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testAlternativeModels() throws InvalidMidiDataException, IOException {
+    double[] classes = new double[12];
+    classes[0] = 1.0;
+    classes[7] = 0.5;
+    IntervalConsonanceModel intervalClasses =
+        IntervalConsonanceModel.fromIntervalClasses(0.1, classes);
+    Assert.assertEquals(0.1, intervalClasses.getConsonanceScore(60, 60), 0);
+    Assert.assertEquals(1.0, intervalClasses.getConsonanceScore(60, 84), 0);
+    Assert.assertEquals(0.5, intervalClasses.getConsonanceScore(67, 36), 0);
+    Assert.assertEquals(0.0, intervalClasses.getConsonanceScore(60, 61), 0);
+
+    // In C major, C and G score as usual but F# and C# are out of the key
+    PitchPairConsonanceModel cMajor =
+        PitchPairConsonanceModel.forKey(IntervalConsonanceModel.DEFAULT, 0, true, 0.5);
+    Assert.assertEquals(1.0, cMajor.getConsonanceScore(60, 67), 0);
+    Assert.assertEquals(0.5, cMajor.getConsonanceScore(66, 73), 0);
+
+    // A population scored with a model which likes everything equally should score 1
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+    testPop.setConsonanceModel(new ConsonanceModel() {
+      @Override
+      public double getConsonanceScore(int pitch, int comparisonPitch) {
+        return 1.0;
+      }
+    });
+    Assert.assertEquals(1.0, testPop.getPitchFitnessScore(1, 0), 1e-12);
+  }
+
+  @Test
+  public void testPitchesOutOfRangeAreRejected() {
+    PitchPairConsonanceModel table = new PitchPairConsonanceModel(IntervalConsonanceModel.DEFAULT);
+    // (1 << 7) | 128 is the index of (1, 0), so an unchecked lookup would score the wrong pair
+    assertRejected(table, 1, 128);
+    assertRejected(table, -1, 60);
+    // 200 and 190 are a tenth apart, which an unchecked interval lookup would happily score
+    assertRejected(IntervalConsonanceModel.DEFAULT, 200, 190);
+    assertRejected(IntervalConsonanceModel.DEFAULT, 60, -3);
+
+    try {
+      new Note(0, 1, 60, 64).calculateIPitchConsonanceScore(new Note(0, 1, 128, 64));
+      Assert.fail("A pitch of 128 should be rejected");
+    } catch (InvalidParameterException e) {
+      // Expected
+    }
+  }
+
+  private static void assertRejected(ConsonanceModel model, int pitch, int comparisonPitch) {
+    try {
+      model.getConsonanceScore(pitch, comparisonPitch);
+      Assert.fail("The pitches " + pitch + " and " + comparisonPitch + " should be rejected");
+    } catch (InvalidParameterException e) {
+      // Expected
+    }
+  }
+
+}
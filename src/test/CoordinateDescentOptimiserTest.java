@@ -0,0 +1,84 @@
+package test;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.CoordinateDescentOptimiser;
+import main.Line;
+import main.LinePopulation;
+
+public class CoordinateDescentOptimiserTest {
+
+  private static LinePopulation createPopulation() throws InvalidMidiDataException, IOException {
+    Line melody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    LinePopulation population = new LinePopulation(melody);
+    SplittableRandom random = new SplittableRandom(17);
+    population.addNewLineWithMelodyAsTemplate(48, 60, random);
+    population.addNewLineWithMelodyAsTemplate(36, 48, random);
+    population.addNewLineWithMelodyAsTemplate(55, 67, random);
+    return population;
+  }
+
+  @Test
+  public void testConvergesToLocalBest() throws InvalidMidiDataException, IOException {
+    LinePopulation seed = createPopulation();
+    double seedFitness = seed.getAverageFitnessScore();
+
+    CoordinateDescentOptimiser optimiser = new CoordinateDescentOptimiser(seed);
+    LinePopulation best = optimiser.run();
+    double bestFitness = best.getAverageFitnessScore();
+
+    Assert.assertTrue(bestFitness > seedFitness);
+    Assert.assertTrue(optimiser.getSweeps() < 100);
+    Assert.assertTrue(optimiser.getColourCount() >= 2);
+    // The seed is left as it was
+    Assert.assertEquals(seedFitness, seed.getAverageFitnessScore(), 0);
+
+    // No single note can be moved to a better pitch
+    for (int l = 1; l < best.getNumberOfLines(); l++) {
+      Line line = best.getLineAtIndex(l);
+      for (int n = 0; n < line.getLength(); n++) {
+        int pitch = line.getPitchAtIndex(n);
+        for (int p = line.getMinPitch(); p <= line.getMaxPitch(); p++) {
+          best.setPitch(l, n, p);
+          Assert.assertTrue(best.getCachedAverageFitnessScore() <= bestFitness + 1e-9);
+        }
+        best.setPitch(l, n, pitch);
+      }
+    }
+  }
+
+  @Test
+  public void testSameResultOnAnyNumberOfThreads() throws InvalidMidiDataException, IOException {
+    LinePopulation seed = createPopulation();
+    ForkJoinPool onePool = new ForkJoinPool(1);
+    ForkJoinPool fourPool = new ForkJoinPool(4);
+    try {
+      CoordinateDescentOptimiser first = new CoordinateDescentOptimiser(seed);
+      first.setPool(onePool);
+      LinePopulation firstBest = first.run();
+
+      CoordinateDescentOptimiser second = new CoordinateDescentOptimiser(seed);
+      second.setPool(fourPool);
+      LinePopulation secondBest = second.run();
+
+      Assert.assertEquals(first.getSweeps(), second.getSweeps());
+      for (int l = 1; l < seed.getNumberOfLines(); l++) {
+        for (int n = 0; n < seed.getLineAtIndex(l).getLength(); n++) {
+          Assert.assertEquals(firstBest.getLineAtIndex(l).getPitchAtIndex(n),
+              secondBest.getLineAtIndex(l).getPitchAtIndex(n));
+        }
+      }
+    } finally {
+      onePool.shutdown();
+      fourPool.shutdown();
+    }
+  }
+
+}
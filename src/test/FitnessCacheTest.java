@@ -0,0 +1,81 @@
+package test;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.FitnessCache;
+import main.IntervalConsonanceModel;
+import main.Line;
+import main.LinePopulation;
+
+public class FitnessCacheTest {
+
+  private static LinePopulation createPopulation() throws InvalidMidiDataException, IOException {
+    Line melody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    LinePopulation population = new LinePopulation(melody);
+    SplittableRandom random = new SplittableRandom(5);
+    population.addNewLineWithMelodyAsTemplate(48, 60, random);
+    population.addNewLineWithMelodyAsTemplate(36, 48, random);
+    return population;
+  }
+
+  @Test
+  public void testCopiesAreFound() throws InvalidMidiDataException, IOException {
+    LinePopulation population = createPopulation();
+    FitnessCache cache = new FitnessCache(10);
+
+    double fitness = cache.getAverageFitnessScore(population);
+    Assert.assertEquals(population.getAverageFitnessScore(), fitness, 0);
+    Assert.assertEquals(0, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+
+    // A copy has the same pitches and shares the melody, so it's found
+    LinePopulation copy = new LinePopulation(population);
+    Assert.assertEquals(fitness, cache.getAverageFitnessScore(copy), 0);
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(0.5, cache.getHitRate(), 0);
+
+    // Changing a pitch makes it a different harmony
+    int pitch = copy.getLineAtIndex(1).getPitchAtIndex(0);
+    copy.setPitch(1, 0, (pitch == 48) ? 49 : 48);
+    Assert.assertEquals(copy.getAverageFitnessScore(), cache.getAverageFitnessScore(copy), 0);
+    Assert.assertEquals(2, cache.getMisses());
+
+    // As does scoring it with a different model
+    LinePopulation remodelled = new LinePopulation(population);
+    remodelled.setConsonanceModel(IntervalConsonanceModel.fromIntervalClasses(1, new double[12]));
+    cache.getAverageFitnessScore(remodelled);
+    Assert.assertEquals(3, cache.getMisses());
+    Assert.assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws InvalidMidiDataException, IOException {
+    LinePopulation first = createPopulation();
+    LinePopulation second = new LinePopulation(first);
+    second.setPitch(1, 0, (second.getLineAtIndex(1).getPitchAtIndex(0) == 48) ? 49 : 48);
+    LinePopulation third = new LinePopulation(first);
+    third.setPitch(2, 0, (third.getLineAtIndex(2).getPitchAtIndex(0) == 36) ? 37 : 36);
+
+    FitnessCache cache = new FitnessCache(2);
+    cache.getAverageFitnessScore(first);
+    cache.getAverageFitnessScore(second);
+    // Using the first again makes the second the least recently used
+    cache.getAverageFitnessScore(first);
+    cache.getAverageFitnessScore(third);
+    Assert.assertEquals(1, cache.getEvictions());
+    Assert.assertEquals(2, cache.size());
+
+    long hits = cache.getHits();
+    cache.getAverageFitnessScore(first);
+    Assert.assertEquals(hits + 1, cache.getHits());
+    cache.getAverageFitnessScore(second);
+    Assert.assertEquals(hits + 1, cache.getHits());
+  }
+
+}
@@ -0,0 +1,255 @@
+package test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.GeneticOptimiser;
+import main.Line;
+import main.LinePopulation;
+import main.SurrogateFitnessModel;
+
+public class GeneticOptimiserTest {
+
+  @Test
+  public void testRunImprovesFitness() throws InvalidMidiDataException, IOException {
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+    testPop.addNewLineWithMelodyAsTemplate(36, 48);
+
+    GeneticOptimiser optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(20);
+    optimiser.setMaxGenerations(30);
+
+    optimiser.initialise();
+    double initialFitness = optimiser.getBestFitness();
+
+    LinePopulation best = optimiser.run();
+
+    Assert.assertEquals(GeneticOptimiser.StopReason.GENERATIONS, optimiser.getStopReason());
+    Assert.assertEquals(30, optimiser.getGeneration());
+
+    // Elitism means the best candidate can never get worse
+    Assert.assertTrue(optimiser.getBestFitness() >= initialFitness);
+    Assert.assertEquals(optimiser.getBestFitness(), best.getAverageFitnessScore(), 1e-12);
+
+    // The pitches must stay within the bounds of their lines
+    for (int l = 1; l < best.getNumberOfLines(); l++) {
+      Line line = best.getLineAtIndex(l);
+      for (int n = 0; n < line.getLength(); n++) {
+        Assert.assertTrue(line.getPitchAtIndex(n) >= line.getMinPitch()
+            && line.getPitchAtIndex(n) <= line.getMaxPitch());
+      }
+    }
+  }
+
+  @Test
+  public void testSeedWithCachedScores() throws InvalidMidiDataException, IOException {
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60, new SplittableRandom(2));
+    testPop.addNewLineWithMelodyAsTemplate(36, 48, new SplittableRandom(3));
+    // The seed's cache is built before it is copied into the candidates
+    testPop.getCachedAverageFitnessScore();
+
+    GeneticOptimiser optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(10);
+    optimiser.setMaxGenerations(5);
+    optimiser.setSeed(4);
+    LinePopulation best = optimiser.run();
+
+    // The children's pitches were changed through their lines, so a cache copied from the seed
+    // would be stale
+    Assert.assertEquals(best.getAverageFitnessScore(), best.getCachedAverageFitnessScore(), 1e-9);
+  }
+
+  @Test
+  public void testStoppingConditions() throws InvalidMidiDataException, IOException {
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+
+    GeneticOptimiser optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(10);
+    optimiser.setTimeBudgetMillis(0);
+    optimiser.run();
+    Assert.assertEquals(GeneticOptimiser.StopReason.TIME_BUDGET, optimiser.getStopReason());
+
+    optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(10);
+    optimiser.setConvergence(3, Double.MAX_VALUE);
+    optimiser.run();
+    Assert.assertEquals(GeneticOptimiser.StopReason.CONVERGED, optimiser.getStopReason());
+    Assert.assertEquals(3, optimiser.getGeneration());
+  }
+
+  @Test
+  public void testCancel() throws InvalidMidiDataException, IOException, InterruptedException {
+    LinePopulation testPop =
+        new LinePopulation(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+
+    // Would otherwise never stop
+    final GeneticOptimiser optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(10);
+    optimiser.setMaxGenerations(Integer.MAX_VALUE);
+    optimiser.setConvergence(Integer.MAX_VALUE, 0);
+    Thread runner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        optimiser.run();
+      }
+    });
+    runner.start();
+    Thread.sleep(100);
+    optimiser.cancel();
+    runner.join(10000);
+    Assert.assertFalse(runner.isAlive());
+    Assert.assertEquals(GeneticOptimiser.StopReason.CANCELLED, optimiser.getStopReason());
+
+    GeneticOptimiser cancelledFirst = new GeneticOptimiser(testPop);
+    cancelledFirst.cancel();
+    Assert.assertNull(cancelledFirst.run());
+    Assert.assertEquals(GeneticOptimiser.StopReason.CANCELLED, cancelledFirst.getStopReason());
+  }
+
+  @Test
+  public void testSeededRunsAreReproducible() throws InvalidMidiDataException, IOException {
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+    // The starting population is seeded too, so the whole harmony can be regenerated
+    LinePopulation first = new LinePopulation(testMelody);
+    first.addNewLineWithMelodyAsTemplate(48, 60, new SplittableRandom(3));
+    LinePopulation second = new LinePopulation(testMelody);
+    second.addNewLineWithMelodyAsTemplate(48, 60, new SplittableRandom(3));
+    assertSamePitches(first, second);
+
+    // The number of threads breeding and scoring the candidates mustn't make any difference
+    ForkJoinPool onePool = new ForkJoinPool(1);
+    ForkJoinPool fourPool = new ForkJoinPool(4);
+    try {
+      GeneticOptimiser optimiser = new GeneticOptimiser(first);
+      optimiser.setPopulationSize(12);
+      optimiser.setMaxGenerations(10);
+      optimiser.setSeed(42);
+      optimiser.setPool(onePool);
+      LinePopulation firstBest = optimiser.run();
+
+      GeneticOptimiser repeat = new GeneticOptimiser(second);
+      repeat.setPopulationSize(12);
+      repeat.setMaxGenerations(10);
+      repeat.setSeed(42);
+      repeat.setPool(fourPool);
+      LinePopulation secondBest = repeat.run();
+
+      Assert.assertEquals(optimiser.getBestFitness(), repeat.getBestFitness(), 0);
+      assertSamePitches(firstBest, secondBest);
+    } finally {
+      onePool.shutdown();
+      fourPool.shutdown();
+    }
+  }
+
+  @Test
+  public void testElitesAreFoundInFitnessCache() throws InvalidMidiDataException, IOException {
+    LinePopulation testPop =
+        new LinePopulation(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+
+    GeneticOptimiser optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(10);
+    optimiser.setMaxGenerations(5);
+    optimiser.run();
+
+    // The elites are scored again every generation, so each generation finds at least them
+    Assert.assertTrue(optimiser.getFitnessCache().getHits() >= 5 * 2);
+
+    GeneticOptimiser uncached = new GeneticOptimiser(testPop);
+    uncached.setFitnessCacheSize(0);
+    uncached.setMaxGenerations(1);
+    uncached.run();
+    Assert.assertNull(uncached.getFitnessCache());
+  }
+
+  @Test
+  public void testSurrogateLearnsEachCandidateOnce()
+      throws InvalidMidiDataException, IOException {
+    LinePopulation testPop =
+        new LinePopulation(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    testPop.addNewLineWithMelodyAsTemplate(48, 60, new SplittableRandom(4));
+
+    SurrogateFitnessModel surrogate = new SurrogateFitnessModel();
+    GeneticOptimiser optimiser = new GeneticOptimiser(testPop);
+    optimiser.setPopulationSize(10);
+    optimiser.setSeed(3);
+    optimiser.setSurrogate(surrogate, 2);
+    optimiser.initialise();
+    Assert.assertEquals(10, surrogate.getSampleCount());
+
+    // The children of a generation, but not the elites
+    optimiser.evolveGeneration();
+    Assert.assertEquals(18, surrogate.getSampleCount());
+
+    // Only the migrants, not the candidates already learnt from
+    List<LinePopulation> migrants = new ArrayList<LinePopulation>();
+    migrants.add(new LinePopulation(testPop));
+    migrants.add(new LinePopulation(testPop));
+    optimiser.immigrate(migrants);
+    Assert.assertEquals(20, surrogate.getSampleCount());
+  }
+
+  @Test
+  public void testSurrogateScreensChildren() throws InvalidMidiDataException, IOException {
+    LinePopulation testPop =
+        new LinePopulation(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    testPop.addNewLineWithMelodyAsTemplate(48, 60, new SplittableRandom(4));
+    testPop.addNewLineWithMelodyAsTemplate(36, 48, new SplittableRandom(5));
+
+    // Scoring the same number of children each generation, the screened run should do better
+    GeneticOptimiser plain = new GeneticOptimiser(testPop);
+    plain.setPopulationSize(20);
+    plain.setMaxGenerations(40);
+    plain.setSeed(8);
+    plain.run();
+
+    SurrogateFitnessModel surrogate = new SurrogateFitnessModel();
+    surrogate.setMinSamples(60);
+    GeneticOptimiser screened = new GeneticOptimiser(testPop);
+    screened.setPopulationSize(20);
+    screened.setMaxGenerations(40);
+    screened.setSeed(8);
+    screened.setSurrogate(surrogate, 5);
+    screened.run();
+
+    Assert.assertTrue(surrogate.isTrained());
+    // Only the children scored are learnt from: the first generation, then 18 a generation
+    Assert.assertEquals(20 + 40 * 18, surrogate.getSampleCount());
+    // No more candidates are scored exactly than without the surrogate
+    Assert.assertTrue(
+        screened.getFitnessCache().getMisses() <= plain.getFitnessCache().getMisses());
+    Assert.assertTrue(screened.getBestFitness() > plain.getBestFitness());
+  }
+
+  private static void assertSamePitches(LinePopulation expected, LinePopulation actual) {
+    Assert.assertEquals(expected.getNumberOfLines(), actual.getNumberOfLines());
+    for (int l = 1; l < expected.getNumberOfLines(); l++) {
+      Line expectedLine = expected.getLineAtIndex(l);
+      Line actualLine = actual.getLineAtIndex(l);
+      for (int n = 0; n < expectedLine.getLength(); n++) {
+        Assert.assertEquals(expectedLine.getPitchAtIndex(n), actualLine.getPitchAtIndex(n));
+      }
+    }
+  }
+
+}
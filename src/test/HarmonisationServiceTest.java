@@ -0,0 +1,131 @@
+package test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.GeneticHarmoniser;
+import main.HarmonisationJob;
+import main.HarmonisationService;
+import main.Line;
+import main.LinePopulation;
+
+public class HarmonisationServiceTest {
+
+  @Test
+  public void testManyJobs() throws Exception {
+    for (HarmonisationService.RequestThreads requestThreads : HarmonisationService.RequestThreads
+        .values()) {
+      HarmonisationService service =
+          new HarmonisationService(createHarmoniser(), requestThreads, 2);
+      Line melody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+      List<Future<LinePopulation>> results = new ArrayList<Future<LinePopulation>>();
+      try {
+        for (int i = 0; i < 40; i++) {
+          // Half the jobs read their melody from a file on their own thread
+          HarmonisationJob job = (i % 2 == 0) ? new HarmonisationJob(melody)
+              : new HarmonisationJob("src/test/Resources/MidiStaticTest_Resource2.mid");
+          job.addVoice(48, 60);
+          if (i % 4 == 0) {
+            job.addVoice(36, 48);
+          }
+          results.add(service.submit(job));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+          LinePopulation population = results.get(i).get();
+          Assert.assertEquals((i % 4 == 0) ? 3 : 2, population.getNumberOfLines());
+        }
+        Assert.assertEquals(0, service.getJobsInFlight());
+      } finally {
+        service.close();
+      }
+
+      // Virtual threads are only used where the JVM has them
+      if (requestThreads == HarmonisationService.RequestThreads.PLATFORM) {
+        Assert.assertFalse(service.isUsingVirtualThreads());
+      } else {
+        Assert.assertEquals(Runtime.version().feature() >= 21, service.isUsingVirtualThreads());
+      }
+    }
+  }
+
+  @Test
+  public void testJobsQueueForPlatformThreads() throws Exception {
+    // One platform thread, so the jobs have to wait their turn for it
+    try (HarmonisationService service = new HarmonisationService(createHarmoniser(),
+        HarmonisationService.RequestThreads.PLATFORM, 2, 1)) {
+      Line melody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+      List<Future<LinePopulation>> results = new ArrayList<Future<LinePopulation>>();
+      for (int i = 0; i < 10; i++) {
+        HarmonisationJob job = new HarmonisationJob(melody);
+        job.addVoice(48, 60);
+        results.add(service.submit(job));
+      }
+      for (Future<LinePopulation> result : results) {
+        Assert.assertEquals(2, result.get().getNumberOfLines());
+      }
+    }
+  }
+
+  @Test
+  public void testFailedJob() throws InterruptedException {
+    HarmonisationService service = new HarmonisationService(createHarmoniser(),
+        HarmonisationService.RequestThreads.VIRTUAL, 1);
+    try {
+      HarmonisationJob job = new HarmonisationJob("src/test/Resources/missing.mid");
+      job.addVoice(48, 60);
+      service.submit(job).get();
+      Assert.fail("A missing melody file should fail the job");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException
+          || e.getCause() instanceof InvalidMidiDataException);
+    } finally {
+      service.close();
+    }
+  }
+
+  @Test
+  public void testCancelledJobFreesCpuPool() throws Exception {
+    GeneticHarmoniser harmoniser = new GeneticHarmoniser();
+    harmoniser.setPopulationSize(2000);
+    harmoniser.setMaxGenerations(1000000);
+    // One optimising thread, so a job left running would hold up the next
+    try (HarmonisationService service = new HarmonisationService(harmoniser,
+        HarmonisationService.RequestThreads.PLATFORM, 1)) {
+      // Takes several seconds to converge
+      HarmonisationJob longJob =
+          new HarmonisationJob(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+      longJob.addVoice(48, 60);
+      longJob.addVoice(36, 48);
+      longJob.addVoice(60, 72);
+      Future<LinePopulation> longResult = service.submit(longJob);
+      Thread.sleep(200);
+      Assert.assertTrue(longResult.cancel(true));
+
+      // Takes well under a second on its own
+      Line note = new Line(96, 0.0f, Line.Storage.PACKED_ARRAYS);
+      note.addNoteToLine(0, 96, 64, 100);
+      HarmonisationJob shortJob = new HarmonisationJob(note);
+      shortJob.addVoice(48, 60);
+      Assert.assertEquals(2, service.submit(shortJob).get(3, TimeUnit.SECONDS).getNumberOfLines());
+    }
+  }
+
+  private static GeneticHarmoniser createHarmoniser() {
+    GeneticHarmoniser harmoniser = new GeneticHarmoniser();
+    harmoniser.setPopulationSize(6);
+    harmoniser.setMaxGenerations(3);
+    return harmoniser;
+  }
+
+}
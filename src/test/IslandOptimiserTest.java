@@ -0,0 +1,125 @@
+package test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.IslandOptimiser;
+import main.Line;
+import main.LinePopulation;
+
+public class IslandOptimiserTest {
+
+  private static LinePopulation createPopulation(long seed)
+      throws InvalidMidiDataException, IOException {
+    LinePopulation population =
+        new LinePopulation(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    SplittableRandom random = new SplittableRandom(seed);
+    population.addNewLineWithMelodyAsTemplate(48, 60, random);
+    population.addNewLineWithMelodyAsTemplate(36, 48, random);
+    return population;
+  }
+
+  @Test
+  public void testFingerprintIgnoresHarmonyPitches() throws InvalidMidiDataException, IOException {
+    LinePopulation first = createPopulation(1);
+    LinePopulation second = createPopulation(2);
+    Assert.assertEquals(IslandOptimiser.fingerprint(first), IslandOptimiser.fingerprint(second));
+
+    LinePopulation other = createPopulation(1);
+    other.addNewLineWithMelodyAsTemplate(60, 72);
+    Assert.assertNotEquals(IslandOptimiser.fingerprint(first), IslandOptimiser.fingerprint(other));
+  }
+
+  @Test
+  public void testIslandsMigrateOverLocalhost()
+      throws InvalidMidiDataException, IOException, InterruptedException {
+    IslandOptimiser first = new IslandOptimiser(createPopulation(1), 0);
+    IslandOptimiser second = new IslandOptimiser(createPopulation(2), 0);
+    // An island working on another harmony, whose migrants must be turned away
+    LinePopulation otherPopulation = createPopulation(3);
+    otherPopulation.addNewLineWithMelodyAsTemplate(60, 72);
+    IslandOptimiser stranger = new IslandOptimiser(otherPopulation, 0);
+    try {
+      first.addPeer("localhost", second.getPort());
+      second.addPeer("localhost", first.getPort());
+      stranger.addPeer("localhost", first.getPort());
+      for (IslandOptimiser island : Arrays.asList(first, second, stranger)) {
+        island.getOptimiser().setPopulationSize(10);
+        island.setMaxGenerations(20);
+        island.setMigrationInterval(5);
+        island.setMigrantCount(3);
+      }
+
+      final LinePopulation[] bests = new LinePopulation[2];
+      Thread secondThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          bests[1] = second.run();
+        }
+      });
+      secondThread.start();
+      bests[0] = first.run();
+      stranger.run();
+      secondThread.join();
+
+      // Each island sends 3 migrants at each of 4 migrations. The last may still be being read
+      Assert.assertEquals(12, first.getMigrantsSent());
+      Assert.assertEquals(12, second.getMigrantsSent());
+      long deadline = System.currentTimeMillis() + 10000;
+      while ((first.getMigrantsReceived() < 12 || second.getMigrantsReceived() < 12
+          || first.getMessagesRejected() < 4) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(12, first.getMigrantsReceived());
+      Assert.assertEquals(12, second.getMigrantsReceived());
+      Assert.assertEquals(4, first.getMessagesRejected());
+      Assert.assertEquals(first.getOptimiser().getBestFitness(),
+          bests[0].getAverageFitnessScore(), 1e-12);
+    } finally {
+      first.close();
+      second.close();
+      stranger.close();
+    }
+  }
+
+  @Test
+  public void testStalledPeerHoldsUpOnlyItself()
+      throws InvalidMidiDataException, IOException, InterruptedException {
+    IslandOptimiser receiver = new IslandOptimiser(createPopulation(1), 0);
+    IslandOptimiser sender = new IslandOptimiser(createPopulation(2), 0);
+    // Connects first and stops part way through a message, so its reader waits for the read timeout
+    Socket stalled = new Socket("localhost", receiver.getPort());
+    try {
+      stalled.getOutputStream().write(0x48);
+      stalled.getOutputStream().flush();
+
+      sender.addPeer("localhost", receiver.getPort());
+      sender.getOptimiser().setPopulationSize(10);
+      sender.setMaxGenerations(5);
+      sender.setMigrationInterval(5);
+      sender.setMigrantCount(2);
+      sender.run();
+      Assert.assertEquals(2, sender.getMigrantsSent());
+
+      // Well within the 10 second read timeout
+      long deadline = System.currentTimeMillis() + 5000;
+      while (receiver.getMigrantsReceived() < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(2, receiver.getMigrantsReceived());
+      Assert.assertEquals(0, receiver.getMessagesRejected());
+    } finally {
+      stalled.close();
+      receiver.close();
+      sender.close();
+    }
+  }
+
+}
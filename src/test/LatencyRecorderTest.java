@@ -0,0 +1,36 @@
+package test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.LatencyRecorder;
+
+public class LatencyRecorderTest {
+
+  @Test
+  public void testPercentiles() {
+    LatencyRecorder recorder = new LatencyRecorder();
+    Assert.assertEquals(0, recorder.getPercentile(50));
+
+    for (int i = 100; i >= 1; i--) {
+      recorder.record(i);
+    }
+    Assert.assertEquals(100, recorder.getCount());
+    Assert.assertEquals(50, recorder.getPercentile(50));
+    Assert.assertEquals(99, recorder.getPercentile(99));
+    Assert.assertEquals(1, recorder.getPercentile(0));
+    Assert.assertEquals(100, recorder.getPercentile(100));
+  }
+
+  @Test
+  public void testOnlyRecentLatenciesAreKept() {
+    LatencyRecorder recorder = new LatencyRecorder(10);
+    for (int i = 1; i <= 20; i++) {
+      recorder.record(i * 1000);
+    }
+    Assert.assertEquals(20, recorder.getCount());
+    Assert.assertEquals(11000, recorder.getPercentile(0));
+    Assert.assertEquals(20000, recorder.getPercentile(100));
+  }
+
+}
@@ -3,6 +3,9 @@ package test;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.sound.midi.InvalidMidiDataException;
 
@@ -12,6 +15,7 @@ import org.junit.Assert;
 import main.Line;
 import main.LinePopulation;
 import main.Note;
+import main.PitchPairConsonanceModel;
 
 public class LinePopulationTest {
 
@@ -65,4 +69,232 @@ public class LinePopulationTest {
 
   }
 
+  @Test
+  public void testHarmonyLinesShareRhythmWithMelody() throws InvalidMidiDataException, IOException {
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    int[] melodyPitches = new int[testMelody.getLength()];
+    for (int i = 0; i < melodyPitches.length; i++) {
+      melodyPitches[i] = testMelody.getPitchAtIndex(i);
+    }
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(5, 10);
+    testPop.addNewLineWithMelodyAsTemplate(40, 50);
+
+    // Adding harmony lines must not touch the melody's pitches
+    for (int i = 0; i < melodyPitches.length; i++) {
+      Assert.assertEquals(melodyPitches[i], testMelody.getPitchAtIndex(i));
+    }
+
+    Line harmony = testPop.getLineAtIndex(1);
+    Assert.assertEquals(Line.Storage.SHARED_RHYTHM, harmony.getStorage());
+    for (int i = 0; i < harmony.getLength(); i++) {
+      Assert.assertEquals(testMelody.getTimeStampAtIndex(i), harmony.getTimeStampAtIndex(i));
+      Assert.assertEquals(testMelody.getDurationAtIndex(i), harmony.getDurationAtIndex(i));
+    }
+
+    // A copy of the population can be changed without changing the original
+    LinePopulation copy = new LinePopulation(testPop);
+    Assert.assertSame(testMelody, copy.getMelody());
+    int originalPitch = testPop.getLineAtIndex(2).getPitchAtIndex(0);
+    copy.getLineAtIndex(2).setPitchAtIndex(0, originalPitch == 40 ? 41 : 40);
+    Assert.assertEquals(originalPitch, testPop.getLineAtIndex(2).getPitchAtIndex(0));
+    Assert.assertEquals(40, copy.getLineAtIndex(2).getMinPitch());
+    Assert.assertEquals(50, copy.getLineAtIndex(2).getMaxPitch());
+
+    // The shared timings can't be changed through the harmony lines
+    try {
+      harmony.getNotes().get(0).setTimestamp(0);
+      Assert.fail("Expected the shared timings to be read only");
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testIncrementalFitnessMatchesFullEvaluation()
+      throws InvalidMidiDataException, IOException {
+    Line testMelody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+    testPop.addNewLineWithMelodyAsTemplate(36, 48);
+    testPop.addNewLineWithMelodyAsTemplate(60, 72);
+
+    Assert.assertEquals(testPop.getAverageFitnessScore(), testPop.getCachedAverageFitnessScore(),
+        1e-12);
+
+    Random random = new Random(7);
+    for (int i = 0; i < 200; i++) {
+      int lineIndex = 1 + random.nextInt(3);
+      int noteIndex = random.nextInt(testPop.getLineAtIndex(lineIndex).getLength());
+      testPop.mutatePitch(lineIndex, noteIndex);
+
+      Assert.assertEquals(testPop.getPitchFitnessScore(lineIndex, noteIndex),
+          testPop.getCachedPitchFitnessScore(lineIndex, noteIndex), 1e-12);
+    }
+
+    // Every note's cached score should still match its real score, not just the mutated ones
+    for (int l = 1; l < testPop.getNumberOfLines(); l++) {
+      for (int n = 0; n < testPop.getLineAtIndex(l).getLength(); n++) {
+        Assert.assertEquals(testPop.getPitchFitnessScore(l, n),
+            testPop.getCachedPitchFitnessScore(l, n), 1e-12);
+      }
+    }
+    Assert.assertEquals(testPop.getAverageFitnessScore(), testPop.getCachedAverageFitnessScore(),
+        1e-12);
+
+    // Changes made behind the population's back need the cache to be thrown away
+    testPop.getLineAtIndex(1).setPitchAtIndex(0, 50);
+    testPop.invalidateFitnessCache();
+    Assert.assertEquals(testPop.getAverageFitnessScore(), testPop.getCachedAverageFitnessScore(),
+        1e-12);
+  }
+
+  @Test
+  public void testParallelFitnessIsReproducible() {
+    // A longer melody with notes of different lengths, so there is plenty to split between threads
+    Line testMelody = new Line(480, 0.0f);
+    Random random = new Random(3);
+    long timestamp = 0;
+    for (int i = 0; i < 2000; i++) {
+      long duration = 120 * (1 + random.nextInt(4));
+      testMelody.addNoteToLine(timestamp, duration, 60 + random.nextInt(12), 64);
+      timestamp += duration;
+    }
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60);
+    testPop.addNewLineWithMelodyAsTemplate(36, 48);
+
+    double sequential = testPop.getAverageFitnessScore();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int i = 0; i < 5; i++) {
+        // The result must be bit for bit the same as the sequential one
+        Assert.assertEquals(Double.doubleToLongBits(sequential),
+            Double.doubleToLongBits(testPop.getAverageFitnessScore(pool)));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testOverlapGraphFollowsRetiming() {
+    LinePopulation testPop = createTangledPopulation();
+    LinePopulation copy = new LinePopulation(testPop);
+    testPop.getAverageFitnessScore();
+
+    // Move and stretch a melody note, which the graph shared by the copy was built without
+    Note moved = testPop.getMelody().getNotes().get(10);
+    moved.setTimestamp(moved.getTimestamp() + 90);
+    moved.setDuration(moved.getDuration() * 3);
+
+    for (LinePopulation population : new LinePopulation[] {testPop, copy}) {
+      population.setScoringEngine(LinePopulation.ScoringEngine.NOTE_QUERIES);
+      double byNoteQueries = population.getAverageFitnessScore();
+      population.setScoringEngine(LinePopulation.ScoringEngine.OVERLAP_GRAPH);
+      Assert.assertEquals(Double.doubleToLongBits(byNoteQueries),
+          Double.doubleToLongBits(population.getAverageFitnessScore()));
+    }
+  }
+
+  @Test
+  public void testParallelScoringWithEachEngine() {
+    LinePopulation testPop = createTangledPopulation();
+    double sequential = testPop.getAverageFitnessScore();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (LinePopulation.ScoringEngine engine : LinePopulation.ScoringEngine.values()) {
+        testPop.setScoringEngine(engine);
+        Assert.assertEquals(Double.doubleToLongBits(sequential),
+            Double.doubleToLongBits(testPop.getAverageFitnessScore(pool)));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Overlapping notes, out of order, some starting together and some just touching, with a
+   * lopsided model with negative scores, so mixing up the order of anything would show
+   */
+  private static LinePopulation createTangledPopulation() {
+    Line testMelody = new Line(480, 0.0f);
+    Random random = new Random(11);
+    for (int i = 0; i < 1500; i++) {
+      long timestamp = 60 * random.nextInt(3000);
+      long duration = 60 * (1 + random.nextInt(6));
+      testMelody.addNoteToLine(timestamp, duration, 55 + random.nextInt(24), 64);
+    }
+
+    LinePopulation testPop = new LinePopulation(testMelody);
+    testPop.addNewLineWithMelodyAsTemplate(48, 60, new SplittableRandom(1));
+    testPop.addNewLineWithMelodyAsTemplate(36, 48, new SplittableRandom(2));
+    testPop.addNewLineWithMelodyAsTemplate(60, 72, new SplittableRandom(3));
+
+    double[][] scores = new double[128][128];
+    for (int p = 0; p < 128; p++) {
+      for (int q = 0; q < 128; q++) {
+        scores[p][q] = random.nextDouble() * 2 - 0.5;
+      }
+    }
+    testPop.setConsonanceModel(new PitchPairConsonanceModel(scores));
+    return testPop;
+  }
+
+  @Test
+  public void testSweepLineMatchesNoteQueries() {
+    LinePopulation testPop = createTangledPopulation();
+
+    testPop.setScoringEngine(LinePopulation.ScoringEngine.NOTE_QUERIES);
+    double byNoteQueries = testPop.getAverageFitnessScore();
+    testPop.setScoringEngine(LinePopulation.ScoringEngine.SWEEP_LINE);
+    double bySweepLine = testPop.getAverageFitnessScore();
+    Assert.assertEquals(Double.doubleToLongBits(byNoteQueries),
+        Double.doubleToLongBits(bySweepLine));
+
+    // The cache is built with the sweep too, and every note must match
+    for (int l = 1; l < testPop.getNumberOfLines(); l++) {
+      for (int n = 0; n < testPop.getMelody().getLength(); n++) {
+        Assert.assertEquals(Double.doubleToLongBits(testPop.getPitchFitnessScore(l, n)),
+            Double.doubleToLongBits(testPop.getCachedPitchFitnessScore(l, n)));
+      }
+    }
+  }
+
+  @Test
+  public void testOverlapGraphMatchesNoteQueries() {
+    LinePopulation testPop = createTangledPopulation();
+
+    testPop.setScoringEngine(LinePopulation.ScoringEngine.NOTE_QUERIES);
+    double byNoteQueries = testPop.getAverageFitnessScore();
+    testPop.setScoringEngine(LinePopulation.ScoringEngine.OVERLAP_GRAPH);
+    double byOverlapGraph = testPop.getAverageFitnessScore();
+    Assert.assertEquals(Double.doubleToLongBits(byNoteQueries),
+        Double.doubleToLongBits(byOverlapGraph));
+
+    // A copy shares the graph and scores the same
+    LinePopulation copy = new LinePopulation(testPop);
+    Assert.assertEquals(Double.doubleToLongBits(byNoteQueries),
+        Double.doubleToLongBits(copy.getAverageFitnessScore()));
+
+    // setPitch rescores over the graph, and the cache must keep up with it
+    SplittableRandom random = new SplittableRandom(5);
+    for (int i = 0; i < 500; i++) {
+      int l = 1 + random.nextInt(testPop.getNumberOfLines() - 1);
+      int n = random.nextInt(testPop.getMelody().getLength());
+      testPop.mutatePitch(l, n, random);
+    }
+    for (int l = 1; l < testPop.getNumberOfLines(); l++) {
+      for (int n = 0; n < testPop.getMelody().getLength(); n++) {
+        Assert.assertEquals(testPop.getPitchFitnessScore(l, n),
+            testPop.getCachedPitchFitnessScore(l, n), 1e-9);
+      }
+    }
+    Assert.assertEquals(testPop.getAverageFitnessScore(), testPop.getCachedAverageFitnessScore(),
+        1e-9);
+  }
+
 }
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Random;
 
 import javax.sound.midi.InvalidMidiDataException;
 
@@ -12,6 +13,7 @@ import org.junit.Test;
 import org.junit.Assert;
 import main.Line;
 import main.Note;
+import main.NoteOverlapVisitor;
 
 public class LineTest {
 
@@ -46,4 +48,83 @@ public class LineTest {
     }
   }
 
+  @Test
+  public void testGetNotesWithinTimeFrameVisitor() {
+    // Overlapping, out of order notes of varying lengths so the index has some work to do
+    Line testLine = new Line(480, 0.0f);
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      testLine.addNoteToLine(random.nextInt(10000), random.nextInt(2000), 60, 64);
+    }
+
+    for (int q = 0; q < 100; q++) {
+      long startOfWindow = random.nextInt(12000);
+      long durationOfWindow = random.nextInt(1500);
+
+      // Work out the expected result by checking every note
+      final HashMap<Integer, Long> expected = new HashMap<Integer, Long>();
+      for (int i = 0; i < testLine.getLength(); i++) {
+        long start = testLine.getTimeStampAtIndex(i);
+        long end = start + testLine.getDurationAtIndex(i);
+        if (end >= startOfWindow && start <= startOfWindow + durationOfWindow) {
+          expected.put(i, Math.min(end, startOfWindow + durationOfWindow)
+              - Math.max(start, startOfWindow));
+        }
+      }
+
+      final HashMap<Integer, Long> visited = new HashMap<Integer, Long>();
+      testLine.getNotesWithinTimeFrame(startOfWindow, durationOfWindow, new NoteOverlapVisitor() {
+        @Override
+        public void visit(int noteIndex, long overlapTicks) {
+          Assert.assertNull(visited.put(noteIndex, overlapTicks));
+        }
+      });
+      Assert.assertEquals(expected, visited);
+      Assert.assertEquals(expected.size(),
+          testLine.getNotesWithinTimeFrame(startOfWindow, durationOfWindow).size());
+    }
+
+    // Changing the timing of a note should be picked up by the next query
+    testLine.getNotes().get(0).setTimestamp(50000);
+    Assert.assertTrue(testLine.getNotesWithinTimeFrame(50000, 0)
+        .containsKey(testLine.getNotes().get(0)));
+  }
+
+  @Test
+  public void testPackedStorage() throws InvalidMidiDataException, IOException {
+    Line objectLine = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    Line packedLine = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    packedLine.packNotes();
+
+    Assert.assertEquals(Line.Storage.NOTE_OBJECTS, objectLine.getStorage());
+    Assert.assertEquals(Line.Storage.PACKED_ARRAYS, packedLine.getStorage());
+    Assert.assertEquals(objectLine.getLength(), packedLine.getLength());
+
+    // The packed line should look the same through the index getters and the list of notes
+    for (int i = 0; i < objectLine.getLength(); i++) {
+      Assert.assertEquals(objectLine.getTimeStampAtIndex(i), packedLine.getTimeStampAtIndex(i));
+      Assert.assertEquals(objectLine.getDurationAtIndex(i), packedLine.getDurationAtIndex(i));
+      Assert.assertEquals(objectLine.getPitchAtIndex(i), packedLine.getPitchAtIndex(i));
+      Assert.assertEquals(objectLine.getVelocityAtIndex(i), packedLine.getVelocityAtIndex(i));
+      Assert.assertEquals(objectLine.getPitchAtIndex(i), packedLine.getNotes().get(i).getPitch());
+    }
+    Assert.assertEquals(objectLine.getNotesWithinTimeFrame(0, 100000).size(),
+        packedLine.getNotesWithinTimeFrame(0, 100000).size());
+
+    // Changes through the Note views should go through to the arrays
+    packedLine.getNotes().get(2).setPitch(100);
+    Assert.assertEquals(100, packedLine.getPitchAtIndex(2));
+    packedLine.setPitchAtIndex(3, 101);
+    Assert.assertEquals(101, packedLine.getNotes().get(3).getPitch());
+
+    packedLine.getNotes().get(0).setTimestamp(50000);
+    Assert.assertTrue(packedLine.getNotesWithinTimeFrame(50000, 0)
+        .containsKey(packedLine.getNotes().get(0)));
+
+    // Notes can still be added once packed
+    packedLine.addNoteToLine(60000, 100, 60, 64);
+    Assert.assertEquals(objectLine.getLength() + 1, packedLine.getLength());
+    Assert.assertEquals(60, packedLine.getPitchAtIndex(packedLine.getLength() - 1));
+  }
+
 }
@@ -0,0 +1,83 @@
+package test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.LinePopulation;
+import main.Metrics;
+import main.StandardMidiFileReader;
+
+public class MetricsTest {
+
+  @After
+  public void tearDown() {
+    Metrics.setEnabled(true);
+  }
+
+  @Test
+  public void testHotPathsAreCounted() throws InvalidMidiDataException, IOException {
+    long notesBefore = Metrics.NOTES_IMPORTED.get();
+    long pairsBefore = Metrics.PAIR_EVALUATIONS.get();
+    long fitnessBefore = Metrics.FITNESS_EVALUATIONS.getCount();
+
+    LinePopulation population = new LinePopulation(
+        StandardMidiFileReader.readMelody("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    population.addNewLineWithMelodyAsTemplate(48, 60);
+    population.getAverageFitnessScore();
+
+    Assert.assertEquals(population.getMelody().getLength(),
+        Metrics.NOTES_IMPORTED.get() - notesBefore);
+    Assert.assertTrue(Metrics.PAIR_EVALUATIONS.get() > pairsBefore);
+    Assert.assertTrue(Metrics.FITNESS_EVALUATIONS.getCount() > fitnessBefore);
+    Assert.assertTrue(Metrics.getPairEvaluationsPerSecond() > 0);
+
+    Map<String, Long> values = Metrics.getValues();
+    Assert.assertEquals(Long.valueOf(Metrics.NOTES_IMPORTED.get()), values.get("notesImported"));
+    Assert.assertTrue(values.containsKey("fitnessEvaluations.p99"));
+  }
+
+  @Test
+  public void testDisabledMetricsDontRecord() throws InvalidMidiDataException, IOException {
+    Metrics.setEnabled(false);
+    Map<String, Long> before = Metrics.getValues();
+
+    LinePopulation population = new LinePopulation(
+        StandardMidiFileReader.readMelody("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    population.addNewLineWithMelodyAsTemplate(48, 60);
+    population.getAverageFitnessScore();
+
+    Assert.assertEquals(before, Metrics.getValues());
+  }
+
+  @Test
+  public void testTimerStartedWhileDisabled() {
+    Metrics.setEnabled(false);
+    long start = Metrics.GENERATIONS.start();
+    Metrics.setEnabled(true);
+    long countBefore = Metrics.GENERATIONS.getCount();
+    Metrics.GENERATIONS.stop(start);
+    Assert.assertEquals(countBefore, Metrics.GENERATIONS.getCount());
+  }
+
+  @Test
+  public void testJmx() throws JMException {
+    ObjectName name = Metrics.registerMBean();
+    Assert.assertEquals(name, Metrics.registerMBean());
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Assert.assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+    Assert.assertNotNull(server.getAttribute(name, "Values"));
+    Assert.assertNotNull(server.getAttribute(name, "PairEvaluationsPerSecond"));
+  }
+
+}
@@ -1,5 +1,6 @@
 package test;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -7,6 +8,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -61,4 +68,60 @@ public class MidiStaticTest {
   Files.delete(Paths.get(filepath));  
   }
 
+  @Test
+  public void testGetMelodyFromFilePairsNotesInOnePass()
+      throws InvalidMidiDataException, IOException {
+
+    Sequence sequence = new Sequence(Sequence.PPQ, 480);
+    Track track = sequence.createTrack();
+
+    // A meta event between the notes, which used to break the search for the "Note Off"
+    MetaMessage text = new MetaMessage();
+    text.setMessage(0x01, "text".getBytes(), 4);
+    track.add(new MidiEvent(text, 100));
+
+    // Two overlapping notes of the same pitch, paired first in first out
+    addEvent(track, ShortMessage.NOTE_ON, 0, 60, 100, 0);
+    addEvent(track, ShortMessage.NOTE_ON, 0, 60, 90, 240);
+    addEvent(track, ShortMessage.NOTE_OFF, 0, 60, 0, 480);
+    addEvent(track, ShortMessage.NOTE_OFF, 0, 60, 0, 720);
+
+    // A note switched off with a velocity 0 "Note On"
+    addEvent(track, ShortMessage.NOTE_ON, 0, 64, 80, 960);
+    addEvent(track, ShortMessage.NOTE_ON, 0, 64, 0, 1200);
+
+    // The same pitch on another channel is a separate note
+    addEvent(track, ShortMessage.NOTE_ON, 1, 67, 70, 960);
+    addEvent(track, ShortMessage.NOTE_OFF, 1, 67, 0, 1440);
+
+    // A note which is never switched off is ended with the track
+    addEvent(track, ShortMessage.NOTE_ON, 0, 72, 60, 1500);
+    addEvent(track, ShortMessage.CONTROL_CHANGE, 0, 7, 100, 1800);
+
+    File file = File.createTempFile("MidiStaticTest", ".mid");
+    try {
+      MidiSystem.write(sequence, 1, file);
+      Line melody = MidiStatic.getMelodyFromFile(file.getPath());
+
+      Assert.assertEquals(5, melody.getLength());
+      long[][] expected = {{0, 480, 60, 100}, {240, 480, 60, 90}, {960, 240, 64, 80},
+          {960, 480, 67, 70}, {1500, 300, 72, 60}};
+      for (int i = 0; i < expected.length; i++) {
+        Assert.assertEquals(expected[i][0], melody.getTimeStampAtIndex(i));
+        Assert.assertEquals(expected[i][1], melody.getDurationAtIndex(i));
+        Assert.assertEquals(expected[i][2], melody.getPitchAtIndex(i));
+        Assert.assertEquals(expected[i][3], melody.getVelocityAtIndex(i));
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void addEvent(Track track, int command, int channel, int pitch, int velocity,
+      long tick) throws InvalidMidiDataException {
+    ShortMessage message = new ShortMessage();
+    message.setMessage(command, channel, pitch, velocity);
+    track.add(new MidiEvent(message, tick));
+  }
+
 }
@@ -0,0 +1,123 @@
+package test;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.Line;
+import main.LinePopulation;
+import main.Note;
+import main.OptimalLineSolver;
+
+public class OptimalLineSolverTest {
+
+  /**
+   * A few overlapping melody notes and two harmony voices, small enough to try every harmony
+   */
+  private static LinePopulation createSmallPopulation() {
+    Line melody = new Line(96, 0.0f);
+    melody.addNoteToLine(0, 96, 64, 100);
+    melody.addNoteToLine(48, 96, 67, 100);
+    melody.addNoteToLine(144, 48, 65, 100);
+    melody.addNoteToLine(192, 96, 62, 100);
+    melody.addNoteToLine(240, 96, 71, 100);
+    LinePopulation population = new LinePopulation(melody);
+    SplittableRandom random = new SplittableRandom(3);
+    population.addNewLineWithMelodyAsTemplate(52, 57, random);
+    population.addNewLineWithMelodyAsTemplate(45, 50, random);
+    return population;
+  }
+
+  @Test
+  public void testMatchesExhaustiveSearch() {
+    for (double leapPenalty : new double[] {0, 0.05, 0.5}) {
+      LinePopulation population = createSmallPopulation();
+      OptimalLineSolver solver = new OptimalLineSolver(population, 1);
+      solver.setLeapPenalty(leapPenalty);
+      int[] solved = solver.solve();
+      double solvedObjective = objective(population, solved, leapPenalty);
+
+      // Try every harmony for line 1
+      int noteCount = solved.length;
+      int[] pitches = new int[noteCount];
+      double bestObjective = Double.NEGATIVE_INFINITY;
+      int combinations = (int) Math.pow(6, noteCount);
+      for (int c = 0; c < combinations; c++) {
+        int code = c;
+        for (int n = 0; n < noteCount; n++) {
+          pitches[n] = 52 + code % 6;
+          code /= 6;
+        }
+        bestObjective = Math.max(bestObjective, objective(population, pitches, leapPenalty));
+      }
+
+      Assert.assertEquals(bestObjective, solvedObjective, 1e-9);
+    }
+  }
+
+  @Test
+  public void testSolverFollowsChangedTimings() {
+    for (double leapPenalty : new double[] {0, 0.5}) {
+      LinePopulation population = createSmallPopulation();
+      OptimalLineSolver solver = new OptimalLineSolver(population, 1);
+      solver.setLeapPenalty(leapPenalty);
+      solver.solve();
+
+      // Move a melody note onto other harmony notes, and add one, after the solver was created
+      Note moved = population.getMelody().getNotes().get(1);
+      moved.setTimestamp(200);
+      moved.setPitch(60);
+      population.getMelody().addNoteToLine(0, 288, 69, 100);
+
+      OptimalLineSolver fresh = new OptimalLineSolver(population, 1);
+      fresh.setLeapPenalty(leapPenalty);
+      Assert.assertArrayEquals(fresh.solve(), solver.solve());
+    }
+  }
+
+  @Test
+  public void testNoSingleChangeImproves() throws InvalidMidiDataException, IOException {
+    Line melody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+    LinePopulation population = new LinePopulation(melody);
+    SplittableRandom random = new SplittableRandom(11);
+    population.addNewLineWithMelodyAsTemplate(48, 60, random);
+    population.addNewLineWithMelodyAsTemplate(36, 48, random);
+    double before = population.getAverageFitnessScore();
+
+    double after = new OptimalLineSolver(population, 2).apply();
+    Assert.assertTrue(after >= before);
+    Assert.assertEquals(population.getAverageFitnessScore(), after, 1e-9);
+
+    Line line = population.getLineAtIndex(2);
+    for (int n = 0; n < line.getLength(); n++) {
+      int solvedPitch = line.getPitchAtIndex(n);
+      for (int pitch = 36; pitch <= 48; pitch++) {
+        population.setPitch(2, n, pitch);
+        Assert.assertTrue(population.getCachedAverageFitnessScore() <= after + 1e-9);
+      }
+      population.setPitch(2, n, solvedPitch);
+    }
+  }
+
+  /**
+   * The sum of the harmony notes' scores with line 1 set to the given pitches, less the leap
+   * penalty between its notes in timestamp order (the small melody's notes are already in order)
+   */
+  private static double objective(LinePopulation population, int[] pitches, double leapPenalty) {
+    LinePopulation copy = new LinePopulation(population);
+    for (int n = 0; n < pitches.length; n++) {
+      copy.getLineAtIndex(1).setPitchAtIndex(n, pitches[n]);
+    }
+    int harmonyNotes = copy.getLineAtIndex(1).getLength() + copy.getLineAtIndex(2).getLength();
+    double objective = copy.getAverageFitnessScore() * harmonyNotes;
+    for (int n = 1; n < pitches.length; n++) {
+      objective -= leapPenalty * Math.abs(pitches[n] - pitches[n - 1]);
+    }
+    return objective;
+  }
+
+}
@@ -0,0 +1,156 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.Line;
+import main.RealTimeHarmoniser;
+
+public class RealTimeHarmoniserTest {
+
+  /**
+   * Stands in for a synthesizer, keeping every message it is sent
+   */
+  private static class CollectingReceiver implements Receiver {
+
+    final List<ShortMessage> messages = new ArrayList<ShortMessage>();
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+      this.messages.add((ShortMessage) message);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private static final int[] MELODY = {60, 62, 64, 65, 67, 65, 64, 62, 60};
+
+  @Test
+  public void testHarmonyForEveryNote() throws InvalidMidiDataException {
+    CollectingReceiver output = new CollectingReceiver();
+    RealTimeHarmoniser harmoniser = new RealTimeHarmoniser(output);
+    harmoniser.addVoice(48, 60);
+    harmoniser.addVoice(36, 48);
+
+    play(harmoniser, MELODY);
+
+    // Each note on and off is passed on, followed by one for each voice
+    Assert.assertEquals(MELODY.length * 2 * 3, output.messages.size());
+    int noteOns = 0;
+    for (int i = 0; i < output.messages.size(); i += 3) {
+      ShortMessage melodyMessage = output.messages.get(i);
+      for (int v = 0; v < 2; v++) {
+        ShortMessage harmonyMessage = output.messages.get(i + 1 + v);
+        int min = (v == 0) ? 48 : 36;
+        Assert.assertTrue(harmonyMessage.getData1() >= min);
+        Assert.assertTrue(harmonyMessage.getData1() <= min + 12);
+        if (melodyMessage.getCommand() == ShortMessage.NOTE_ON) {
+          Assert.assertEquals(ShortMessage.NOTE_ON, harmonyMessage.getCommand());
+        } else {
+          Assert.assertEquals(ShortMessage.NOTE_OFF, harmonyMessage.getCommand());
+        }
+      }
+      if (melodyMessage.getCommand() == ShortMessage.NOTE_ON) {
+        noteOns++;
+      }
+    }
+    Assert.assertEquals(MELODY.length, noteOns);
+
+    // The performance holds the melody and both voices, in milliseconds
+    List<Line> performance = harmoniser.getPerformance();
+    Assert.assertEquals(3, performance.size());
+    for (Line line : performance) {
+      Assert.assertEquals(MELODY.length, line.getLength());
+      Assert.assertEquals(250, line.getTimeStampAtIndex(1));
+      Assert.assertEquals(200, line.getDurationAtIndex(1));
+    }
+
+    Assert.assertEquals(MELODY.length, harmoniser.getDecisionLatencies().getCount());
+    long p50 = harmoniser.getDecisionLatencies().getPercentile(50);
+    long p99 = harmoniser.getDecisionLatencies().getPercentile(99);
+    Assert.assertTrue(p50 > 0);
+    Assert.assertTrue(p99 >= p50);
+  }
+
+  @Test
+  public void testNoBudgetKeepsLastPitches() throws InvalidMidiDataException {
+    CollectingReceiver output = new CollectingReceiver();
+    RealTimeHarmoniser harmoniser = new RealTimeHarmoniser(output);
+    harmoniser.addVoice(48, 60);
+    harmoniser.setTimeBudgetMicros(0);
+
+    play(harmoniser, MELODY);
+
+    // With no time to search, the voice stays where it started, in the middle of its range
+    for (int i = 0; i < output.messages.size(); i += 2) {
+      Assert.assertEquals(54, output.messages.get(i + 1).getData1());
+    }
+  }
+
+  @Test
+  public void testCloseEndsHeldNotes() throws InvalidMidiDataException {
+    CollectingReceiver output = new CollectingReceiver();
+    RealTimeHarmoniser harmoniser = new RealTimeHarmoniser(output);
+    harmoniser.addVoice(48, 60);
+
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 64, 100), 0);
+    harmoniser.close();
+
+    Assert.assertEquals(3, output.messages.size());
+    Assert.assertEquals(ShortMessage.NOTE_OFF, output.messages.get(2).getCommand());
+    Assert.assertEquals(output.messages.get(1).getData1(), output.messages.get(2).getData1());
+  }
+
+  @Test
+  public void testSharedPitchesEndOnce() throws InvalidMidiDataException {
+    CollectingReceiver output = new CollectingReceiver();
+    RealTimeHarmoniser harmoniser = new RealTimeHarmoniser(output);
+    harmoniser.addVoice(48, 60);
+    harmoniser.setTimeBudgetMicros(0);
+
+    // Played legato, so the voice strikes 54 again while its first 54 is still held
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0);
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 62, 100), 100000);
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 200000);
+    // The first note's 54 mustn't be ended while the second's is still sounding
+    Assert.assertEquals(5, output.messages.size());
+    Assert.assertEquals(60, output.messages.get(4).getData1());
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 62, 0), 300000);
+    Assert.assertEquals(7, output.messages.size());
+    Assert.assertEquals(62, output.messages.get(5).getData1());
+    Assert.assertEquals(ShortMessage.NOTE_OFF, output.messages.get(6).getCommand());
+    Assert.assertEquals(54, output.messages.get(6).getData1());
+
+    // A voice on the melody's pitch gets a single note off, once both have ended
+    output.messages.clear();
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 54, 100), 400000);
+    harmoniser.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 54, 0), 500000);
+    Assert.assertEquals(3, output.messages.size());
+    Assert.assertEquals(ShortMessage.NOTE_OFF, output.messages.get(2).getCommand());
+    Assert.assertEquals(54, output.messages.get(2).getData1());
+
+    // Both voices' notes are still kept in the performance
+    Assert.assertEquals(3, harmoniser.getPerformance().get(1).getLength());
+  }
+
+  /**
+   * Play the pitches a quarter of a second apart, each held for a fifth of a second
+   */
+  private static void play(Receiver receiver, int[] pitches) throws InvalidMidiDataException {
+    for (int i = 0; i < pitches.length; i++) {
+      long start = i * 250000L;
+      receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, pitches[i], 100), start);
+      receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, pitches[i], 0), start + 200000);
+    }
+  }
+
+}
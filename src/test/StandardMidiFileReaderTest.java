@@ -0,0 +1,79 @@
+package test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.Line;
+import main.MidiStatic;
+import main.StandardMidiFileReader;
+
+public class StandardMidiFileReaderTest {
+
+  @Test
+  public void testReadMelodyMatchesJavaxImport() throws InvalidMidiDataException, IOException {
+    String[] filepaths = {"src/test/Resources/MidiStaticTest_Resource1.mid",
+        "src/test/Resources/MidiStaticTest_Resource2.mid"};
+
+    for (String filepath : filepaths) {
+      Line expected = MidiStatic.getMelodyFromFile(filepath);
+      Line melody = StandardMidiFileReader.readMelody(filepath);
+
+      Assert.assertEquals(Line.Storage.PACKED_ARRAYS, melody.getStorage());
+      Assert.assertEquals(expected.getTicksPerBeat(), melody.getTicksPerBeat());
+      Assert.assertEquals(expected.getDivisionType(), melody.getDivisionType(), 0);
+      assertSameNotes(expected, melody);
+    }
+  }
+
+  @Test
+  public void testRunningStatusAndVelocityZero() throws InvalidMidiDataException {
+    byte[] file = {
+        // Header: format 0, 1 track, 96 ticks per beat
+        'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+        // Track of 23 bytes
+        'M', 'T', 'r', 'k', 0, 0, 0, 23,
+        // Note on 60 at 0, then running status note on 64 at 0
+        0x00, (byte) 0x90, 60, 100,
+        0x00, 64, 90,
+        // Running status velocity 0 offs: 60 at 96, 64 at 96 + 128 (two byte delta)
+        0x60, 60, 0,
+        (byte) 0x81, 0x00, 64, 0,
+        // Text meta event, which cancels running status
+        0x00, (byte) 0xFF, 0x01, 0x01, 'x',
+        // End of track
+        0x00, (byte) 0xFF, 0x2F, 0x00};
+
+    Line melody = StandardMidiFileReader.readMelody(ByteBuffer.wrap(file));
+
+    Assert.assertEquals(96, melody.getTicksPerBeat());
+    Assert.assertEquals(2, melody.getLength());
+    Assert.assertEquals(0, melody.getTimeStampAtIndex(0));
+    Assert.assertEquals(96, melody.getDurationAtIndex(0));
+    Assert.assertEquals(60, melody.getPitchAtIndex(0));
+    Assert.assertEquals(0, melody.getTimeStampAtIndex(1));
+    Assert.assertEquals(224, melody.getDurationAtIndex(1));
+    Assert.assertEquals(64, melody.getPitchAtIndex(1));
+    Assert.assertEquals(90, melody.getVelocityAtIndex(1));
+  }
+
+  @Test(expected = InvalidMidiDataException.class)
+  public void testRejectsOtherFiles() throws InvalidMidiDataException {
+    StandardMidiFileReader.readMelody(ByteBuffer.wrap("RIFF not a midi file".getBytes()));
+  }
+
+  private static void assertSameNotes(Line expected, Line actual) {
+    Assert.assertEquals(expected.getLength(), actual.getLength());
+    for (int i = 0; i < expected.getLength(); i++) {
+      Assert.assertEquals(expected.getTimeStampAtIndex(i), actual.getTimeStampAtIndex(i));
+      Assert.assertEquals(expected.getDurationAtIndex(i), actual.getDurationAtIndex(i));
+      Assert.assertEquals(expected.getPitchAtIndex(i), actual.getPitchAtIndex(i));
+      Assert.assertEquals(expected.getVelocityAtIndex(i), actual.getVelocityAtIndex(i));
+    }
+  }
+
+}
@@ -0,0 +1,146 @@
+package test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.Line;
+import main.MidiStatic;
+import main.StandardMidiFileReader;
+import main.StandardMidiFileWriter;
+
+public class StandardMidiFileWriterTest {
+
+  @Test
+  public void testRoundTrip() throws InvalidMidiDataException, IOException {
+    Line melody = MidiStatic.getMelodyFromFile("src/test/Resources/MidiStaticTest_Resource1.mid");
+    Line harmony = new Line(melody.getTicksPerBeat(), melody.getDivisionType());
+    for (int i = 0; i < melody.getLength(); i++) {
+      harmony.addNoteToLine(melody.getTimeStampAtIndex(i), melody.getDurationAtIndex(i),
+          melody.getPitchAtIndex(i) - 12, melody.getVelocityAtIndex(i));
+    }
+    List<Line> lines = new ArrayList<Line>();
+    lines.add(melody);
+    lines.add(harmony);
+
+    StandardMidiFileWriter writer = new StandardMidiFileWriter();
+    byte[] bytes = writer.toByteArray(lines);
+
+    // javax.sound.midi should be able to make sense of it, with a track per line
+    Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(bytes));
+    Assert.assertEquals(2, sequence.getTracks().length);
+    Assert.assertEquals(melody.getTicksPerBeat(), sequence.getResolution());
+
+    // Reading it back gives the notes of each track in turn
+    Line imported = StandardMidiFileReader.readMelody(ByteBuffer.wrap(bytes));
+    Assert.assertEquals(melody.getLength() * 2, imported.getLength());
+    for (int i = 0; i < imported.getLength(); i++) {
+      Line original = (i < melody.getLength()) ? melody : harmony;
+      int j = i % melody.getLength();
+      Assert.assertEquals(original.getTimeStampAtIndex(j), imported.getTimeStampAtIndex(i));
+      Assert.assertEquals(original.getDurationAtIndex(j), imported.getDurationAtIndex(i));
+      Assert.assertEquals(original.getPitchAtIndex(j), imported.getPitchAtIndex(i));
+      Assert.assertEquals(original.getVelocityAtIndex(j), imported.getVelocityAtIndex(i));
+    }
+
+    // The writer can be reused, and every output gives the same bytes
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    writer.write(lines, stream);
+    Assert.assertArrayEquals(bytes, stream.toByteArray());
+    stream.reset();
+    writer.write(lines, Channels.newChannel(stream));
+    Assert.assertArrayEquals(bytes, stream.toByteArray());
+  }
+
+  @Test
+  public void testRepeatedNotesAreNotCutShort() throws InvalidMidiDataException {
+    // Two notes of the same pitch back to back, and one which starts before an earlier one ends
+    Line line = new Line(96, Sequence.PPQ);
+    line.addNoteToLine(0, 96, 60, 100);
+    line.addNoteToLine(96, 96, 60, 90);
+    line.addNoteToLine(48, 200, 64, 80);
+    List<Line> lines = new ArrayList<Line>();
+    lines.add(line);
+
+    byte[] bytes = new StandardMidiFileWriter().toByteArray(lines);
+    Line imported = StandardMidiFileReader.readMelody(ByteBuffer.wrap(bytes));
+
+    // The notes come back in the order they start
+    Assert.assertEquals(3, imported.getLength());
+    Assert.assertEquals(0, imported.getTimeStampAtIndex(0));
+    Assert.assertEquals(96, imported.getDurationAtIndex(0));
+    Assert.assertEquals(48, imported.getTimeStampAtIndex(1));
+    Assert.assertEquals(200, imported.getDurationAtIndex(1));
+    Assert.assertEquals(64, imported.getPitchAtIndex(1));
+    Assert.assertEquals(96, imported.getTimeStampAtIndex(2));
+    Assert.assertEquals(96, imported.getDurationAtIndex(2));
+    Assert.assertEquals(90, imported.getVelocityAtIndex(2));
+  }
+
+  @Test
+  public void testZeroLengthNotes() throws InvalidMidiDataException, IOException {
+    // A note which lasts no time, one which ends as a zero length note of the same pitch starts,
+    // and that note
+    Line line = new Line(96, Sequence.PPQ);
+    line.addNoteToLine(0, 0, 60, 64);
+    line.addNoteToLine(0, 96, 64, 80);
+    line.addNoteToLine(96, 0, 64, 70);
+    List<Line> lines = new ArrayList<Line>();
+    lines.add(line);
+
+    byte[] bytes = new StandardMidiFileWriter().toByteArray(lines);
+
+    // Every "Note Off" comes after the "Note On" it belongs to, so no note is left stuck on
+    Track track = MidiSystem.getSequence(new ByteArrayInputStream(bytes)).getTracks()[0];
+    int[] sounding = new int[128];
+    for (int e = 0; e < track.size(); e++) {
+      if (track.get(e).getMessage() instanceof ShortMessage) {
+        ShortMessage message = (ShortMessage) track.get(e).getMessage();
+        if (message.getCommand() == ShortMessage.NOTE_ON) {
+          sounding[message.getData1()]++;
+        } else if (message.getCommand() == ShortMessage.NOTE_OFF) {
+          Assert.assertTrue(sounding[message.getData1()] > 0);
+          sounding[message.getData1()]--;
+        }
+      }
+    }
+    Assert.assertArrayEquals(new int[128], sounding);
+
+    Line imported = StandardMidiFileReader.readMelody(ByteBuffer.wrap(bytes));
+    Assert.assertEquals(3, imported.getLength());
+    Assert.assertEquals(0, imported.getDurationAtIndex(0));
+    Assert.assertEquals(60, imported.getPitchAtIndex(0));
+    Assert.assertEquals(96, imported.getDurationAtIndex(1));
+    Assert.assertEquals(96, imported.getTimeStampAtIndex(2));
+    Assert.assertEquals(0, imported.getDurationAtIndex(2));
+    Assert.assertEquals(70, imported.getVelocityAtIndex(2));
+  }
+
+  @Test
+  public void testSmpteDivision() throws InvalidMidiDataException, IOException {
+    Line line = new Line(40, Sequence.SMPTE_25);
+    line.addNoteToLine(0, 40, 60, 100);
+    List<Line> lines = new ArrayList<Line>();
+    lines.add(line);
+
+    byte[] bytes = new StandardMidiFileWriter().toByteArray(lines);
+
+    Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(bytes));
+    Assert.assertEquals(Sequence.SMPTE_25, sequence.getDivisionType(), 0);
+    Assert.assertEquals(40, sequence.getResolution());
+  }
+
+}
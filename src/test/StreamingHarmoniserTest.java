@@ -0,0 +1,139 @@
+package test;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.HarmonyListener;
+import main.Line;
+import main.StreamingHarmoniser;
+
+public class StreamingHarmoniserTest {
+
+  private static final int WINDOW_BEATS = 2;
+
+  /**
+   * Collects the harmony notes as {voice, timestamp, duration, pitch, velocity}
+   */
+  private static class CollectingListener implements HarmonyListener {
+
+    final List<long[]> notes = new ArrayList<long[]>();
+
+    @Override
+    public void harmonyNote(int voice, long timestamp, long duration, int pitch, int velocity) {
+      this.notes.add(new long[] {voice, timestamp, duration, pitch, velocity});
+    }
+  }
+
+  @Test
+  public void testStreamedMelody() throws InvalidMidiDataException, IOException {
+    Line melody = new Line("src/test/Resources/MidiStaticTest_Resource1.mid");
+
+    CollectingListener listener = new CollectingListener();
+    int largestWindow = stream(melody, listener, 7L);
+
+    // Every melody note gets a harmony note in every voice, within the voice's range
+    Assert.assertEquals(melody.getLength() * 2, listener.notes.size());
+    for (long[] note : listener.notes) {
+      int min = (note[0] == 0) ? 48 : 36;
+      int max = (note[0] == 0) ? 60 : 48;
+      Assert.assertTrue(note[3] >= min && note[3] <= max);
+    }
+
+    // The window never held the whole melody
+    Assert.assertTrue(largestWindow < melody.getLength());
+  }
+
+  @Test
+  public void testSeededStreamsAreReproducible() throws InvalidMidiDataException, IOException {
+    Line melody = new Line("src/test/Resources/MidiStaticTest_Resource2.mid");
+
+    CollectingListener first = new CollectingListener();
+    CollectingListener second = new CollectingListener();
+    stream(melody, first, 99L);
+    stream(melody, second, 99L);
+
+    Assert.assertEquals(first.notes.size(), second.notes.size());
+    for (int i = 0; i < first.notes.size(); i++) {
+      Assert.assertArrayEquals(first.notes.get(i), second.notes.get(i));
+    }
+  }
+
+  @Test(expected = InvalidParameterException.class)
+  public void testNotesOutOfOrder() {
+    StreamingHarmoniser harmoniser = new StreamingHarmoniser(96, 0.0f, WINDOW_BEATS);
+    harmoniser.addVoice(48, 60);
+    harmoniser.addMelodyNote(96, 96, 64, 100);
+    harmoniser.addMelodyNote(0, 96, 62, 100);
+  }
+
+  @Test
+  public void testRejectedNoteLeavesHarmoniserUsable() {
+    StreamingHarmoniser harmoniser = new StreamingHarmoniser(96, 0.0f, WINDOW_BEATS);
+    harmoniser.addVoice(48, 60);
+    CollectingListener listener = new CollectingListener();
+    harmoniser.setListener(listener);
+    harmoniser.addMelodyNote(0, 96, 64, 100);
+
+    long[][] badNotes = {{96, 96, 128, 100}, {96, 96, 64, -1}, {96, -1, 64, 100}};
+    for (long[] bad : badNotes) {
+      try {
+        harmoniser.addMelodyNote(bad[0], bad[1], (int) bad[2], (int) bad[3]);
+        Assert.fail("The note should have been rejected");
+      } catch (InvalidParameterException e) {
+        // Expected
+      }
+      Assert.assertEquals(1, harmoniser.getWindowSize());
+    }
+
+    // Later notes, including one earlier than the rejected ones, are still taken
+    harmoniser.addMelodyNote(48, 96, 62, 100);
+    harmoniser.addMelodyNote(96, 96, 60, 100);
+    harmoniser.finish();
+    Assert.assertEquals(3, listener.notes.size());
+  }
+
+  /**
+   * Feed the melody's notes to a new harmoniser in order of timestamp
+   *
+   * @return The most notes the window held at once
+   */
+  private static int stream(final Line melody, HarmonyListener listener, long seed) {
+    StreamingHarmoniser harmoniser =
+        new StreamingHarmoniser(melody.getTicksPerBeat(), melody.getDivisionType(), WINDOW_BEATS);
+    harmoniser.addVoice(48, 60);
+    harmoniser.addVoice(36, 48);
+    harmoniser.setSeed(seed);
+    harmoniser.setListener(listener);
+
+    List<Integer> order = new ArrayList<Integer>();
+    for (int i = 0; i < melody.getLength(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(melody.getTimeStampAtIndex(a), melody.getTimeStampAtIndex(b));
+      }
+    });
+
+    int largestWindow = 0;
+    for (int i : order) {
+      harmoniser.addMelodyNote(melody.getTimeStampAtIndex(i), melody.getDurationAtIndex(i),
+          melody.getPitchAtIndex(i), melody.getVelocityAtIndex(i));
+      largestWindow = Math.max(largestWindow, harmoniser.getWindowSize());
+    }
+    harmoniser.finish();
+    Assert.assertEquals(0, harmoniser.getWindowSize());
+    return largestWindow;
+  }
+
+}
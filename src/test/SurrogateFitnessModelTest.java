@@ -0,0 +1,135 @@
+package test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import main.CoordinateDescentOptimiser;
+import main.Line;
+import main.LinePopulation;
+import main.SurrogateFitnessModel;
+
+public class SurrogateFitnessModelTest {
+
+  /**
+   * Candidates ranging from random harmonies to good ones: copies of a locally best harmony with a
+   * random share of their notes given random pitches
+   */
+  private static List<LinePopulation> createCandidates(int count, long seed)
+      throws InvalidMidiDataException, IOException {
+    LinePopulation population =
+        new LinePopulation(new Line("src/test/Resources/MidiStaticTest_Resource1.mid"));
+    SplittableRandom random = new SplittableRandom(seed);
+    population.addNewLineWithMelodyAsTemplate(48, 60, random);
+    population.addNewLineWithMelodyAsTemplate(36, 48, random);
+    LinePopulation best = new CoordinateDescentOptimiser(population).run();
+
+    List<LinePopulation> candidates = new ArrayList<LinePopulation>();
+    for (int i = 0; i < count; i++) {
+      LinePopulation candidate = new LinePopulation(best);
+      double rate = random.nextDouble();
+      for (int l = 1; l < candidate.getNumberOfLines(); l++) {
+        Line line = candidate.getLineAtIndex(l);
+        for (int n = 0; n < line.getLength(); n++) {
+          if (random.nextDouble() < rate) {
+            line.mutatePitchAtIndex(n, random);
+          }
+        }
+      }
+      candidate.invalidateFitnessCache();
+      candidates.add(candidate);
+    }
+    return candidates;
+  }
+
+  @Test
+  public void testLearnsToRankCandidates() throws InvalidMidiDataException, IOException {
+    List<LinePopulation> candidates = createCandidates(600, 5);
+    SurrogateFitnessModel model = new SurrogateFitnessModel();
+    Assert.assertFalse(model.train());
+    Assert.assertFalse(model.isTrained());
+
+    for (int i = 0; i < 500; i++) {
+      model.addSample(candidates.get(i), candidates.get(i).getAverageFitnessScore());
+    }
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(model.train());
+    }
+
+    // The guesses for candidates it hasn't seen should go up and down with the exact scores
+    List<LinePopulation> unseen = candidates.subList(500, 600);
+    double[] guesses = model.predict(unseen);
+    double[] exact = new double[unseen.size()];
+    for (int i = 0; i < exact.length; i++) {
+      exact[i] = unseen.get(i).getAverageFitnessScore();
+    }
+    Assert.assertTrue(correlation(guesses, exact) > 0.8);
+  }
+
+  @Test
+  public void testFeaturesAreHistograms() throws InvalidMidiDataException, IOException {
+    double[] features = SurrogateFitnessModel.getFeatures(createCandidates(1, 1).get(0));
+    Assert.assertEquals(SurrogateFitnessModel.FEATURE_COUNT, features.length);
+    for (int histogram = 0; histogram < features.length; histogram += 12) {
+      double sum = 0;
+      for (int i = histogram; i < histogram + 12; i++) {
+        Assert.assertTrue(features[i] >= 0);
+        sum += features[i];
+      }
+      Assert.assertEquals(1, sum, 1e-9);
+    }
+  }
+
+  @Test
+  public void testSettingsFixedOnceUsed() throws InvalidMidiDataException, IOException {
+    List<LinePopulation> candidates = createCandidates(3, 2);
+    SurrogateFitnessModel model = new SurrogateFitnessModel();
+    model.setMaxSamples(2);
+    model.setMinSamples(1);
+    model.addSample(candidates.get(0), 0.5);
+    try {
+      model.setMaxSamples(10);
+      Assert.fail("The samples' space has already been set aside");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    // The ring still wraps round at the size it was given
+    model.addSample(candidates.get(1), 0.6);
+    model.addSample(candidates.get(2), 0.7);
+    Assert.assertEquals(2, model.getSampleCount());
+
+    model.setHiddenNeurons(4);
+    Assert.assertTrue(model.train());
+    try {
+      model.setHiddenNeurons(8);
+      Assert.fail("The network has already been built");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  private static double correlation(double[] x, double[] y) {
+    double meanX = 0;
+    double meanY = 0;
+    for (int i = 0; i < x.length; i++) {
+      meanX += x[i] / x.length;
+      meanY += y[i] / y.length;
+    }
+    double covariance = 0;
+    double varianceX = 0;
+    double varianceY = 0;
+    for (int i = 0; i < x.length; i++) {
+      covariance += (x[i] - meanX) * (y[i] - meanY);
+      varianceX += (x[i] - meanX) * (x[i] - meanX);
+      varianceY += (y[i] - meanY) * (y[i] - meanY);
+    }
+    return covariance / Math.sqrt(varianceX * varianceY);
+  }
+
+}